@@ -0,0 +1,58 @@
+import sys
+import tempfile
+import timeit
+import tracemalloc
+from pathlib import Path
+import numpy as np
+import cv2
+from img_norm_tools import estimate_stain_vectors
+from img_norm_tools import normalize_stains
+from img_norm_tools import normalize_bgr_lean
+from img_norm_tools import read_bgr
+
+"""
+Micro-benchmark of the per-patch stain normalization math, the Python counterpart of the JMH
+benchmarks in src/jmh. The peak memory allocated by NumPy during each call is reported along with the
+time. Run with: python benchmark.py [patch size in pixels, default 5000]
+"""
+
+
+def make_patch(size: int) -> np.ndarray:
+    """
+    Make an H&E-like patch (BGR, as read by OpenCV): pink background with purple blobs and some noise.
+    """
+    rng = np.random.default_rng(0)
+    patch = np.empty((size, size, 3), dtype=np.uint8)
+    patch[:] = (200, 160, 230)
+    yy, xx = np.mgrid[0:size, 0:size]
+    nuclei = ((xx // 64 + yy // 64) % 3 == 0) & (((xx % 64) - 32) ** 2 + ((yy % 64) - 32) ** 2 < 400)
+    patch[nuclei] = (160, 80, 110)
+    noise = rng.integers(-10, 10, size=patch.shape)
+    return np.clip(patch.astype(int) + noise, 0, 255).astype(np.uint8)
+
+
+if __name__ == "__main__":
+    size = int(sys.argv[1]) if len(sys.argv) > 1 else 5000
+    repeats = 3
+
+    with tempfile.TemporaryDirectory() as tmp_dir:
+        patch_file = Path(tmp_dir) / "patch.tif"
+        cv2.imwrite(str(patch_file), make_patch(size))
+
+        HE, maxC = estimate_stain_vectors(patch_file)
+        benchmarks = {
+            "estimate_stain_vectors": lambda: estimate_stain_vectors(patch_file),
+            "normalize_stains": lambda: normalize_stains(patch_file, HE, maxC),
+            # As in main.py: each patch is read, then normalized, and retried in smaller chunks if that fails
+            "normalize_bgr_lean": lambda: normalize_bgr_lean(read_bgr(patch_file), HE, maxC),
+            "normalize_bgr_lean (retry)": lambda: normalize_bgr_lean(read_bgr(patch_file), HE, maxC, chunk_rows=16),
+        }
+
+        print(f"{size} x {size} patch, best of {repeats}:")
+        for name, benchmark in benchmarks.items():
+            seconds = min(timeit.repeat(benchmark, number=1, repeat=repeats))
+            tracemalloc.start()
+            benchmark()
+            peak_mb = tracemalloc.get_traced_memory()[1] / 1e6
+            tracemalloc.stop()
+            print(f"  {name}: {seconds:.3f} s, peak {peak_mb:.0f} MB")
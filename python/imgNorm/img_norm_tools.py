@@ -82,9 +82,7 @@ def normalize_stains(tif_file, HE, maxC,
     :return: transformed image, hematoxylin-only version, eosin-only version
     """
 
-    tif_file = str(tif_file)
-    img = cv2.imread(tif_file, 1)
-    img = cv2.cvtColor(img, cv2.COLOR_BGR2RGB)
+    img = read_rgb(tif_file)
 
     # extract the height, width and num of channels of image
     h, w, c = img.shape
@@ -123,6 +121,78 @@ def normalize_stains(tif_file, HE, maxC,
     return Inorm, H, E
 
 
+def normalize_bgr_lean(img, HE, maxC,
+                       HERef=np.array([[0.651, 0.216], [0.701, 0.801], [0.29, 0.558]]),
+                       maxCRef=np.array([1.9705, 1.0308]), Io=240, chunk_rows=256):
+    """
+    Color-normalize an H&E image that has been read already (see read_bgr), without computing its H and E
+    components, for when only the normalized image is needed. Solving for the concentrations, rescaling them
+    and mixing them with the reference vectors are all linear in the optical density, so they are folded into
+    a single 3x3 matrix, and the optical density of each 8-bit value comes from a lookup table. The image is
+    processed in chunks of rows in float32 with in-place operations, so the peak memory is about twice the size
+    of the 8-bit image plus a few chunk-sized buffers, instead of several float64 copies of the whole image.
+    Smaller chunks need less memory (e.g., to retry a patch that failed with a MemoryError).
+    The result matches that of normalize_stains up to float32 rounding (at most 1 in a few pixels).
+    :param img: the input image, as read by OpenCV (BGR)
+    :param HE: estimated H&E color vectors of the input image
+    :param maxC: estimated H&E intensity vectors of the input image
+    :param HERef: target H&E color vectors of the input image
+    :param maxCRef: target H&E intensity vectors of the input image
+    :param Io: transmitted light intensity
+    :param chunk_rows: number of rows to normalize at a time
+    :return: transformed image (RGB)
+    """
+
+    # The image stays BGR: the channels are reversed in the matrix instead of converting it
+    h, w, c = img.shape
+
+    # Inorm = Io * exp(-HERef . diag(maxCRef / maxC) . pinv(HE) . OD), as lstsq with a full-rank HE is the pseudo-inverse
+    tmp = np.divide(maxC, maxCRef)
+    M = HERef.dot(np.linalg.pinv(HE) / tmp[:, np.newaxis])
+    M_bgr_t = np.ascontiguousarray(M[:, ::-1].T, dtype=np.float32)  # BGR optical density in, RGB out
+    od_lut = (-np.log10((np.arange(256, dtype=np.float64) + 1) / Io)).astype(np.float32)
+
+    Inorm = np.empty((h, w, 3), dtype=np.uint8)
+    OD = np.empty((chunk_rows * w, 3), dtype=np.float32)
+    buffer = np.empty((chunk_rows * w, 3), dtype=np.float32)
+    for y in range(0, h, chunk_rows):
+        rows = min(chunk_rows, h - y)
+        n = rows * w
+        np.take(od_lut, img[y:y + rows].reshape((-1, 3)), out=OD[:n], mode='clip')  # 'clip' writes out directly
+        np.matmul(OD[:n], M_bgr_t, out=buffer[:n])
+        np.negative(buffer[:n], out=buffer[:n])
+        np.exp(buffer[:n], out=buffer[:n])
+        np.multiply(buffer[:n], Io, out=buffer[:n])
+        np.minimum(buffer[:n], 255, out=buffer[:n])
+        np.rint(buffer[:n], out=buffer[:n])
+        Inorm[y:y + rows] = buffer[:n].reshape((rows, w, 3))
+
+    return Inorm
+
+
+def read_bgr(tif_file):
+    """
+    Read an image as a BGR array, as OpenCV does.
+    :param tif_file: image file path
+    :return: the image, with shape (height, width, 3)
+    """
+
+    img = cv2.imread(str(tif_file), 1)
+    if img is None:
+        raise IOError(f"Unable to read {tif_file}")
+    return img
+
+
+def read_rgb(tif_file):
+    """
+    Read an image as an RGB array.
+    :param tif_file: image file path
+    :return: the image, with shape (height, width, 3)
+    """
+
+    return cv2.cvtColor(read_bgr(tif_file), cv2.COLOR_BGR2RGB)
+
+
 def img_compare(img, img2):
     """
     Debugging only.
@@ -3,11 +3,13 @@ import sys
 import os
 import json
 import base64
+from concurrent.futures import ThreadPoolExecutor
 from pathlib import Path
 from PIL import Image
 import numpy as np
 from img_norm_tools import estimate_stain_vectors
-from img_norm_tools import normalize_stains
+from img_norm_tools import normalize_bgr_lean
+from img_norm_tools import read_bgr
 
 """
 Code and algorithm adapted from: 
@@ -21,18 +23,28 @@ Code and algorithm adapted from:
 
 def run_normalize(directory: Path, Io_val=240, alpha_val=2, beta_val=0.05,
                   HEref_arr=None,
-                  maxCRef_arr=None):
+                  maxCRef_arr=None,
+                  reverse=False):
     """
-    Color normalize all .tif/.tiff images in a given directory.
+    Color normalize all .tif/.tiff images in a given directory. The normalized images are written
+    to the "norm" subdirectory, and images that have been normalized already are skipped, so that
+    a run that was interrupted can be resumed, and two runs can share a directory.
+    Only the normalized images are computed (not their H and E components), a chunk of rows at a time,
+    to keep the memory used by each process low. An image that fails to normalize is retried with
+    much smaller chunks; if that fails too, the other
+    images are still normalized, the failed ones are listed in "norm/failed_patches.txt" and an error
+    is raised at the end, so that a rerun only needs to retry the failed images.
     NOTE: This function is I/O bound. Multiprocessing may or may not work, depending on the system.
     :param directory: the provided directory. The directory needs to have one "reference"
         image to extract its stain vectors, which will be applied to normalize the rest of
-        the images in the same directory.
+        the images in the same directory, unless it has a "stain_vectors.json" with the vectors
+        to use. The vectors used are written to "norm/stain_vectors.json".
     :param Io_val: transmitted light intensity
     :param alpha_val: tolerance for the pseudo-min and pseudo-max
     :param beta_val: OD threshold to remove transparent pixels
     :param HEref_arr: target H&E colorspace to transform the image
     :param maxCRef_arr: target H&E intensity to transform the image
+    :param reverse: normalize the images in reverse order (e.g., for a second run sharing the directory)
     :return:
     """
     if maxCRef_arr is None:
@@ -45,8 +57,18 @@ def run_normalize(directory: Path, Io_val=240, alpha_val=2, beta_val=0.05,
     img_files_orig = [Path(file) for file in glob.glob(str(directory / '*.tif'))] \
                      + [Path(file) for file in glob.glob(str(directory / '*.tiff'))]
 
+    # Stain vectors given by the caller (e.g., estimated by a draft run) are used instead of the reference
+    vectors_file = directory / "stain_vectors.json"
+    if vectors_file.exists():
+        with open(vectors_file) as f:
+            vectors = json.load(f)
+        HE, maxC = np.array(vectors["HE"]), np.array(vectors["maxC"])
+        print(f"Using saved stain vectors for {directory.stem}: HE {np.round(HE, 4)}, maxC {np.round(maxC, 4)}", flush=True)
+
     # Do a first-pass loop just to get the HE and maxC of the reference
     for i, img_file in enumerate(img_files_orig, start=1):
+        if HE is not None:
+            break
         if img_file.stem == "reference":
             print(f"Extracting reference vectors for {directory.stem}...", flush=True)
             HE, maxC = estimate_stain_vectors(img_file, Io=Io_val, alpha=alpha_val, beta=beta_val)
@@ -62,20 +84,100 @@ def run_normalize(directory: Path, Io_val=240, alpha_val=2, beta_val=0.05,
     if HE is None or maxC is None:
         raise FileNotFoundError(f"ERROR: Reference file not found in img_files_orig")  # This shouldn't happen...
 
-    count = 0
+    norm_dir = directory / "norm"
+    norm_dir.mkdir(exist_ok=True)
+    _write_stain_vectors(HE, maxC, norm_dir)
+    patch_files = sorted(img_file for img_file in img_files_orig if img_file.stem != "reference")
+    if reverse:
+        patch_files.reverse()
 
-    # Normalize the patches
-    for img_file in img_files_orig:
-        if img_file.stem == "reference":
-            print(f"Reference file skipped...", flush=True)
-            continue
-        count += 1
-        print(f"Normalizing patch {count} of {len(img_files_orig) - 1} for {directory.stem}", flush=True)
-        Inorm, _, _ = normalize_stains(img_file, HE, maxC,
-                                       HERef=np.array(HEref_arr),
-                                       maxCRef=np.array(maxCRef_arr))
-        image = Image.fromarray(Inorm, 'RGB')
-        image.save(f"{img_file.parent}/{img_file.stem}.tif")  # Can use img_file.resolve()
+    failed_patches = []
+    HERef, maxCRef = np.array(HEref_arr), np.array(maxCRef_arr)
+
+    # Normalize the patches (every printed line doubles as a heartbeat for the caller). The next patch is
+    # read and the previous one written on their own threads while the current one is normalized, as
+    # decoding and encoding release the GIL; at most four patch-sized arrays are held in memory at once
+    # (the next input, the current input and output, and the previous output).
+    with ThreadPoolExecutor(max_workers=1, thread_name_prefix="read") as reader, \
+            ThreadPoolExecutor(max_workers=1, thread_name_prefix="write") as writer:
+
+        def prefetch(index):
+            # Patches normalized already (e.g., by a run that was interrupted) are not read at all
+            if index >= len(patch_files) or (norm_dir / f"{patch_files[index].stem}.tif").exists():
+                return None
+            return reader.submit(read_bgr, patch_files[index])
+
+        pending_write = None
+        next_read = prefetch(0)
+        for count, img_file in enumerate(patch_files, start=1):
+            read = next_read
+            next_read = prefetch(count)
+
+            norm_file = norm_dir / f"{img_file.stem}.tif"
+            if norm_file.exists():
+                print(f"Skipping patch {count} of {len(patch_files)} for {directory.stem} (already normalized): {img_file.name}", flush=True)
+                continue
+            print(f"Normalizing patch {count} of {len(patch_files)} for {directory.stem}: {img_file.name}", flush=True)
+            try:
+                img = read.result() if read is not None else read_bgr(img_file)  # None if it was normalized when prefetching
+                Inorm = normalize_bgr_lean(img, HE, maxC, HERef=HERef, maxCRef=maxCRef)
+                del img
+            except Exception as e:
+                print(f"Retrying patch {count} of {len(patch_files)} for {directory.stem} in smaller chunks: {e}", flush=True)
+                try:
+                    Inorm = normalize_bgr_lean(read_bgr(img_file), HE, maxC, HERef=HERef, maxCRef=maxCRef, chunk_rows=16)
+                except Exception as e:
+                    print(f"Failed to normalize patch {img_file.name}: {e}", flush=True)
+                    failed_patches.append(f"{img_file.name}: {e}")
+                    continue
+            read = None  # the input is not needed anymore
+
+            # Wait for the previous patch to be written, so that patches don't pile up if writing is slower
+            if pending_write is not None:
+                _check_written(*pending_write, failed_patches)
+            pending_write = (writer.submit(_write_patch, Inorm, norm_dir, img_file), img_file)
+            del Inorm
+
+        if pending_write is not None:
+            _check_written(*pending_write, failed_patches)
+
+    failed_list_file = norm_dir / "failed_patches.txt"
+    if failed_patches:
+        failed_list_file.write_text("\n".join(failed_patches) + "\n")
+        raise RuntimeError(f"{len(failed_patches)} of {len(patch_files)} patches failed to normalize")
+    failed_list_file.unlink(missing_ok=True)
+
+
+def _write_patch(Inorm, norm_dir: Path, img_file: Path):
+    """
+    Write a normalized patch to a temporary file and move it into place, so that a patch is never seen
+    half-written by another run sharing the directory (or by a run resuming after this one was killed).
+    """
+    image = Image.fromarray(Inorm, 'RGB')
+    tmp_file = norm_dir / f"{img_file.stem}.{os.getpid()}.tmp"
+    image.save(tmp_file, format="TIFF")
+    os.replace(tmp_file, norm_dir / f"{img_file.stem}.tif")
+
+
+def _write_stain_vectors(HE, maxC, norm_dir: Path):
+    """
+    Record the stain vectors the images are normalized with, so that the caller can reuse them.
+    """
+    tmp_file = norm_dir / f"stain_vectors.{os.getpid()}.tmp"
+    with open(tmp_file, "w") as f:
+        json.dump({"HE": np.asarray(HE).tolist(), "maxC": np.asarray(maxC).tolist()}, f)
+    os.replace(tmp_file, norm_dir / "stain_vectors.json")
+
+
+def _check_written(write, img_file: Path, failed_patches: list):
+    """
+    Wait for a patch to be written, and record it as failed if it could not be.
+    """
+    try:
+        write.result()
+    except Exception as e:
+        print(f"Failed to normalize patch {img_file.name}: {e}", flush=True)
+        failed_patches.append(f"{img_file.name}: {e}")
 
 
 if __name__ == "__main__":
@@ -85,16 +187,21 @@ if __name__ == "__main__":
         json_str_dirs_raw = json_str_dirs_decoded.decode('utf-8')
         json_str_dirs_parsed: list[str] = json.loads(json_str_dirs_raw)
         dir_orig_list: list[Path] = [Path(d) for d in json_str_dirs_parsed]
+        reverse_order = len(sys.argv) > 2 and sys.argv[2] == "reverse"
 
+        # Failures are reported through the exit code, so that the caller can decide to retry
+        failed = False
         for dir_orig in dir_orig_list:
             try:
-                run_normalize(dir_orig)
+                run_normalize(dir_orig, reverse=reverse_order)
             except Exception as e:
                 print(f"Failed to normalize in {dir_orig}: {e}", flush=True)
-                with open(os.path.join(dir_orig, "ERROR.txt"), 'w') as error_flag:
-                    error_flag.write(f"An error occurred: {e}")
+                failed = True
+
+            print(f"Next", flush=True)
 
-            print(f"Next")
+        if failed:
+            exit(1)
 
     except Exception as e:
         print(e)
@@ -0,0 +1,56 @@
+import tempfile
+import unittest
+from pathlib import Path
+import numpy as np
+import cv2
+from benchmark import make_patch
+from img_norm_tools import estimate_stain_vectors
+from img_norm_tools import normalize_stains
+from img_norm_tools import normalize_bgr_lean
+from img_norm_tools import read_bgr
+
+"""
+Checks that the lean normalization used by main.py gives the same images as the reference implementation.
+Run with: python -m unittest test_img_norm_tools
+"""
+
+
+class NormalizeBgrLeanTest(unittest.TestCase):
+
+    @classmethod
+    def setUpClass(cls):
+        cls.tmp_dir = tempfile.TemporaryDirectory()
+        cls.patch_file = Path(cls.tmp_dir.name) / "patch.tif"
+        cv2.imwrite(str(cls.patch_file), make_patch(300))
+        cls.HE, cls.maxC = estimate_stain_vectors(cls.patch_file)
+
+    @classmethod
+    def tearDownClass(cls):
+        cls.tmp_dir.cleanup()
+
+    def assert_matches_reference(self, Inorm):
+        reference = normalize_stains(self.patch_file, self.HE, self.maxC)[0]
+        self.assertEqual(reference.shape, Inorm.shape)
+        self.assertEqual(np.uint8, Inorm.dtype)
+        difference = np.abs(reference.astype(int) - Inorm.astype(int))
+        # float32 rounding can only move a value that is close to x.5 to the neighbouring integer
+        self.assertLessEqual(difference.max(), 1)
+        self.assertLess(np.count_nonzero(difference) / difference.size, 0.01)
+
+    def test_matches_normalize_stains(self):
+        self.assert_matches_reference(normalize_bgr_lean(read_bgr(self.patch_file), self.HE, self.maxC))
+
+    def test_matches_normalize_stains_in_chunks(self):
+        # 300 rows are not a multiple of the chunk size, so the last chunk is partial
+        self.assert_matches_reference(normalize_bgr_lean(read_bgr(self.patch_file), self.HE, self.maxC, chunk_rows=16))
+
+    def test_matches_normalize_stains_with_other_reference(self):
+        HERef = np.array([[0.6, 0.3], [0.75, 0.75], [0.28, 0.59]])
+        maxCRef = np.array([1.5, 1.2])
+        reference = normalize_stains(self.patch_file, self.HE, self.maxC, HERef=HERef, maxCRef=maxCRef)[0]
+        Inorm = normalize_bgr_lean(read_bgr(self.patch_file), self.HE, self.maxC, HERef=HERef, maxCRef=maxCRef)
+        self.assertLessEqual(np.abs(reference.astype(int) - Inorm.astype(int)).max(), 1)
+
+
+if __name__ == "__main__":
+    unittest.main()
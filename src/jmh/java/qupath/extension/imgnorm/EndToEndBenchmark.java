@@ -0,0 +1,88 @@
+package qupath.extension.imgnorm;
+
+import qupath.lib.projects.Project;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Macro benchmark of the whole pipeline (tile, normalize, stitch and create the normalized project) on
+ * synthetic slides, run headlessly and offline, e.g. to compare tile sizes or process counts on a machine
+ * before using them for real. Run it with
+ * <pre>
+ * gradlew benchmarkEndToEnd -PbenchmarkArgs="size=20000 images=2 processes=2"
+ * </pre>
+ * Arguments (all optional):
+ * <ul>
+ *     <li>{@code size}: width and height of each slide in pixels (default 20000)</li>
+ *     <li>{@code images}: number of slides (default 2)</li>
+ *     <li>{@code background}: fraction of each slide that is background (default 0.3)</li>
+ *     <li>{@code ignore}: number of Ignore* annotations on each slide (default 0)</li>
+ *     <li>{@code tileSize}: tile size in pixels (default as in {@link ImgNormOptions})</li>
+ *     <li>{@code processes}: number of normalization processes (default 1)</li>
+ *     <li>{@code concurrency}: number of images processed at the same time (default as in {@link ImgNormOptions})</li>
+ *     <li>{@code engine}: comma-separated command running the normalization engine
+ *     (default {@code python3,python/imgNorm/main.py}, i.e. the script rather than the bundled executable)</li>
+ *     <li>{@code keep}: {@code true} to keep the generated project and slides</li>
+ * </ul>
+ * The throughput of each phase is printed at the end, in megapixels of slide per second.
+ */
+public class EndToEndBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> arguments = new HashMap<>();
+        for (String arg : args) {
+            String[] keyValue = arg.split("=", 2);
+            if (keyValue.length != 2)
+                throw new IllegalArgumentException("Arguments must be given as key=value: " + arg);
+            arguments.put(keyValue[0], keyValue[1]);
+        }
+        int size = Integer.parseInt(arguments.getOrDefault("size", "20000"));
+        int images = Integer.parseInt(arguments.getOrDefault("images", "2"));
+        double background = Double.parseDouble(arguments.getOrDefault("background", "0.3"));
+        int ignore = Integer.parseInt(arguments.getOrDefault("ignore", "0"));
+        boolean keep = Boolean.parseBoolean(arguments.getOrDefault("keep", "false"));
+
+        ImgNormOptions options = new ImgNormOptions();
+        if (arguments.containsKey("tileSize"))
+            options.setTileSizePixels(Integer.parseInt(arguments.get("tileSize")));
+        if (arguments.containsKey("concurrency"))
+            options.setImageConcurrency(Integer.parseInt(arguments.get("concurrency")));
+        options.setNormalizationProcesses(Integer.parseInt(arguments.getOrDefault("processes", "1")));
+        List<String> engine = Arrays.asList(arguments.getOrDefault("engine", "python3,python/imgNorm/main.py").split(","));
+        options.setEngineCommand(engine);
+
+        File projectDir = Files.createTempDirectory("imgnorm-benchmark").toFile();
+        long failed;
+        try {
+            long generationStart = System.nanoTime();
+            Project<BufferedImage> project = SyntheticSlideGenerator.createProject(projectDir, images, size, background, ignore);
+            System.out.printf("Generated %d synthetic %dx%d slide(s) in %.1f s in %s%n", images, size, size,
+                    (System.nanoTime() - generationStart) / 1e9, projectDir);
+            System.out.println("Running with " + options);
+
+            ImgNormPipeline pipeline = new ImgNormPipeline(project, project.getImageList(), options, (progress, message) -> {});
+            List<ImgNormResult> results = pipeline.run();
+            results.forEach(System.out::println);
+            System.out.println(pipeline.getStats());
+
+            failed = results.stream().filter(result -> !result.isSuccessful()).count();
+        } finally {
+            if (keep)
+                System.out.println("Kept " + projectDir);
+            else
+                ImgNormDirectoryManager.deleteDirectory(projectDir);
+        }
+        if (failed > 0) {
+            System.err.println(failed + " image(s) were not normalized, so the timings are not representative");
+            System.exit(1);
+        }
+        System.exit(0); // the pipeline's image servers may leave non-daemon threads behind
+    }
+
+}
@@ -0,0 +1,47 @@
+package qupath.extension.imgnorm;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Masking a tile by the Ignore* annotations, for each shading mode. The tile is a quarter of the
+ * default tile size, and is half covered by the mask.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MaskingBenchmark {
+
+    @Param({"BLACK", "HATCHED", "WATERMARKED"})
+    public ImgNormImageTools.Shading shading;
+
+    private SyntheticImageServer server;
+    private ROI tileRoi;
+    private ROI maskRoi;
+
+    @Setup
+    public void setup() {
+        int tileSize = ImgNormPipeline.TILE_SIZE_PIXELS / 4;
+        server = new SyntheticImageServer(tileSize * 4, tileSize * 4);
+        tileRoi = ROIs.createRectangleROI(tileSize, tileSize, tileSize, tileSize, ImagePlane.getDefaultPlane());
+        maskRoi = ROIs.createEllipseROI(tileSize / 2.0, tileSize / 2.0, tileSize * 1.5, tileSize * 1.5, ImagePlane.getDefaultPlane());
+    }
+
+    @Benchmark
+    public void maskTile(Blackhole blackhole) throws IOException {
+        BufferedImage img = ImgNormImageTools.createMaskedBufferedImageFromRoi(server, tileRoi, maskRoi, 1, shading);
+        blackhole.consume(img);
+        ImgNormBufferPool.getDefault().release(img); // as the tiling does, so every invocation after the first reuses it
+    }
+
+}
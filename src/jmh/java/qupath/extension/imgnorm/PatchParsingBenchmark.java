@@ -0,0 +1,44 @@
+package qupath.extension.imgnorm;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the offsets of the patches of a 150,000 x 150,000 pixel image from their file names,
+ * as done when indexing the patches for stitching.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PatchParsingBenchmark {
+
+    private final List<File> files = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        int tileSize = ImgNormPipeline.TILE_SIZE_PIXELS;
+        for (int y = 0; y < 150_000; y += tileSize) {
+            for (int x = 0; x < 150_000; x += tileSize) {
+                files.add(new File("slide [x-" + x + ",y-" + y + ",w-" + tileSize + ",h-" + tileSize + "].tif"));
+            }
+        }
+        files.add(new File("reference.tif"));
+        files.add(new File("metadata.txt"));
+    }
+
+    @Benchmark
+    public void parsePatches(Blackhole blackhole) {
+        for (File file : files) {
+            blackhole.consume(ImgNormPatchGridServer.parsePatch(file));
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+package qupath.extension.imgnorm;
+
+import qupath.lib.images.servers.AbstractImageServer;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.image.BufferedImage;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Image server of any size generating an H&amp;E-like image on the fly: pink stroma with purple nuclei,
+ * optionally with a band of bright background on the left. Pixels depend only on their position in the
+ * full-resolution image, so regions read separately (e.g., tiles) line up. Benchmarks can thus use
+ * gigapixel dimensions without reading an image from disk.
+ */
+class SyntheticImageServer extends AbstractImageServer<BufferedImage> {
+
+    private static final int CELL_SIZE = 24;
+    private static final int BACKGROUND_RGB = 0xF2F0F2;
+    private static final int STROMA_RGB = 0xE6A0C8;
+    private static final int NUCLEUS_RGB = 0x5A3C8C;
+
+    private final ImageServerMetadata metadata;
+    private final int backgroundWidth;
+
+    SyntheticImageServer(int width, int height) {
+        this(width, height, 0);
+    }
+
+    /**
+     * @param width width of the image in pixels
+     * @param height height of the image in pixels
+     * @param backgroundFraction fraction of the image (from the left) that is background rather than tissue
+     */
+    SyntheticImageServer(int width, int height, double backgroundFraction) {
+        super(BufferedImage.class);
+        this.backgroundWidth = (int)Math.round(width * Math.min(1, Math.max(0, backgroundFraction)));
+        this.metadata = new ImageServerMetadata.Builder()
+                .name("synthetic-" + width + "x" + height)
+                .width(width)
+                .height(height)
+                .rgb(true)
+                .pixelType(PixelType.UINT8)
+                .channels(ImageChannel.getDefaultRGBChannels())
+                .preferredTileSize(512, 512)
+                .levelsFromDownsamples(1, 4, 16)
+                .pixelSizeMicrons(0.25, 0.25)
+                .build();
+    }
+
+    @Override
+    public BufferedImage readRegion(RegionRequest request) {
+        double downsample = request.getDownsample();
+        int width = (int)Math.max(1, Math.round(request.getWidth() / downsample));
+        int height = (int)Math.max(1, Math.round(request.getHeight() / downsample));
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            int gy = (int)(request.getY() + y * downsample);
+            for (int x = 0; x < width; x++) {
+                row[x] = getRGB((int)(request.getX() + x * downsample), gy);
+            }
+            img.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return img;
+    }
+
+    /**
+     * @return the color of a full-resolution pixel: one nucleus of varying size per cell of a grid, with some noise
+     */
+    private int getRGB(int x, int y) {
+        if (x < backgroundWidth) return BACKGROUND_RGB;
+        int cellX = Math.floorDiv(x, CELL_SIZE);
+        int cellY = Math.floorDiv(y, CELL_SIZE);
+        int hash = (cellX * 73856093) ^ (cellY * 19349663);
+        int radius = 3 + Math.floorMod(hash, 7);
+        int dx = Math.floorMod(x, CELL_SIZE) - CELL_SIZE / 2;
+        int dy = Math.floorMod(y, CELL_SIZE) - CELL_SIZE / 2;
+        int rgb = dx * dx + dy * dy < radius * radius ? NUCLEUS_RGB : STROMA_RGB;
+        int noise = Math.floorMod(x * 31 + y * 17, 9) - 4;
+        return rgb + noise * 0x010101;
+    }
+
+    @Override
+    protected ServerBuilder<BufferedImage> createServerBuilder() {
+        return null;
+    }
+
+    @Override
+    protected String createID() {
+        return getClass().getName() + ": " + metadata.getName();
+    }
+
+    @Override
+    public Collection<URI> getURIs() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public String getServerType() {
+        return "Synthetic";
+    }
+
+    @Override
+    public ImageServerMetadata getOriginalMetadata() {
+        return metadata;
+    }
+
+}
@@ -0,0 +1,97 @@
+package qupath.extension.imgnorm;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServers;
+import qupath.lib.images.writers.ome.OMEPyramidWriter;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.projects.Projects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes synthetic H&amp;E-like pyramidal OME-TIFFs (see {@link SyntheticImageServer}) and adds them to a
+ * QuPath project, set to Brightfield H&amp;E and optionally with Ignore* annotations, ready to be normalized.
+ */
+class SyntheticSlideGenerator {
+
+    private static final int PYRAMID_TILE_SIZE = 512;
+
+    private SyntheticSlideGenerator() {}
+
+    /**
+     * Create a project of synthetic slides.
+     *
+     * @param projectDir an empty directory for the project; the slides are written to its "slides" subdirectory
+     * @param imageCount number of slides
+     * @param size width and height of each slide in pixels
+     * @param backgroundFraction fraction of each slide that is background
+     * @param ignoreAnnotations number of Ignore* annotations on each slide, spread along its diagonal
+     * @return the project
+     * @throws IOException if a slide or the project cannot be written
+     */
+    static Project<BufferedImage> createProject(File projectDir, int imageCount, int size, double backgroundFraction,
+                                                int ignoreAnnotations) throws IOException {
+        Project<BufferedImage> project = Projects.createProject(projectDir, BufferedImage.class);
+        File slideDir = new File(projectDir, "slides");
+        if (!slideDir.mkdirs())
+            throw new IOException("Failed to create " + slideDir);
+
+        for (int i = 0; i < imageCount; i++) {
+            File slide = writeSlide(slideDir, "synthetic-" + i, size, backgroundFraction);
+            try (ImageServer<BufferedImage> server = ImageServers.buildServer(slide.toURI())) {
+                ProjectImageEntry<BufferedImage> entry = project.addImage(server.getBuilder());
+                entry.setImageName(slide.getName());
+                ImageData<BufferedImage> imageData = new ImageData<>(server, ImageData.ImageType.BRIGHTFIELD_H_E);
+                for (int j = 0; j < ignoreAnnotations; j++) {
+                    double offset = size * (j + 1.0) / (ignoreAnnotations + 1);
+                    PathObject annotation = PathObjects.createAnnotationObject(
+                            ROIs.createEllipseROI(offset - size / 20.0, offset - size / 20.0, size / 10.0, size / 10.0, ImagePlane.getDefaultPlane()),
+                            PathClass.fromString("Ignore*"));
+                    imageData.getHierarchy().addObject(annotation);
+                }
+                entry.saveImageData(imageData);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Failed to add " + slide + " to the project: " + e.getMessage(), e);
+            }
+        }
+        project.syncChanges();
+        return project;
+    }
+
+    /**
+     * Write a synthetic slide as a pyramidal OME-TIFF.
+     *
+     * @return the slide file
+     */
+    static File writeSlide(File dir, String name, int size, double backgroundFraction) throws IOException {
+        File file = new File(dir, name + ".ome.tif");
+        var server = new SyntheticImageServer(size, size, backgroundFraction);
+        try {
+            new OMEPyramidWriter.Builder(server)
+                    .downsamples(server.getPreferredDownsamples())
+                    .tileSize(PYRAMID_TILE_SIZE)
+                    .channelsInterleaved()
+                    .parallelize()
+                    .losslessCompression()
+                    .build()
+                    .writeSeries(file.getAbsolutePath());
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) { // e.g., a Bio-Formats FormatException
+            throw new IOException("Failed to write " + file + ": " + e.getMessage(), e);
+        }
+        return file;
+    }
+
+}
@@ -0,0 +1,38 @@
+package qupath.extension.imgnorm;
+
+import org.openjdk.jmh.annotations.*;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Laying out the tile annotations of gigapixel images at the tile size used by the pipeline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TilingBenchmark {
+
+    @Param({"50000", "150000"})
+    public int imageSize;
+
+    private SyntheticImageServer server;
+
+    @Setup
+    public void setup() {
+        server = new SyntheticImageServer(imageSize, imageSize);
+    }
+
+    @Benchmark
+    public PathObject makeTileAnnotations() {
+        // A new ImageData each time, as the annotations are added to its hierarchy
+        ImageData<BufferedImage> imageData = new ImageData<>(server, ImageData.ImageType.BRIGHTFIELD_H_E);
+        return ImgNormImageTools.makeTileAnnotations(ImgNormPipeline.TILE_SIZE_PIXELS, imageData);
+    }
+
+}
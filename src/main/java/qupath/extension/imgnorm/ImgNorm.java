@@ -0,0 +1,168 @@
+package qupath.extension.imgnorm;
+
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectIO;
+import qupath.lib.projects.ProjectImageEntry;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scripting entry point for running ImgNorm without the QuPath GUI, e.g. from QuPath's
+ * command-line script runner on a compute node:
+ * <pre>
+ * import qupath.extension.imgnorm.ImgNorm
+ * import qupath.extension.imgnorm.ImgNormOptions
+ *
+ * def results = ImgNorm.normalizeProject(new File(args[0]), new ImgNormOptions()).join()
+ * results.each { println it }
+ * </pre>
+ * Each run uses its own thread. Cancelling the returned future stops the run.
+ * <p>
+ * A project can also be split between several machines or JVMs sharing a filesystem: each worker calls
+ * {@link #normalizeShard} with its own shard index and the same output directory, and once all of them
+ * have finished {@link #mergeShards} builds the normalized project. See also {@link ImgNormCli}.
+ */
+public class ImgNorm {
+
+    static final Logger logger = LoggerFactory.getLogger(ImgNorm.class);
+
+    private ImgNorm() {}
+
+    /**
+     * Normalize every image of a project, read from its project file.
+     *
+     * @param projectFile the project file (project.qpproj) or its directory
+     * @param options options for the run
+     * @return a future completing with one result per entry, in project order
+     * @throws IOException if the project cannot be read
+     */
+    public static CompletableFuture<List<ImgNormResult>> normalizeProject(File projectFile, ImgNormOptions options) throws IOException {
+        return normalizeProject(ProjectIO.loadProject(projectFile, BufferedImage.class), options);
+    }
+
+    /**
+     * Normalize every image of a project.
+     *
+     * @param project the project
+     * @param options options for the run
+     * @return a future completing with one result per entry, in project order
+     */
+    public static CompletableFuture<List<ImgNormResult>> normalizeProject(Project<BufferedImage> project, ImgNormOptions options) {
+        return normalizeEntries(project, project.getImageList(), options);
+    }
+
+    /**
+     * Normalize some of the images of a project.
+     *
+     * @param project the project the entries belong to
+     * @param entries the entries to normalize
+     * @param options options for the run
+     * @return a future completing with one result per entry, in the order of the entries
+     */
+    public static CompletableFuture<List<ImgNormResult>> normalizeEntries(Project<BufferedImage> project,
+                                                                         List<ProjectImageEntry<BufferedImage>> entries,
+                                                                         ImgNormOptions options) {
+        logger.info("Running headlessly with {}", options);
+        ImgNormPipeline pipeline = new ImgNormPipeline(project, entries, options, new LoggingListener());
+        return start(pipeline, () -> {
+            List<ImgNormResult> results = pipeline.run();
+            logger.info("ImgNorm Done! Normalized project written to {}", pipeline.getNormalizedProject().getPath());
+            return results;
+        });
+    }
+
+    /**
+     * Normalize one shard of a project as one of several workers sharing an output directory. Each image
+     * is claimed by the first worker to reach it, so workers never process the same image, and a worker
+     * that is launched again skips the images that have been normalized or are being processed by another
+     * worker. The claims of images that fail, or are not finished when a run is cancelled, are released, and
+     * the claims of a worker that has crashed are taken over once they are stale, so those images are retried.
+     *
+     * @param projectFile the project file (project.qpproj) or its directory
+     * @param outputDir the output directory shared by all workers
+     * @param shardIndex index of this worker's shard, from 0 to shardCount - 1
+     * @param shardCount total number of shards
+     * @param options options for the run
+     * @return a future completing with one result per entry of the shard
+     * @throws IOException if the project cannot be read or the output directory cannot be created
+     */
+    public static CompletableFuture<List<ImgNormResult>> normalizeShard(File projectFile, File outputDir, int shardIndex, int shardCount,
+                                                                       ImgNormOptions options) throws IOException {
+        Project<BufferedImage> project = ProjectIO.loadProject(projectFile, BufferedImage.class);
+        List<ProjectImageEntry<BufferedImage>> shard = ImgNormPipeline.selectShard(project.getImageList(), shardIndex, shardCount);
+        logger.info("Running shard {} of {} ({} of {} entries) with {}", shardIndex, shardCount, shard.size(), project.getImageList().size(), options);
+
+        ImgNormDirectoryManager dirManager = ImgNormDirectoryManager.forShardWorker(outputDir, "shard-" + shardIndex + "-of-" + shardCount,
+                options.getScratchDir());
+        ImgNormPipeline pipeline = new ImgNormPipeline(project, shard, options, new LoggingListener(), dirManager, false);
+        return start(pipeline, pipeline::run);
+    }
+
+    /**
+     * Build the normalized project from the images written to a shared output directory by {@link #normalizeShard}.
+     *
+     * @param projectFile the project file (project.qpproj) or its directory
+     * @param outputDir the output directory shared by all workers
+     * @param options options for the merge
+     * @return a future completing with one result per entry of the project
+     * @throws IOException if the project cannot be read or the normalized project directory cannot be created
+     */
+    public static CompletableFuture<List<ImgNormResult>> mergeShards(File projectFile, File outputDir, ImgNormOptions options) throws IOException {
+        Project<BufferedImage> project = ProjectIO.loadProject(projectFile, BufferedImage.class);
+        ImgNormDirectoryManager dirManager = ImgNormDirectoryManager.forMerge(outputDir);
+        ImgNormPipeline pipeline = new ImgNormPipeline(project, project.getImageList(), options, new LoggingListener(), dirManager, true);
+        return start(pipeline, () -> {
+            List<ImgNormResult> results = pipeline.merge();
+            logger.info("Merged normalized project written to {}", pipeline.getNormalizedProject().getPath());
+            return results;
+        });
+    }
+
+    private interface PipelineCall {
+        List<ImgNormResult> call() throws IOException, ImgNormPipeline.CancelledException;
+    }
+
+    /**
+     * Start a call on a pipeline on its own thread.
+     */
+    private static CompletableFuture<List<ImgNormResult>> start(ImgNormPipeline pipeline, PipelineCall call) {
+        Executor runThread = runnable -> new Thread(runnable, "imgnorm-run").start();
+        CompletableFuture<List<ImgNormResult>> future = CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.call();
+            } catch (IOException | ImgNormPipeline.CancelledException e) {
+                throw new CompletionException(e);
+            }
+        }, runThread);
+        future.whenComplete((results, e) -> {
+            if (future.isCancelled()) pipeline.cancel();
+        });
+        return future;
+    }
+
+    /**
+     * Logs the progress of a run in steps of 5%, as there is no progress dialog to show it.
+     */
+    private static class LoggingListener implements ImgNormProgress.Listener {
+
+        private static final double STEP = 5;
+        private double nextProgress = 0;
+
+        @Override
+        public void update(double progress, String message) {
+            if (progress < nextProgress) return;
+            nextProgress = (Math.floor(progress / STEP) + 1) * STEP;
+            logger.info("Progress {}%: {}", (int)progress, message.lines().findFirst().orElse(""));
+        }
+
+    }
+
+}
@@ -0,0 +1,229 @@
+package qupath.extension.imgnorm;
+
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.lang.ref.Cleaner;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of the pixel arrays behind the tile-sized images read while tiling and decoded while stitching,
+ * so that a long run reuses a few arrays rather than allocating (and collecting) hundreds of megabytes
+ * per tile.
+ * <p>
+ * Arrays are grouped in size classes an eighth of a power of two apart, so that an array can back any
+ * image up to its class size (e.g., the smaller tiles at the edges of an image) while wasting at most
+ * 12.5% of it. Images are borrowed with {@link #borrow} and handed back with {@link #release}; an image
+ * that is never released is simply garbage collected. Idle arrays are kept up to a byte limit, beyond
+ * which released arrays are dropped.
+ * <p>
+ * With {@code -Dimgnorm.bufferPool.leakDetection=true} (or debug logging for this class), the stack
+ * trace of every borrow is recorded, and a warning with it is logged for each image that is garbage
+ * collected without having been released, or released twice.
+ */
+final class ImgNormBufferPool {
+
+    static final Logger logger = LoggerFactory.getLogger(ImgNormBufferPool.class);
+    private static final String LEASE_PROPERTY = "imgnorm.bufferPool.lease";
+    private static final long DEFAULT_MAX_RETAINED_BYTES = Math.min(Runtime.getRuntime().maxMemory() / 8, 1024L*1024*1024);
+    private static final ImgNormBufferPool DEFAULT = new ImgNormBufferPool(DEFAULT_MAX_RETAINED_BYTES,
+            Boolean.getBoolean("imgnorm.bufferPool.leakDetection") || logger.isDebugEnabled());
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final long maxRetainedBytes;
+    private final boolean leakDetection;
+    private final Map<Long, ArrayDeque<Object>> idleArrays = new HashMap<>(); // by data type and size class
+    private long retainedBytes = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+
+    /**
+     * @param maxRetainedBytes maximum number of bytes of idle arrays to keep
+     * @param leakDetection whether to report images that are not released
+     */
+    ImgNormBufferPool(long maxRetainedBytes, boolean leakDetection) {
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.leakDetection = leakDetection;
+    }
+
+    /**
+     * @return the pool shared by every run in this JVM
+     */
+    static ImgNormBufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Borrow an RGB image of type {@link BufferedImage#TYPE_INT_RGB}. Its pixels are not cleared.
+     */
+    BufferedImage borrowRgb(int width, int height) {
+        return borrow(ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_RGB), width, height);
+    }
+
+    /**
+     * Borrow an image of a given type, e.g. as the destination of an {@code ImageReader}. Its pixels are
+     * not cleared. Types that are not backed by a single byte or int array are allocated without the pool.
+     *
+     * @param type the type of image
+     * @param width the width of the image
+     * @param height the height of the image
+     * @return the image, which should be handed back with {@link #release} once it is not used anymore
+     */
+    BufferedImage borrow(ImageTypeSpecifier type, int width, int height) {
+        SampleModel sampleModel = type.getSampleModel(width, height);
+        int dataType = sampleModel.getDataType();
+        long size = getArraySize(sampleModel);
+        if (size < 0 || size > Integer.MAX_VALUE || (dataType != DataBuffer.TYPE_BYTE && dataType != DataBuffer.TYPE_INT))
+            return type.createBufferedImage(width, height);
+
+        int sizeClass = getSizeClass((int)size);
+        long key = ((long)dataType << 32) | sizeClass;
+        Object array;
+        synchronized (this) {
+            ArrayDeque<Object> arrays = idleArrays.get(key);
+            array = arrays == null ? null : arrays.poll();
+            if (array != null)
+                retainedBytes -= bytesOf(array);
+        }
+        if (array != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            array = dataType == DataBuffer.TYPE_BYTE ? new byte[sizeClass] : new int[sizeClass];
+        }
+
+        DataBuffer buffer = dataType == DataBuffer.TYPE_BYTE
+                ? new DataBufferByte((byte[])array, (int)size)
+                : new DataBufferInt((int[])array, (int)size);
+        WritableRaster raster = Raster.createWritableRaster(sampleModel, buffer, null);
+        Lease lease = new Lease(key, array, leakDetection ? new Throwable("Borrowed here") : null);
+        Hashtable<String, Object> properties = new Hashtable<>(Map.of(LEASE_PROPERTY, lease));
+        ColorModel colorModel = type.getColorModel();
+        BufferedImage img = new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), properties);
+        outstanding.incrementAndGet();
+        if (leakDetection)
+            CLEANER.register(img, new LeakCheck(lease, outstanding));
+        return img;
+    }
+
+    /**
+     * Hand an image back to the pool. Images that were not borrowed from the pool are ignored, so any
+     * image may be released. The image must not be used anymore afterwards.
+     *
+     * @param img the image, or null
+     */
+    void release(BufferedImage img) {
+        if (img == null || !(img.getProperty(LEASE_PROPERTY) instanceof Lease lease))
+            return;
+        if (!lease.released.compareAndSet(false, true)) {
+            if (leakDetection)
+                logger.warn("Image released twice to the buffer pool", lease.borrowedAt);
+            return;
+        }
+        outstanding.decrementAndGet();
+        Object array = lease.array;
+        long bytes = bytesOf(array);
+        synchronized (this) {
+            if (retainedBytes + bytes > maxRetainedBytes)
+                return;
+            idleArrays.computeIfAbsent(lease.key, key -> new ArrayDeque<>()).push(array);
+            retainedBytes += bytes;
+        }
+    }
+
+    /**
+     * Drop the idle arrays, e.g. at the end of a run, so that they can be garbage collected.
+     */
+    void clear() {
+        synchronized (this) {
+            idleArrays.clear();
+            retainedBytes = 0;
+        }
+        logger.debug("Cleared buffer pool ({} hits, {} misses, {} images not released yet)", hits.get(), misses.get(), outstanding.get());
+    }
+
+    /**
+     * @return the number of images borrowed with a reused array
+     */
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of images borrowed with a newly allocated array
+     */
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Round a number of array elements up to its size class, i.e. to the next multiple of an
+     * eighth of the largest power of two not above it.
+     */
+    static int getSizeClass(int size) {
+        if (size <= 1024)
+            return 1024;
+        int step = Integer.highestOneBit(size) >> 3;
+        long sizeClass = ((long)size + step - 1) / step * step;
+        return (int)Math.min(sizeClass, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * @return the number of array elements needed by a sample model, or -1 if it does not use a single array
+     */
+    private static long getArraySize(SampleModel sampleModel) {
+        if (sampleModel instanceof ComponentSampleModel model && Arrays.stream(model.getBankIndices()).allMatch(bank -> bank == 0))
+            return (long)model.getScanlineStride() * model.getHeight();
+        if (sampleModel instanceof SinglePixelPackedSampleModel model)
+            return (long)model.getScanlineStride() * model.getHeight();
+        return -1;
+    }
+
+    private static long bytesOf(Object array) {
+        return array instanceof int[] ints ? 4L * ints.length : ((byte[])array).length;
+    }
+
+    private static class Lease {
+        final long key;
+        final Object array;
+        final Throwable borrowedAt;
+        final AtomicBoolean released = new AtomicBoolean();
+
+        Lease(long key, Object array, Throwable borrowedAt) {
+            this.key = key;
+            this.array = array;
+            this.borrowedAt = borrowedAt;
+        }
+    }
+
+    /**
+     * Run once a borrowed image has been garbage collected (so it must not reference the image).
+     */
+    private record LeakCheck(Lease lease, AtomicLong outstanding) implements Runnable {
+        @Override
+        public void run() {
+            if (lease.released.get()) return;
+            outstanding.decrementAndGet();
+            logger.warn("Image borrowed from the buffer pool was garbage collected without being released", lease.borrowedAt);
+        }
+    }
+
+}
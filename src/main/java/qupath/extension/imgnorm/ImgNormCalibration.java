@@ -0,0 +1,173 @@
+package qupath.extension.imgnorm;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.TransformedServerBuilder;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.projects.Projects;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.ROIs;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the tile size and the number of normalization processes that give the best throughput on this
+ * computer, by running the stages of the pipeline on a sample of a real image of a project:
+ * <ol>
+ *     <li>the sample is tiled, normalized by a single process and stitched at each candidate tile size,
+ *     and the tile size with the highest throughput is kept;</li>
+ *     <li>copies of the sample tiled at that size are normalized by 1, 2, 4... processes at once, until
+ *     adding processes stops paying off.</li>
+ * </ol>
+ * This takes a few minutes, depending on the computer. Within QuPath, the result is persisted per host by
+ * {@link ImgNormPreferences#saveCalibration}; {@link ImgNormCli} prints it as the options to pass to later runs.
+ */
+public class ImgNormCalibration {
+
+    static final Logger logger = LoggerFactory.getLogger(ImgNormCalibration.class);
+    private static final int[] TILE_SIZES = {2500, 3750, 5000};
+    private static final int SAMPLE_SIZE_PIXELS = 7500; // side of the square sampled from the middle of the image
+    private static final double MIN_SPEEDUP = 1.15; // more processes use more memory, so they need to be clearly faster
+
+    /**
+     * @param tileSizePixels the best tile size
+     * @param normalizationProcesses the best number of normalization processes
+     * @param megapixelsPerSecond the normalization throughput with that configuration
+     */
+    public record Result(int tileSizePixels, int normalizationProcesses, double megapixelsPerSecond) {}
+
+    private ImgNormCalibration() {}
+
+    /**
+     * Run the calibration on the first Brightfield H&amp;E image of a project.
+     *
+     * @param project the project
+     * @param options options for the run, e.g. to set the scratch directory or the engine command
+     * @param messages receives a message for each step
+     * @return the best configuration
+     * @throws IOException if the project has no suitable image, or the sample cannot be processed
+     */
+    public static Result calibrate(Project<BufferedImage> project, ImgNormOptions options, Consumer<String> messages) throws IOException {
+        ImageData<BufferedImage> imageData = null;
+        for (ProjectImageEntry<BufferedImage> entry : project.getImageList()) {
+            ImageData<BufferedImage> entryImageData = entry.readImageData();
+            if (entryImageData.getImageType() == ImageData.ImageType.BRIGHTFIELD_H_E) {
+                imageData = entryImageData;
+                break;
+            }
+        }
+        if (imageData == null)
+            throw new IOException("The project has no image set to Brightfield H&E to calibrate with");
+
+        File scratchRoot = options.getScratchDir() != null ? options.getScratchDir() : Projects.getBaseDirectory(project);
+        File calibrationDir = ImgNormDirectoryManager.createUniqueDirectory(
+                Files.createDirectories(scratchRoot.toPath()).toString(), "imgnorm_calibration");
+        ImgNormPipeline context = new ImgNormPipeline(project, List.of(), options, (progress, message) -> {});
+        try (ImgNormProgress ignored = context.getProgressAggregator()) {
+            ImageData<BufferedImage> sample = createSample(imageData);
+            double samplePixels = (double)sample.getServer().getWidth() * sample.getServer().getHeight();
+            logger.info("Calibrating with a {}x{} sample of {}", sample.getServer().getWidth(), sample.getServer().getHeight(),
+                    imageData.getServer().getMetadata().getName());
+
+            // Find the best tile size with a single process
+            int bestTileSize = TILE_SIZES[0];
+            double bestThroughput = 0;
+            for (int tileSize : TILE_SIZES) {
+                messages.accept("Timing tiles of " + tileSize + " pixels...");
+                File tileSizeDir = new File(calibrationDir, "tiles-" + tileSize);
+                long start = System.nanoTime();
+                ImgNormImageTools.writeTiles(sample, ROIs.createEmptyROI(), tileSizeDir, tileSize, "sample");
+                File patchDirectory = new File(tileSizeDir, "sample");
+                normalize(context, List.of(patchDirectory), 1);
+                ImgNormImageTools.stitchTiles(patchDirectory, tileSizeDir, "_norm.ome", false);
+                double throughput = samplePixels / 1e6 / ((System.nanoTime() - start) / 1e9);
+                logger.info("Tile size {}: {} MP/s", tileSize, String.format("%.2f", throughput));
+                if (throughput > bestThroughput) {
+                    bestThroughput = throughput;
+                    bestTileSize = tileSize;
+                }
+            }
+
+            // Then the best number of processes at that tile size, normalizing a copy of the sample per process
+            File tiles = new File(new File(calibrationDir, "tiles-" + bestTileSize), "sample");
+            int bestProcesses = 1;
+            double bestNormalizationThroughput = 0;
+            for (int processes = 1; processes <= Runtime.getRuntime().availableProcessors(); processes *= 2) {
+                messages.accept("Timing " + processes + " normalization process(es)...");
+                List<File> copies = new ArrayList<>();
+                for (int i = 0; i < processes; i++) {
+                    copies.add(copyTiles(tiles, new File(calibrationDir, "copies-" + processes + "/sample-" + i)));
+                }
+                long start = System.nanoTime();
+                normalize(context, copies, processes);
+                double throughput = samplePixels * processes / 1e6 / ((System.nanoTime() - start) / 1e9);
+                ImgNormDirectoryManager.deleteDirectory(new File(calibrationDir, "copies-" + processes));
+                logger.info("{} process(es): {} MP/s", processes, String.format("%.2f", throughput));
+                if (throughput < bestNormalizationThroughput * MIN_SPEEDUP)
+                    break;
+                bestNormalizationThroughput = throughput;
+                bestProcesses = processes;
+            }
+
+            Result result = new Result(bestTileSize, bestProcesses, bestNormalizationThroughput);
+            logger.info("Calibration result: {}", result);
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Calibration was interrupted", e);
+        } finally {
+            ImgNormDirectoryManager.deleteDirectory(calibrationDir);
+        }
+    }
+
+    /**
+     * Crop a square from the middle of an image, where there is more likely to be tissue than at the edges.
+     */
+    private static ImageData<BufferedImage> createSample(ImageData<BufferedImage> imageData) throws IOException {
+        ImageServer<BufferedImage> server = imageData.getServer();
+        int width = Math.min(server.getWidth(), SAMPLE_SIZE_PIXELS);
+        int height = Math.min(server.getHeight(), SAMPLE_SIZE_PIXELS);
+        ImageRegion region = ImageRegion.createInstance((server.getWidth() - width) / 2, (server.getHeight() - height) / 2,
+                width, height, 0, 0);
+        ImageServer<BufferedImage> sampleServer = new TransformedServerBuilder(server).crop(region).build();
+        return new ImageData<>(sampleServer, ImageData.ImageType.BRIGHTFIELD_H_E);
+    }
+
+    private static void normalize(ImgNormPipeline context, List<File> patchDirectories, int processes) throws IOException {
+        new ImgNormRunPython(patchDirectories, context, 0.0, processes).runPython();
+        for (File patchDirectory : patchDirectories) {
+            if (new File(patchDirectory, "ERROR.txt").exists())
+                throw new IOException("The sample failed to normalize, see the log for details");
+        }
+    }
+
+    /**
+     * Copy the tiles of a patch directory (as hard links where possible, since the tiles are never modified).
+     */
+    private static File copyTiles(File source, File target) throws IOException {
+        Files.createDirectories(target.toPath());
+        try (Stream<Path> files = Files.list(source.toPath())) {
+            for (Path file : files.filter(Files::isRegularFile).toList()) {
+                Path copy = target.toPath().resolve(file.getFileName());
+                try {
+                    Files.createLink(copy, file);
+                } catch (IOException | UnsupportedOperationException e) {
+                    Files.copy(file, copy);
+                }
+            }
+        }
+        return target;
+    }
+
+}
@@ -0,0 +1,258 @@
+package qupath.extension.imgnorm;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-image claims of the workers of a sharded run, kept as files in a claims directory shared by all workers.
+ * <p>
+ * A claim is created atomically, so exactly one worker succeeds without any locking. It names its owner
+ * (host and process ID) and is touched periodically while its owner runs, so a claim whose owner has
+ * crashed or been killed becomes stale and can be taken over by another worker, unless the image has been
+ * normalized already. A worker releases the claims of the images it did not finish when its run ends, and
+ * records the reason for those that failed, so that a relaunched worker retries them.
+ */
+final class ImgNormClaims implements AutoCloseable {
+
+    static final Logger logger = LoggerFactory.getLogger(ImgNormClaims.class);
+    static final Duration HEARTBEAT_INTERVAL = Duration.ofSeconds(30);
+    static final Duration STALE_AFTER = Duration.ofMinutes(5);
+    private static final String CLAIM_SUFFIX = ".claim";
+    private static final String FAILURE_SUFFIX = ".failed";
+
+    private final File claimsDir;
+    private final Duration staleAfter;
+    private final String host = getHostName();
+    private final long pid = ProcessHandle.current().pid();
+    private final Set<String> held = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService heartbeat;
+
+    /**
+     * @param claimsDir the claims directory shared by the workers
+     */
+    ImgNormClaims(File claimsDir) {
+        this(claimsDir, STALE_AFTER);
+    }
+
+    /**
+     * @param claimsDir the claims directory shared by the workers
+     * @param staleAfter time after which a claim that has not been touched can be taken over
+     */
+    ImgNormClaims(File claimsDir, Duration staleAfter) {
+        this.claimsDir = claimsDir;
+        this.staleAfter = staleAfter;
+    }
+
+    /**
+     * Start touching the claims held by this worker, so that other workers do not take them over.
+     */
+    synchronized void startHeartbeat() {
+        if (heartbeat != null) return;
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "imgnorm-claims");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = HEARTBEAT_INTERVAL.toMillis();
+        heartbeat.scheduleWithFixedDelay(this::touchHeld, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Claim a normalized image for this worker.
+     *
+     * @param baseName base name of the normalized image
+     * @param output the normalized image file, which is never processed again once it exists
+     * @return true if this worker should process the image
+     * @throws IOException if the claim cannot be written
+     */
+    boolean claim(String baseName, File output) throws IOException {
+        if (output.isFile())
+            return false;
+        Path claim = getClaimFile(baseName);
+        for (int attempt = 0; attempt < 3; attempt++) {
+            try {
+                Files.writeString(claim, "owner=" + host + ":" + pid + "\nclaimed=" + Instant.now() + "\n",
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                held.add(baseName);
+                Files.deleteIfExists(getFailureFile(baseName));
+                return true;
+            } catch (FileAlreadyExistsException e) {
+                if (held.contains(baseName) || output.isFile() || !takeOverIfStale(baseName))
+                    return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Release a claim held by this worker, so that another worker (or a relaunch) processes the image.
+     *
+     * @param baseName base name of the normalized image
+     * @param failure why the image failed, to be reported when merging, or null if it did not fail
+     */
+    void release(String baseName, String failure) {
+        if (!held.remove(baseName)) return;
+        try {
+            if (failure != null)
+                Files.writeString(getFailureFile(baseName), failure);
+            Files.deleteIfExists(getClaimFile(baseName));
+        } catch (IOException e) {
+            logger.warn("Failed to release the claim of {}: {}", baseName, e.getMessage());
+        }
+    }
+
+    /**
+     * @return the base names of the images claimed by this worker and not released
+     */
+    Set<String> getHeld() {
+        return Set.copyOf(held);
+    }
+
+    /**
+     * @param baseName base name of the normalized image
+     * @return the owner of the current claim of an image, or null if it is not claimed
+     */
+    String getOwner(String baseName) {
+        try {
+            return readOwner(getClaimFile(baseName));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param baseName base name of the normalized image
+     * @return why the last worker to process an image failed, or null if it did not fail
+     */
+    String getFailure(String baseName) {
+        try {
+            return Files.readString(getFailureFile(baseName));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stop touching the claims. Claims that have not been released are kept, e.g. those of finished images.
+     */
+    @Override
+    public synchronized void close() {
+        if (heartbeat != null)
+            heartbeat.shutdownNow();
+        heartbeat = null;
+    }
+
+    private void touchHeld() {
+        FileTime now = FileTime.from(Instant.now());
+        for (String baseName : held) {
+            try {
+                Files.setLastModifiedTime(getClaimFile(baseName), now);
+            } catch (IOException e) {
+                logger.warn("Failed to refresh the claim of {}: {}", baseName, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Remove the claim of an image if its owner has stopped, i.e. it has not been touched for a while or its
+     * owner is a process of this host that is not running anymore. The claim is first moved aside, which
+     * only one worker can do, and put back if it turns out to have been renewed in the meantime.
+     *
+     * @return true if the claim was removed, so the image can be claimed again
+     */
+    private boolean takeOverIfStale(String baseName) throws IOException {
+        Path claim = getClaimFile(baseName);
+        FileTime modified;
+        String owner;
+        try {
+            modified = Files.getLastModifiedTime(claim);
+            owner = readOwner(claim);
+        } catch (NoSuchFileException e) {
+            return true; // released in the meantime
+        }
+        if (!isStale(owner, modified))
+            return false;
+
+        Path moved = claim.resolveSibling(claim.getFileName() + "." + UUID.randomUUID() + ".stale");
+        try {
+            Files.move(claim, moved, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return true;
+        } catch (AtomicMoveNotSupportedException e) {
+            return false;
+        }
+        if (!Files.getLastModifiedTime(moved).equals(modified)) { // renewed or replaced after it was checked
+            try {
+                Files.createLink(claim, moved); // unlike a move, never replaces a claim made in the meantime
+            } catch (FileAlreadyExistsException e) {
+                logger.debug("Claim of {} was replaced while it was taken over", baseName);
+            } catch (IOException | UnsupportedOperationException e) {
+                logger.warn("Failed to restore the claim of {}: {}", baseName, e.getMessage());
+            }
+            Files.deleteIfExists(moved);
+            return false;
+        }
+        Files.deleteIfExists(moved);
+        logger.info("Taking over the claim of {} from {}, which has stopped", baseName, owner);
+        return true;
+    }
+
+    private boolean isStale(String owner, FileTime modified) {
+        if (modified.toInstant().isBefore(Instant.now().minus(staleAfter)))
+            return true;
+        if (owner == null || !owner.startsWith(host + ":"))
+            return false;
+        try {
+            long ownerPid = Long.parseLong(owner.substring(host.length() + 1));
+            return ownerPid != pid && ProcessHandle.of(ownerPid).map(process -> !process.isAlive()).orElse(true);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static String readOwner(Path claim) throws IOException {
+        for (String line : Files.readAllLines(claim)) {
+            if (line.startsWith("owner="))
+                return line.substring("owner=".length());
+        }
+        return null;
+    }
+
+    private Path getClaimFile(String baseName) {
+        return new File(claimsDir, baseName + CLAIM_SUFFIX).toPath();
+    }
+
+    private Path getFailureFile(String baseName) {
+        return new File(claimsDir, baseName + FAILURE_SUFFIX).toPath();
+    }
+
+    private static String getHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+}
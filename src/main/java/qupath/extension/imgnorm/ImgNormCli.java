@@ -0,0 +1,156 @@
+package qupath.extension.imgnorm;
+
+import qupath.lib.projects.ProjectIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.CompletableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Command-line entry point for headless and sharded runs. To try a sharded run locally, launch
+ * several workers against one output directory, and merge once they have all finished:
+ * <pre>
+ * ImgNormCli shard project.qpproj /shared/out 0 3 &amp;
+ * ImgNormCli shard project.qpproj /shared/out 1 3 &amp;
+ * ImgNormCli shard project.qpproj /shared/out 2 3 &amp;
+ * wait
+ * ImgNormCli merge project.qpproj /shared/out
+ * </pre>
+ * Runs use the defaults of {@link ImgNormOptions}, changed by the options listed in the usage, so that
+ * the command line runs without QuPath's GUI module or JavaFX (the preferences saved by QuPath are only
+ * used by the extension). {@code ImgNormCli calibrate project.qpproj} prints the options with the best
+ * throughput on this computer, e.g. {@code --tile-size 3750 --processes 4}, to pass to later runs.
+ * {@code ImgNormCli draft project.qpproj 16} previews the normalization at a downsample of 16 (the default
+ * if omitted), and a later full run reuses the stain vectors of the preview.
+ * <p>
+ * The exit code is 0 if no image failed, 1 if any image failed and 2 if the arguments are invalid.
+ */
+public class ImgNormCli {
+
+    static final Logger logger = LoggerFactory.getLogger(ImgNormCli.class);
+
+    private static final String USAGE = """
+            Usage:
+              ImgNormCli normalize <project>
+              ImgNormCli draft <project> [downsample]
+              ImgNormCli shard <project> <outputDir> <shardIndex> <shardCount>
+              ImgNormCli merge <project> <outputDir>
+              ImgNormCli calibrate <project>
+            Options:
+              --tile-size <pixels>          side length of the tiles normalized at a time
+              --processes <count>           normalization processes run at the same time
+              --image-concurrency <count>   images opened, tiled or stitched at the same time
+              --memory-budget-mb <MB>       memory that images processed at the same time may use
+              --scratch <dir>               directory for intermediate tiles, e.g. on a local disk
+              --scratch-budget-gb <GB>      disk space that intermediate tiles may use
+              --store <dir>                 shared output store of normalized images to reuse
+              --engine <command>            command running the normalization engine
+              --transfer-detections         copy detections along with the annotations
+              --no-reuse-stain-vectors      estimate stain vectors even if a draft saved them""";
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    private static int run(String[] args) {
+        CompletableFuture<List<ImgNormResult>> future;
+        try {
+            List<String> operands = new ArrayList<>(List.of(args));
+            ImgNormOptions options = parseOptions(operands);
+            String command = operands.isEmpty() ? "" : operands.get(0);
+            if (operands.size() == 2 && command.equals("calibrate"))
+                return calibrate(new File(operands.get(1)), options);
+            else if (operands.size() == 2 && command.equals("normalize"))
+                future = ImgNorm.normalizeProject(new File(operands.get(1)), options);
+            else if ((operands.size() == 2 || operands.size() == 3) && command.equals("draft")) {
+                double downsample = operands.size() == 3 ? Double.parseDouble(operands.get(2)) : ImgNormOptions.DEFAULT_DRAFT_DOWNSAMPLE;
+                if (!(downsample > 1))
+                    throw new IllegalArgumentException("The draft downsample must be greater than 1");
+                options.setDraftDownsample(downsample);
+                future = ImgNorm.normalizeProject(new File(operands.get(1)), options);
+            } else if (operands.size() == 5 && command.equals("shard"))
+                future = ImgNorm.normalizeShard(new File(operands.get(1)), new File(operands.get(2)),
+                        Integer.parseInt(operands.get(3)), Integer.parseInt(operands.get(4)), options);
+            else if (operands.size() == 3 && command.equals("merge"))
+                future = ImgNorm.mergeShards(new File(operands.get(1)), new File(operands.get(2)), options);
+            else {
+                System.err.println(USAGE);
+                return 2;
+            }
+        } catch (IllegalArgumentException e) { // includes NumberFormatException
+            System.err.println(e.getMessage() + "\n" + USAGE);
+            return 2;
+        } catch (Exception e) {
+            logger.error("ImgNorm run could not be started: " + e.getMessage(), e);
+            return 1;
+        }
+
+        try {
+            List<ImgNormResult> results = future.join();
+            results.forEach(result -> logger.info("{}", result));
+            return results.stream().anyMatch(result -> result.status() == ImgNormResult.Status.FAILED) ? 1 : 0;
+        } catch (Exception e) {
+            logger.error("ImgNorm run aborted: " + e.getMessage(), e);
+            return 1;
+        }
+    }
+
+    /**
+     * Remove the options from the arguments, and apply them to the defaults of {@link ImgNormOptions}.
+     *
+     * @param args the arguments, which are left with the command and its operands
+     * @return the options
+     * @throws IllegalArgumentException if an option is unknown or its value is missing or invalid
+     */
+    static ImgNormOptions parseOptions(List<String> args) {
+        ImgNormOptions options = new ImgNormOptions();
+        ListIterator<String> iterator = args.listIterator();
+        while (iterator.hasNext()) {
+            String option = iterator.next();
+            if (!option.startsWith("--")) continue;
+            iterator.remove();
+            switch (option) {
+                case "--tile-size" -> options.setTileSizePixels(Integer.parseInt(nextValue(iterator, option)));
+                case "--processes" -> options.setNormalizationProcesses(Integer.parseInt(nextValue(iterator, option)));
+                case "--image-concurrency" -> options.setImageConcurrency(Integer.parseInt(nextValue(iterator, option)));
+                case "--memory-budget-mb" -> options.setMemoryBudgetBytes(Long.parseLong(nextValue(iterator, option)) * 1024*1024);
+                case "--scratch" -> options.setScratchDir(new File(nextValue(iterator, option)));
+                case "--scratch-budget-gb" -> options.setScratchBudgetBytes(Long.parseLong(nextValue(iterator, option)) * 1024*1024*1024);
+                case "--store" -> options.setSharedStoreDir(new File(nextValue(iterator, option)));
+                case "--engine" -> options.setEngineCommand(List.of(nextValue(iterator, option).strip().split("\\s+")));
+                case "--transfer-detections" -> options.setTransferDetections(true);
+                case "--no-reuse-stain-vectors" -> options.setReuseStainVectors(false);
+                default -> throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        return options;
+    }
+
+    private static String nextValue(ListIterator<String> iterator, String option) {
+        if (!iterator.hasNext())
+            throw new IllegalArgumentException("Missing value for " + option);
+        String value = iterator.next();
+        iterator.remove();
+        return value;
+    }
+
+    private static int calibrate(File projectFile, ImgNormOptions options) {
+        try {
+            ImgNormCalibration.Result result = ImgNormCalibration.calibrate(ProjectIO.loadProject(projectFile, BufferedImage.class),
+                    options, logger::info);
+            logger.info("Best throughput on this computer with tiles of {} pixels and {} normalization process(es): " +
+                            "pass --tile-size {} --processes {} to later runs",
+                    result.tileSizePixels(), result.normalizationProcesses(), result.tileSizePixels(), result.normalizationProcesses());
+            return 0;
+        } catch (Exception e) {
+            logger.error("Calibration failed: " + e.getMessage(), e);
+            return 1;
+        }
+    }
+
+}
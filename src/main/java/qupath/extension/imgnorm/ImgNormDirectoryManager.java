@@ -2,6 +2,8 @@ package qupath.extension.imgnorm;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -19,15 +21,86 @@ public class ImgNormDirectoryManager {
     private File imgTempDir;
     private File newProjDir;
     private File imgFinalDir;
+    private File claimsDir;
     static final Logger logger = LoggerFactory.getLogger(ImgNormDirectoryManager.class);
 
     public ImgNormDirectoryManager(File projectDir) throws IOException {
-        this.mainDir = createUniqueDirectory(projectDir.toString(), "normalized");
-        this.imgTempDir =  createUniqueDirectory(this.mainDir.toString(), "img_temp");
+        this(projectDir, null);
+    }
+
+    /**
+     * @param   projectDir
+     *          the project directory, which the outputs are written in
+     * @param   scratchRoot
+     *          directory to write the intermediate tiles in (e.g., a local SSD), or null to use the output directory
+     */
+    public ImgNormDirectoryManager(File projectDir, File scratchRoot) throws IOException {
+        this(projectDir, scratchRoot, "normalized");
+    }
+
+    /**
+     * @param   projectDir
+     *          the project directory, which the outputs are written in
+     * @param   scratchRoot
+     *          directory to write the intermediate tiles in (e.g., a local SSD), or null to use the output directory
+     * @param   mainDirName
+     *          name of the output directory in the project directory (made unique if needed)
+     */
+    public ImgNormDirectoryManager(File projectDir, File scratchRoot, String mainDirName) throws IOException {
+        this.mainDir = createUniqueDirectory(projectDir.toString(), mainDirName);
+        this.imgTempDir = scratchRoot == null
+                ? createUniqueDirectory(this.mainDir.toString(), "img_temp")
+                : createUniqueDirectory(Files.createDirectories(scratchRoot.toPath()).toString(), "imgnorm_temp");
         this.newProjDir =  createUniqueDirectory(this.mainDir.toString(), "QuPath_project");
         this.imgFinalDir = createUniqueDirectory(this.mainDir.toString(), "img_final");
     }
 
+    private ImgNormDirectoryManager() {}
+
+    /**
+     * Directories for one worker of a sharded run over a shared output directory. The normalized
+     * images and the claims are shared between all workers, while each worker tiles into its own
+     * temporary directory. No project is created; see {@link #forMerge(File)}.
+     *
+     * @param   sharedDir
+     *          the shared output directory
+     * @param   workerName
+     *          name of the worker's temporary directory (made unique if needed)
+     * @param   scratchRoot
+     *          directory to write the intermediate tiles in (e.g., a local SSD), or null to use the shared output directory
+     *
+     * @return  the directory manager
+     */
+    public static ImgNormDirectoryManager forShardWorker(File sharedDir, String workerName, File scratchRoot) throws IOException {
+        ImgNormDirectoryManager dirManager = createShared(sharedDir);
+        File workDir = scratchRoot == null ? sharedDir : scratchRoot;
+        dirManager.imgTempDir = createUniqueDirectory(Files.createDirectories(workDir.toPath().resolve("work")).toString(), workerName);
+        return dirManager;
+    }
+
+    /**
+     * Directories for merging the results of a sharded run into a new project.
+     *
+     * @param   sharedDir
+     *          the shared output directory
+     *
+     * @return  the directory manager
+     */
+    public static ImgNormDirectoryManager forMerge(File sharedDir) throws IOException {
+        ImgNormDirectoryManager dirManager = createShared(sharedDir);
+        dirManager.newProjDir = createUniqueDirectory(sharedDir.toString(), "QuPath_project");
+        return dirManager;
+    }
+
+    private static ImgNormDirectoryManager createShared(File sharedDir) throws IOException {
+        // Every worker uses the same fixed directories, so creating them must be idempotent
+        ImgNormDirectoryManager dirManager = new ImgNormDirectoryManager();
+        dirManager.mainDir = Files.createDirectories(sharedDir.toPath()).toFile();
+        dirManager.imgFinalDir = Files.createDirectories(sharedDir.toPath().resolve("img_final")).toFile();
+        dirManager.claimsDir = Files.createDirectories(sharedDir.toPath().resolve("claims")).toFile();
+        return dirManager;
+    }
+
 
     /**
      * Makes a new directory inside a specified path.
@@ -43,11 +116,14 @@ public class ImgNormDirectoryManager {
         Path path = Paths.get(parentDir, dirName);
         int counter = 0;
 
-        while (Files.exists(path)) {
-            counter++;
-            path = Paths.get(parentDir, dirName + counter);
+        while (true) {
+            try {
+                return Files.createDirectory(path).toFile();
+            } catch (FileAlreadyExistsException e) { // possibly created by another process in the meantime
+                counter++;
+                path = Paths.get(parentDir, dirName + counter);
+            }
         }
-        return Files.createDirectory(path).toFile();
     }
 
     /**
@@ -79,6 +155,22 @@ public class ImgNormDirectoryManager {
         return success.get();
     }
 
+    /**
+     * Get the total size of the files in a directory and its subdirectories
+     *
+     * @param   dir
+     *          the directory
+     *
+     * @return  the size in bytes, or 0 if the directory cannot be read
+     */
+    public static long getDirectorySize(File dir) {
+        try (Stream<Path> walk = Files.walk(dir.toPath())) {
+            return walk.map(Path::toFile).filter(File::isFile).mapToLong(File::length).sum();
+        } catch (IOException | UncheckedIOException e) {
+            return 0;
+        }
+    }
+
     public File getMainDir() {
         return this.mainDir;
     }
@@ -91,5 +183,12 @@ public class ImgNormDirectoryManager {
     public File getImgFinalDir() {
         return this.imgFinalDir;
     }
+    /**
+     * @return the directory of per-image claims shared between the workers of a sharded run,
+     *         or null if the run is not sharded
+     */
+    public File getClaimsDir() {
+        return this.claimsDir;
+    }
 
 }
@@ -0,0 +1,98 @@
+package qupath.extension.imgnorm;
+
+import qupath.lib.images.servers.AbstractImageServer;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.stream.DoubleStream;
+
+/**
+ * Read-only image server presenting another server at a fixed downsample, for draft runs.
+ * <p>
+ * A region request is forwarded to the wrapped server at the draft downsample times the requested
+ * downsample, so pixels are read from the closest pyramid level of the original image rather than
+ * from its full resolution. The pyramid levels of this server are those of the original image that
+ * are at least as coarse as the draft downsample.
+ */
+class ImgNormDraftServer extends AbstractImageServer<BufferedImage> {
+
+    private final ImageServer<BufferedImage> server;
+    private final double draftDownsample;
+    private final ImageServerMetadata metadata;
+
+    /**
+     * @param server the server to wrap
+     * @param draftDownsample the downsample to present it at
+     */
+    ImgNormDraftServer(ImageServer<BufferedImage> server, double draftDownsample) {
+        super(BufferedImage.class);
+        this.server = server;
+        this.draftDownsample = draftDownsample;
+
+        ImageServerMetadata original = server.getMetadata();
+        double[] downsamples = DoubleStream.concat(DoubleStream.of(1),
+                        Arrays.stream(original.getPreferredDownsamplesArray())
+                                .map(downsample -> downsample / draftDownsample)
+                                .filter(downsample -> downsample > 1.01))
+                .toArray();
+        PixelCalibration calibration = original.getPixelCalibration();
+        ImageServerMetadata.Builder builder = new ImageServerMetadata.Builder(original)
+                .name(original.getName())
+                .width((int)Math.max(1, Math.round(original.getWidth() / draftDownsample)))
+                .height((int)Math.max(1, Math.round(original.getHeight() / draftDownsample)))
+                .levelsFromDownsamples(downsamples);
+        if (calibration.hasPixelSizeMicrons())
+            builder.pixelSizeMicrons(calibration.getPixelWidthMicrons() * draftDownsample,
+                    calibration.getPixelHeightMicrons() * draftDownsample);
+        this.metadata = builder.build();
+    }
+
+    @Override
+    public BufferedImage readRegion(RegionRequest request) throws IOException {
+        int x = (int)Math.floor(request.getX() * draftDownsample);
+        int y = (int)Math.floor(request.getY() * draftDownsample);
+        int width = (int)Math.min(server.getWidth() - x, Math.round(request.getWidth() * draftDownsample));
+        int height = (int)Math.min(server.getHeight() - y, Math.round(request.getHeight() * draftDownsample));
+        return server.readRegion(RegionRequest.createInstance(server.getPath(), request.getDownsample() * draftDownsample,
+                x, y, width, height, request.getZ(), request.getT()));
+    }
+
+    @Override
+    protected ServerBuilder<BufferedImage> createServerBuilder() {
+        return null; // Only used transiently to tile a draft run, so never serialized
+    }
+
+    @Override
+    protected String createID() {
+        return getClass().getName() + ": " + server.getPath() + " @" + draftDownsample;
+    }
+
+    @Override
+    public Collection<URI> getURIs() {
+        return server.getURIs();
+    }
+
+    @Override
+    public String getServerType() {
+        return "ImgNorm draft (" + server.getServerType() + ")";
+    }
+
+    @Override
+    public ImageServerMetadata getOriginalMetadata() {
+        return metadata;
+    }
+
+    @Override
+    public void close() throws Exception {
+        server.close();
+    }
+
+}
@@ -0,0 +1,308 @@
+package qupath.extension.imgnorm;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extracts the normalization engine bundled with the extension into a cache directory, where it is
+ * reused by every run (and every JVM) of the same version of the extension.
+ * <p>
+ * Two layouts are supported, tried in this order:
+ * <ul>
+ *     <li>{@code python/imgNorm/dist/main-<platform>.zip}: a zip of the contents of a PyInstaller
+ *     one-dir build ({@code pyinstaller --onedir main.py}, i.e. {@code dist/main}), with {@code <platform>}
+ *     one of {@code windows}, {@code mac} or {@code linux}. The libraries are unpacked once, so each
+ *     engine process starts without unpacking NumPy and OpenCV again;</li>
+ *     <li>{@code python/imgNorm/dist/main.exe} (Windows) or {@code python/imgNorm/dist/main} (macOS): a
+ *     PyInstaller one-file build, which unpacks itself every time it is started.</li>
+ * </ul>
+ * The cache directory of the engine is named after the version of the extension and the SHA-256 of the
+ * bundled resource, and holds the SHA-256 of every extracted file, which are checked once per JVM before
+ * the engine is used. A corrupted or incomplete extraction is replaced, and extractions by concurrent JVMs
+ * are written to their own directory before being moved into place.
+ */
+final class ImgNormEngine {
+
+    static final Logger logger = LoggerFactory.getLogger(ImgNormEngine.class);
+    private static final String RESOURCE_DIR = "python/imgNorm/dist/";
+    private static final String CHECKSUMS_FILE = "checksums.sha256";
+    private static final Duration UNUSED_VERSION_AGE = Duration.ofDays(30);
+
+    private static List<String> command = null; // verified in this JVM
+    private static String bundledIdentity = null;
+
+    private ImgNormEngine() {}
+
+    /**
+     * @return the command running the bundled engine, extracted if needed
+     * @throws IOException if there is no engine bundled for this platform, or it cannot be extracted
+     */
+    static synchronized List<String> getCommand() throws IOException {
+        if (command != null && new File(command.get(0)).canExecute())
+            return command;
+
+        String platform = getPlatform();
+        String resource = getResource();
+        boolean zipped = resource.endsWith(".zip");
+
+        Path cacheRoot = getCacheRoot();
+        Path engineDir = cacheRoot.resolve(ImgNormExtension.VERSION + "-" + sha256(resource).substring(0, 16));
+        String executableName = platform.equals("windows") ? "main.exe" : "main";
+
+        if (!Files.isDirectory(engineDir) || !verify(engineDir)) {
+            if (Files.exists(engineDir)) {
+                logger.warn("Cached normalization engine in {} is incomplete or corrupted, extracting it again", engineDir);
+                ImgNormDirectoryManager.deleteDirectory(engineDir.toFile());
+            }
+            extract(resource, zipped, executableName, engineDir);
+        }
+        pruneUnusedVersions(cacheRoot, engineDir);
+
+        File executable = engineDir.resolve(executableName).toFile();
+        if (!executable.canExecute())
+            throw new FileNotFoundException("The bundled normalization engine has no executable " + executable);
+        logger.info("Using normalization engine in {}", engineDir);
+        command = List.of(executable.getAbsolutePath());
+        return command;
+    }
+
+    /**
+     * Identify the engine that a command runs, so that outputs of different engines (or of different
+     * versions of the same engine) are never mistaken for one another.
+     * <p>
+     * The bundled engine is identified by the SHA-256 of its resource. An engine command set in the options
+     * is identified by the command itself and the SHA-256 of every file it names, along with the other Python
+     * files next to any Python script it names (e.g., {@code img_norm_tools.py} for {@code python3 main.py}).
+     *
+     * @param engineCommand the engine command set in the options, or null for the bundled engine
+     * @return the identity, as a string
+     * @throws IOException if the engine cannot be read
+     */
+    static String getIdentity(List<String> engineCommand) throws IOException {
+        if (engineCommand == null) {
+            synchronized (ImgNormEngine.class) {
+                if (bundledIdentity == null)
+                    bundledIdentity = "bundled:" + sha256(getResource());
+                return bundledIdentity;
+            }
+        }
+        StringBuilder identity = new StringBuilder("command:").append(String.join(" ", engineCommand));
+        Map<String, String> checksums = new LinkedHashMap<>();
+        for (String argument : engineCommand) {
+            Path file = Path.of(argument).toAbsolutePath().normalize();
+            if (!Files.isRegularFile(file)) continue;
+            checksums.put(file.toString(), sha256(file));
+            if (file.toString().endsWith(".py")) {
+                try (Stream<Path> siblings = Files.list(file.getParent())) {
+                    for (Path sibling : siblings.filter(path -> path.toString().endsWith(".py")).sorted().toList())
+                        checksums.putIfAbsent(sibling.toString(), sha256(sibling));
+                }
+            }
+        }
+        checksums.forEach((file, checksum) -> identity.append('\n').append(checksum).append("  ").append(file));
+        return identity.toString();
+    }
+
+    /**
+     * @return the resource of the engine bundled for this platform
+     * @throws FileNotFoundException if no engine is bundled for this platform
+     */
+    private static String getResource() throws FileNotFoundException {
+        String platform = getPlatform();
+        String resource = RESOURCE_DIR + "main-" + platform + ".zip";
+        if (ImgNormEngine.class.getClassLoader().getResource(resource) != null)
+            return resource;
+        resource = RESOURCE_DIR + (platform.equals("windows") ? "main.exe" : "main");
+        if (platform.equals("linux") || ImgNormEngine.class.getClassLoader().getResource(resource) == null)
+            throw new FileNotFoundException("No normalization engine is bundled for this platform " +
+                    "(set the engine command in the options instead).");
+        return resource;
+    }
+
+    private static String getPlatform() {
+        String os = System.getProperty("os.name").toLowerCase();
+        if (os.contains("windows")) return "windows";
+        if (os.contains("mac")) return "mac";
+        return "linux";
+    }
+
+    /**
+     * @return the directory the engines are cached in, in the user's home directory if possible
+     */
+    private static Path getCacheRoot() throws IOException {
+        try {
+            return Files.createDirectories(Path.of(System.getProperty("user.home"), ".imgnorm", "engine"));
+        } catch (IOException | SecurityException e) {
+            logger.debug("Cannot use the home directory for the engine cache: {}", e.getMessage());
+            return Files.createDirectories(Path.of(System.getProperty("java.io.tmpdir"), "imgnorm-engine"));
+        }
+    }
+
+    /**
+     * Extract the resource into a directory of its own, record the checksums of its files,
+     * and move it into place.
+     */
+    private static void extract(String resource, boolean zipped, String executableName, Path engineDir) throws IOException {
+        logger.info("Extracting normalization engine to {}", engineDir);
+        Path extractDir = Files.createDirectory(engineDir.resolveSibling(engineDir.getFileName() + ".tmp-" + UUID.randomUUID()));
+        try {
+            try (InputStream stream = ImgNormEngine.class.getClassLoader().getResourceAsStream(resource)) {
+                if (stream == null)
+                    throw new FileNotFoundException("Engine resource not found: " + resource);
+                if (zipped)
+                    unzip(stream, extractDir);
+                else
+                    Files.copy(stream, extractDir.resolve(executableName));
+            }
+            extractDir.resolve(executableName).toFile().setExecutable(true);
+
+            Map<String, String> checksums = computeChecksums(extractDir);
+            try (BufferedWriter writer = Files.newBufferedWriter(extractDir.resolve(CHECKSUMS_FILE), StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, String> entry : checksums.entrySet()) {
+                    writer.write(entry.getValue() + "  " + entry.getKey());
+                    writer.newLine();
+                }
+            }
+
+            try {
+                Files.move(extractDir, engineDir, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(extractDir, engineDir);
+            } catch (IOException e) {
+                if (!Files.isDirectory(engineDir)) throw e;
+                logger.debug("Normalization engine was extracted by another process");
+            }
+        } finally {
+            if (Files.exists(extractDir))
+                ImgNormDirectoryManager.deleteDirectory(extractDir.toFile());
+        }
+        if (!verify(engineDir))
+            throw new IOException("The normalization engine extracted to " + engineDir + " is corrupted");
+    }
+
+    private static void unzip(InputStream stream, Path targetDir) throws IOException {
+        boolean executable = !getPlatform().equals("windows");
+        try (ZipInputStream zip = new ZipInputStream(stream)) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                Path target = targetDir.resolve(entry.getName()).normalize();
+                if (!target.startsWith(targetDir))
+                    throw new IOException("Invalid entry in engine archive: " + entry.getName());
+                if (entry.isDirectory()) {
+                    Files.createDirectories(target);
+                } else {
+                    Files.createDirectories(target.getParent());
+                    Files.copy(zip, target);
+                    // Zip entries do not keep the permissions, and the libraries may need to be executable too
+                    if (executable) target.toFile().setExecutable(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if every file listed in the checksums of an engine directory is present and unchanged
+     */
+    private static boolean verify(Path engineDir) throws IOException {
+        Path checksumsFile = engineDir.resolve(CHECKSUMS_FILE);
+        if (!Files.isRegularFile(checksumsFile))
+            return false;
+        Map<String, String> expected = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(checksumsFile, StandardCharsets.UTF_8)) {
+            int separator = line.indexOf("  ");
+            if (separator > 0)
+                expected.put(line.substring(separator + 2), line.substring(0, separator));
+        }
+        try {
+            return !expected.isEmpty() && expected.equals(computeChecksums(engineDir));
+        } catch (IOException e) {
+            logger.debug("Cannot verify {}: {}", engineDir, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return the SHA-256 of each file in a directory (except the checksums themselves), by relative path
+     */
+    private static Map<String, String> computeChecksums(Path dir) throws IOException {
+        Map<String, String> checksums = new LinkedHashMap<>();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.filter(Files::isRegularFile).sorted().toList()) {
+                String relativePath = dir.relativize(file).toString().replace(File.separatorChar, '/');
+                if (relativePath.equals(CHECKSUMS_FILE)) continue;
+                checksums.put(relativePath, sha256(file));
+            }
+        }
+        return checksums;
+    }
+
+    private static String sha256(String resource) throws IOException {
+        try (InputStream stream = ImgNormEngine.class.getClassLoader().getResourceAsStream(resource)) {
+            if (stream == null)
+                throw new FileNotFoundException("Engine resource not found: " + resource);
+            return sha256(stream);
+        }
+    }
+
+    static String sha256(Path file) throws IOException {
+        try (InputStream stream = Files.newInputStream(file)) {
+            return sha256(stream);
+        }
+    }
+
+    private static String sha256(InputStream stream) throws IOException {
+        try {
+            DigestInputStream digestStream = new DigestInputStream(stream, MessageDigest.getInstance("SHA-256"));
+            digestStream.transferTo(OutputStream.nullOutputStream());
+            return HexFormat.of().formatHex(digestStream.getMessageDigest().digest());
+        } catch (NoSuchAlgorithmException e) { // every JVM supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Delete the engines of other versions that have not been used for a while, as a version is never
+     * used again once the extension has been updated (unless several versions are installed).
+     */
+    private static void pruneUnusedVersions(Path cacheRoot, Path engineDir) {
+        Instant cutoff = Instant.now().minus(UNUSED_VERSION_AGE);
+        try {
+            Files.setLastModifiedTime(engineDir, FileTime.from(Instant.now()));
+            try (Stream<Path> dirs = Files.list(cacheRoot)) {
+                for (Path dir : dirs.filter(Files::isDirectory).filter(dir -> !dir.equals(engineDir)).toList()) {
+                    if (Files.getLastModifiedTime(dir).toInstant().isBefore(cutoff))
+                        ImgNormDirectoryManager.deleteDirectory(dir.toFile());
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Cannot prune the engine cache: {}", e.getMessage());
+        }
+    }
+
+}
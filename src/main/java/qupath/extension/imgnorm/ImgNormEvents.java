@@ -0,0 +1,130 @@
+package qupath.extension.imgnorm;
+
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder events for tracing a run tile by tile. They cost next to nothing unless a
+ * recording is running, so a slow run can be traced as is, e.g. by starting QuPath with
+ * {@code -XX:StartFlightRecording:filename=imgnorm.jfr}, or with {@code jcmd <pid> JFR.start}.
+ * <p>
+ * Coordinates are in full-resolution pixels, and byte counts are of uncompressed RGB pixels unless
+ * stated otherwise.
+ */
+final class ImgNormEvents {
+
+    private static final String CATEGORY = "ImgNorm";
+
+    private ImgNormEvents() {}
+
+    /**
+     * Base of the events for a region of an image.
+     */
+    abstract static class RegionEvent extends Event {
+        @Label("Image")
+        String imageName;
+        @Label("X")
+        int x;
+        @Label("Y")
+        int y;
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        void setRegion(String imageName, int x, int y, int width, int height, long bytes) {
+            this.imageName = imageName;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.bytes = bytes;
+        }
+    }
+
+    @Name("qupath.imgnorm.TileRead")
+    @Label("Tile Read")
+    @Description("A tile (or the reference image) read from the original image")
+    @Category({"QuPath", CATEGORY, "Tiling"})
+    static class TileRead extends RegionEvent {
+        @Label("Downsample")
+        double downsample;
+    }
+
+    @Name("qupath.imgnorm.TileMask")
+    @Label("Tile Mask")
+    @Description("Masking a tile by the Ignore* annotations")
+    @Category({"QuPath", CATEGORY, "Tiling"})
+    static class TileMask extends RegionEvent {
+        @Label("Shading")
+        String shading;
+        @Label("Masked")
+        @Description("Whether the Ignore* annotations overlap the tile, so that any of it was masked")
+        boolean masked;
+    }
+
+    @Name("qupath.imgnorm.TileEncode")
+    @Label("Tile Encode")
+    @Description("A tile encoded and written to scratch (bytes are of the written file)")
+    @Category({"QuPath", CATEGORY, "Tiling"})
+    static class TileEncode extends RegionEvent {}
+
+    @Name("qupath.imgnorm.TileLink")
+    @Label("Tile Link")
+    @Description("A tile linked from an earlier tiling of the same image file instead of being written")
+    @Category({"QuPath", CATEGORY, "Tiling"})
+    static class TileLink extends RegionEvent {}
+
+    @Name("qupath.imgnorm.PatchNormalize")
+    @Label("Patch Normalize")
+    @Description("A patch normalized by the engine, timed from the engine's output (bytes are of the patch file)")
+    @Category({"QuPath", CATEGORY, "Normalization"})
+    static class PatchNormalize extends RegionEvent {
+        @Label("Worker")
+        int worker;
+        @Label("Skipped")
+        @Description("Whether the patch had been normalized already, e.g. by another attempt")
+        boolean skipped;
+    }
+
+    @Name("qupath.imgnorm.WorkerProcess")
+    @Label("Worker Process")
+    @Description("The lifetime of a normalization engine process")
+    @Category({"QuPath", CATEGORY, "Normalization"})
+    static class WorkerProcess extends Event {
+        @Label("Image")
+        String imageName;
+        @Label("Worker")
+        int worker;
+        @Label("PID")
+        long pid;
+        @Label("Speculative")
+        boolean speculative;
+        @Label("Exit Code")
+        int exitCode;
+        @Label("Outcome")
+        @Description("completed, failed, stalled, superseded or cancelled")
+        String outcome;
+    }
+
+    @Name("qupath.imgnorm.PatchDecode")
+    @Label("Patch Decode")
+    @Description("A normalized patch decoded for stitching")
+    @Category({"QuPath", CATEGORY, "Stitching"})
+    static class PatchDecode extends RegionEvent {}
+
+    @Name("qupath.imgnorm.PyramidTile")
+    @Label("Pyramid Tile")
+    @Description("A tile of a pyramid level of the stitched image, requested by the pyramid writer")
+    @Category({"QuPath", CATEGORY, "Stitching"})
+    static class PyramidTile extends RegionEvent {
+        @Label("Downsample")
+        double downsample;
+        @Label("From Cascade")
+        @Description("Whether the tile was derived from the level above rather than read from the patches")
+        boolean fromCascade;
+    }
+
+}
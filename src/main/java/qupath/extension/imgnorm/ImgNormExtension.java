@@ -3,12 +3,13 @@ package qupath.extension.imgnorm;
 import javafx.application.Platform;
 import javafx.scene.control.MenuItem;
 import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.dialogs.Dialogs;
 import qupath.lib.gui.extensions.GitHubProject;
 import qupath.lib.gui.extensions.QuPathExtension;
 import java.util.concurrent.CompletableFuture;
 
 public class ImgNormExtension implements QuPathExtension, GitHubProject {
-    private static final String VERSION = "0.1.1";
+    static final String VERSION = "0.1.1";
 
     @Override
     public void installExtension(QuPathGUI qupath) {
@@ -16,22 +17,59 @@ public class ImgNormExtension implements QuPathExtension, GitHubProject {
         var menu = qupath.getMenu("Extensions>ImgNorm", true);
         MenuItem menuItem = new MenuItem("Normalize H&E images");
         ImgNormRunner imgNormRunner = new ImgNormRunner(qupath);
+        MenuItem draftItem = new MenuItem("Draft preview (low resolution)...");
+        ImgNormRunner draftRunner = new ImgNormRunner(qupath, true);
 
-        menuItem.setOnAction(e -> {
+        // Full and draft runs share the project and the engine, so neither can be started while the other runs
+        menuItem.setOnAction(e -> CompletableFuture.runAsync(() -> {
+            Platform.runLater(() -> { menuItem.setDisable(true); draftItem.setDisable(true); });
+        }).thenRunAsync(imgNormRunner).whenComplete((result, ex) -> {
+            Platform.runLater(() -> { menuItem.setDisable(false); draftItem.setDisable(false); });
+        }));
 
-            CompletableFuture<Void> runFuture = CompletableFuture.runAsync(() -> {
-                Platform.runLater(() -> menuItem.setDisable(true));
-            }).thenRunAsync(imgNormRunner).thenRunAsync(() -> {
-                Platform.runLater(() -> menuItem.setDisable(false));
-            }).exceptionally(ex -> {
-                menuItem.setDisable(false);
-                throw new RuntimeException(ex);
-            });
+        draftItem.setOnAction(e -> CompletableFuture.runAsync(() -> {
+            Platform.runLater(() -> { menuItem.setDisable(true); draftItem.setDisable(true); });
+        }).thenRunAsync(draftRunner).whenComplete((result, ex) -> {
+            Platform.runLater(() -> { menuItem.setDisable(false); draftItem.setDisable(false); });
+        }));
 
-        });
+        MenuItem settingsItem = new MenuItem("Settings...");
+        settingsItem.setOnAction(e -> ImgNormPreferences.showSettingsDialog());
 
-        menu.getItems().add(menuItem);
+        MenuItem calibrateItem = new MenuItem("Calibrate for this computer...");
+        calibrateItem.setOnAction(e -> calibrate(qupath, calibrateItem));
 
+        menu.getItems().addAll(menuItem, draftItem, calibrateItem, settingsItem);
+
+    }
+
+    private static void calibrate(QuPathGUI qupath, MenuItem calibrateItem) {
+        var project = qupath.getProject();
+        if (project == null) {
+            Dialogs.showErrorMessage("Error", "Please make sure a project is loaded!");
+            return;
+        }
+        if (!Dialogs.showYesNoDialog("Calibrate ImgNorm", "Time ImgNorm on a sample of the first H&E image of this project " +
+                "to find the best tile size and number of normalization processes for this computer?\n\n" +
+                "This may take a few minutes."))
+            return;
+
+        calibrateItem.setDisable(true);
+        new Thread(() -> {
+            try {
+                ImgNormCalibration.Result result = ImgNormCalibration.calibrate(project, ImgNormPreferences.createOptions(),
+                        message -> Platform.runLater(() -> Dialogs.showInfoNotification("ImgNorm calibration", message)));
+                ImgNormPreferences.saveCalibration(result);
+                Platform.runLater(() -> Dialogs.showMessageDialog("ImgNorm calibration",
+                        "Tiles of " + result.tileSizePixels() + " pixels and " + result.normalizationProcesses() +
+                                " normalization process(es) will be used from now on."));
+            } catch (Exception ex) {
+                ImgNormCalibration.logger.error("Calibration failed: " + ex.getMessage(), ex);
+                Platform.runLater(() -> Dialogs.showErrorMessage("ImgNorm calibration", "Calibration failed: " + ex.getMessage()));
+            } finally {
+                Platform.runLater(() -> calibrateItem.setDisable(false));
+            }
+        }, "imgnorm-calibration").start();
     }
 
     @Override
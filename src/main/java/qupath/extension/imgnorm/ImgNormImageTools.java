@@ -11,7 +11,6 @@ import qupath.lib.objects.PathObjects;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.projects.ProjectImageEntry;
 import qupath.lib.regions.ImagePlane;
-import qupath.lib.regions.ImageRegion;
 import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.GeometryTools;
 import qupath.lib.roi.ROIs;
@@ -25,12 +24,10 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import qupath.lib.images.servers.SparseImageServer;
-import qupath.lib.images.servers.ImageServerProvider;
-import qupath.lib.images.servers.ImageServers;
-
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -42,13 +39,72 @@ public class ImgNormImageTools {
 
     static final Logger logger = LoggerFactory.getLogger(ImgNormImageTools.class);
     private static final int MAX_REFERENCE_IMAGE_PIXELS = 7000*7000;
+    private static final int PYRAMID_TILE_SIZE = 512;
+    private static final int READ_CHUNK_PIXELS = 1024; // largest region read from the server at once when tiling
+    private static final long PATCH_CACHE_BYTES = Runtime.getRuntime().maxMemory() / 4; // decoded patches kept in memory while stitching
+    private static final int THUMBNAIL_WIDTH = 1000, THUMBNAIL_HEIGHT = 600; // as in QuPath's project browser
+    static final String NORMALIZED_PATCH_DIR = "norm"; // written by the normalization engine next to the original patches
+    private static final String PARTIAL_IMAGE_SUFFIX = ".partial.ome.tiff"; // still being stitched
     private static final Geometry watermarkGeometry = WKTLoader.getGeometryFromResource("geometries/watermarks/excludedText.wkt");
     private static final Geometry watermarkBoundariesGeometry = WKTLoader.getGeometryFromResource("geometries/watermarks/excludedTextBoundaries.wkt");
-    private enum Shading {
+    enum Shading {
         BLACK, HATCHED, WATERMARKED
     }
 
     public static void writeTiles(ImageData<BufferedImage> imageData, File outputDir, int tileSizePx, String baseName) throws IOException, InterruptedException {
+        writeTiles(imageData, getIgnoreRoi(imageData.getHierarchy().getAnnotationObjects()), outputDir, tileSizePx, baseName);
+    }
+
+    /**
+     * Write the tiles and reference image of an image, masking out the area of the Ignore* annotations.
+     *
+     * @param imageData the image data
+     * @param ignoreRoi union of the Ignore* annotations' ROIs, see {@link #getIgnoreRoi(Collection)}
+     * @param outputDir the directory to create the image's tile directory in
+     * @param tileSizePx the length of the square tile in pixels
+     * @param baseName name of the image's tile directory
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void writeTiles(ImageData<BufferedImage> imageData, ROI ignoreRoi, File outputDir, int tileSizePx, String baseName) throws IOException, InterruptedException {
+        writeTiles(imageData, ignoreRoi, outputDir, tileSizePx, baseName, null);
+    }
+
+    /**
+     * Write the tiles and reference image of an image, masking out the area of the Ignore* annotations.
+     * Tiles that are unmasked both here and in an earlier tiling of the same image file are linked
+     * from that tiling instead of being read and encoded again.
+     *
+     * @param imageData the image data
+     * @param ignoreRoi union of the Ignore* annotations' ROIs, see {@link #getIgnoreRoi(Collection)}
+     * @param outputDir the directory to create the image's tile directory in
+     * @param tileSizePx the length of the square tile in pixels
+     * @param baseName name of the image's tile directory
+     * @param tileSource an earlier tiling of the same image file with the same tile size, or null
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void writeTiles(ImageData<BufferedImage> imageData, ROI ignoreRoi, File outputDir, int tileSizePx, String baseName,
+                                  TileSource tileSource) throws IOException, InterruptedException {
+        writeTiles(imageData, ignoreRoi, outputDir, tileSizePx, baseName, tileSource, null);
+    }
+
+    /**
+     * Write the tiles and reference image of an image, as {@link #writeTiles(ImageData, ROI, File, int, String, TileSource)},
+     * timing the reference image in the stats of a run.
+     *
+     * @param imageData the image data
+     * @param ignoreRoi union of the Ignore* annotations' ROIs, see {@link #getIgnoreRoi(Collection)}
+     * @param outputDir the directory to create the image's tile directory in
+     * @param tileSizePx the length of the square tile in pixels
+     * @param baseName name of the image's tile directory
+     * @param tileSource an earlier tiling of the same image file with the same tile size, or null
+     * @param stats the stats of the run, or null
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void writeTiles(ImageData<BufferedImage> imageData, ROI ignoreRoi, File outputDir, int tileSizePx, String baseName,
+                                  TileSource tileSource, ImgNormRunStats stats) throws IOException, InterruptedException {
         // Get server associated with the ImageData
         var server = imageData.getServer();
 
@@ -63,51 +119,65 @@ public class ImgNormImageTools {
 
             logger.info("Writing patches for " + baseName + " ...");
 
-            ROI ignoreRoi = RoiTools.union(imageData.getHierarchy().getAnnotationObjects().stream()
-                    .filter(annotation -> annotation.getPathClass() == PathClass.fromString("Ignore*"))
-                    .map(PathObject::getROI)
-                    .toList());
-
             if (ignoreRoi.getArea() > 0.0) {
                 tiles/*.parallelStream()*/.forEach(tile -> { // TODO: parallelStream？
+                    checkInterrupted();
                     ROI tileRoi = tile.getROI();
                     RegionRequest region = RegionRequest.createInstance(server.getPath(), 1, tileRoi);
                     String outputPath = "[x-" + region.getMinX() + ",y-" + region.getMinY() + ",w-" + region.getWidth() + ",h-" + region.getHeight() + "]";
                     File file = new File(subDir, outputPath + ".tif");
+                    if (linkSharedTile(tileSource, tileRoi, ignoreRoi, file, baseName)) return;
                     try {
                         BufferedImage imgMasked = createMaskedBufferedImageFromRoi(server, tileRoi, ignoreRoi, 1, Shading.WATERMARKED);
-                        ImageWriterTools.writeImage(imgMasked, file.toString()); // checked exception...
+                        try {
+                            writeTile(imgMasked, file, baseName, region); // checked exception...
+                        } finally {
+                            ImgNormBufferPool.getDefault().release(imgMasked);
+                        }
                     } catch (IOException e){
                         throw new RuntimeException("Error making tiles for " + imageData + " (" + e + ")");
                     }
                 });
             } else {
                 tiles/*.parallelStream()*/.forEach(tile -> { // TODO: parallelStream？
+                    checkInterrupted();
                     ROI tileRoi = tile.getROI();
                     RegionRequest region = RegionRequest.createInstance(server.getPath(), 1, tileRoi);
                     String outputPath = "[x-" + region.getMinX() + ",y-" + region.getMinY() + ",w-" + region.getWidth() + ",h-" + region.getHeight() + "]";
                     File file = new File(subDir, outputPath + ".tif");
+                    if (linkSharedTile(tileSource, tileRoi, ignoreRoi, file, baseName)) return;
                     try {
-                        ImageWriterTools.writeImageRegion(server, region, file.toString()); // checked exception...
+                        BufferedImage img = readTile(server, region);
+                        try {
+                            writeTile(img, file, baseName, region); // checked exception...
+                        } finally {
+                            ImgNormBufferPool.getDefault().release(img);
+                        }
                     } catch (IOException e){
                         throw new RuntimeException("Error making tiles for " + imageData + " (" + e + ")");
                     }
                 });
             }
 
-            System.gc();
+            checkInterrupted();
 
             // Generate a downsampled "reference" image for its stain vectors to be estimated later
             logger.info("Generating reference image...");
             ROI refRoi = borderAnnotation.getROI();
             double downsample = Math.max(1, Math.sqrt(refRoi.getArea()/MAX_REFERENCE_IMAGE_PIXELS));
             File refFile = new File(subDir, "reference.tif");
-            if (ignoreRoi.getArea() > 0.0) {
-                BufferedImage refImgMasked = createMaskedBufferedImageFromRoi(server, refRoi, ignoreRoi, downsample, Shading.BLACK);
-                ImageWriterTools.writeImage(refImgMasked, refFile.toString());
-            } else {
-                RegionRequest refRegion = RegionRequest.createInstance(server.getPath(), downsample, refRoi);
-                ImageWriterTools.writeImageRegion(server, refRegion, refFile.toString());
+            try (var timer = stats == null ? null : stats.start(ImgNormRunStats.Phase.REFERENCE, baseName)) {
+                if (ignoreRoi.getArea() > 0.0) {
+                    BufferedImage refImgMasked = createMaskedBufferedImageFromRoi(server, refRoi, ignoreRoi, downsample, Shading.BLACK);
+                    try {
+                        ImageWriterTools.writeImage(refImgMasked, refFile.toString());
+                    } finally {
+                        ImgNormBufferPool.getDefault().release(refImgMasked);
+                    }
+                } else {
+                    RegionRequest refRegion = RegionRequest.createInstance(server.getPath(), downsample, refRoi);
+                    ImageWriterTools.writeImageRegion(server, refRegion, refFile.toString());
+                }
             }
 
             // Get pixel metadata
@@ -131,6 +201,140 @@ public class ImgNormImageTools {
 
     }
 
+    /**
+     * Stop tiling at the next tile if the thread has been interrupted, i.e., the run has been cancelled.
+     */
+    private static void checkInterrupted() {
+        if (Thread.currentThread().isInterrupted())
+            throw new CancellationException("Tiling was interrupted");
+    }
+
+    /**
+     * An image file's tile directory and the mask it was tiled with, so that later tilings of
+     * the same file can link its unmasked tiles.
+     * <p>
+     * Linked tiles share their data with the source tile, so tiles must never be overwritten in
+     * place (the normalization engine writes its output to a separate directory).
+     *
+     * @param tileDir the tile directory
+     * @param ignoreRoi union of the Ignore* annotations' ROIs the tiles were masked with
+     */
+    public record TileSource(File tileDir, ROI ignoreRoi) {}
+
+    /**
+     * Link a tile from an earlier tiling of the same image file, if neither tiling masks any of it.
+     *
+     * @return true if the tile was linked, false if it needs to be written
+     */
+    private static boolean linkSharedTile(TileSource tileSource, ROI tileRoi, ROI ignoreRoi, File file, String baseName) {
+        if (tileSource == null || intersects(ignoreRoi, tileRoi) || intersects(tileSource.ignoreRoi(), tileRoi))
+            return false;
+        File sourceFile = new File(tileSource.tileDir(), file.getName());
+        if (!sourceFile.isFile())
+            return false;
+        try {
+            var event = new ImgNormEvents.TileLink();
+            event.begin();
+            Files.createLink(file.toPath(), sourceFile.toPath());
+            event.end();
+            if (event.shouldCommit()) {
+                event.setRegion(baseName, (int)tileRoi.getBoundsX(), (int)tileRoi.getBoundsY(),
+                        (int)tileRoi.getBoundsWidth(), (int)tileRoi.getBoundsHeight(), sourceFile.length());
+                event.commit();
+            }
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.debug("Unable to link {}, so it will be written instead: {}", sourceFile, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Read a tile, recording a {@link ImgNormEvents.TileRead} event. Full-resolution RGB tiles are read
+     * into an image borrowed from the {@link ImgNormBufferPool}, which should be released once written.
+     */
+    private static BufferedImage readTile(ImageServer<BufferedImage> server, RegionRequest region) throws IOException {
+        var event = new ImgNormEvents.TileRead();
+        event.begin();
+        BufferedImage img = region.getDownsample() == 1 && server.isRGB()
+                ? readPooledTile(server, region)
+                : server.readRegion(region);
+        event.end();
+        if (event.shouldCommit()) {
+            event.setRegion(server.getMetadata().getName(), region.getX(), region.getY(), region.getWidth(), region.getHeight(),
+                    (long)img.getWidth() * img.getHeight() * 3);
+            event.downsample = region.getDownsample();
+            event.commit();
+        }
+        return img;
+    }
+
+    /**
+     * Read a full-resolution RGB region into a pooled image, a chunk aligned with the server's tiles at a
+     * time. Reading the whole region at once would allocate a new tile-sized image every time.
+     */
+    private static BufferedImage readPooledTile(ImageServer<BufferedImage> server, RegionRequest region) throws IOException {
+        int chunkWidth = server.getMetadata().getPreferredTileWidth();
+        int chunkHeight = server.getMetadata().getPreferredTileHeight();
+        if (chunkWidth < 64 || chunkWidth > READ_CHUNK_PIXELS || chunkHeight < 64 || chunkHeight > READ_CHUNK_PIXELS) {
+            chunkWidth = READ_CHUNK_PIXELS;
+            chunkHeight = READ_CHUNK_PIXELS;
+        }
+
+        BufferedImage img = ImgNormBufferPool.getDefault().borrowRgb(region.getWidth(), region.getHeight());
+        Graphics2D g2d = img.createGraphics();
+        try {
+            for (int y = region.getMinY() / chunkHeight * chunkHeight; y < region.getMaxY(); y += chunkHeight) {
+                for (int x = region.getMinX() / chunkWidth * chunkWidth; x < region.getMaxX(); x += chunkWidth) {
+                    int x1 = Math.max(x, region.getMinX());
+                    int y1 = Math.max(y, region.getMinY());
+                    int x2 = Math.min(x + chunkWidth, region.getMaxX());
+                    int y2 = Math.min(y + chunkHeight, region.getMaxY());
+                    BufferedImage chunk = server.readRegion(RegionRequest.createInstance(server.getPath(), 1,
+                            x1, y1, x2 - x1, y2 - y1, region.getZ(), region.getT()));
+                    g2d.drawImage(chunk, x1 - region.getMinX(), y1 - region.getMinY(), null);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            ImgNormBufferPool.getDefault().release(img);
+            throw e;
+        } finally {
+            g2d.dispose();
+        }
+        return img;
+    }
+
+    /**
+     * Encode and write a tile, recording a {@link ImgNormEvents.TileEncode} event.
+     */
+    private static void writeTile(BufferedImage img, File file, String baseName, RegionRequest region) throws IOException {
+        var event = new ImgNormEvents.TileEncode();
+        event.begin();
+        ImageWriterTools.writeImage(img, file.toString());
+        event.end();
+        if (event.shouldCommit()) {
+            event.setRegion(baseName, region.getX(), region.getY(), region.getWidth(), region.getHeight(), file.length());
+            event.commit();
+        }
+    }
+
+    private static boolean intersects(ROI maskRoi, ROI tileRoi) {
+        return !maskRoi.isEmpty() && maskRoi.getGeometry().intersects(tileRoi.getGeometry());
+    }
+
+    /**
+     * Get the union of the ROIs of the annotations classified as Ignore*.
+     *
+     * @param annotations the annotations (other classifications are skipped)
+     * @return the union, which is empty if there are no Ignore* annotations
+     */
+    public static ROI getIgnoreRoi(Collection<PathObject> annotations) {
+        return RoiTools.union(annotations.stream()
+                .filter(annotation -> annotation.getPathClass() == PathClass.fromString("Ignore*"))
+                .map(PathObject::getROI)
+                .toList());
+    }
+
     /**
      * Overlay square tile annotations on an image.
      *
@@ -192,7 +396,7 @@ public class ImgNormImageTools {
      * @param maskRoi the ROI used to create the masking
      * @param downsample downsample
      * @param shading shading of the mask
-     * @return the BufferedImage
+     * @return the BufferedImage, to be handed back with {@link ImgNormBufferPool#release} once used
      * @throws IOException
      */
     public static BufferedImage createMaskedBufferedImageFromRoi(
@@ -203,13 +407,33 @@ public class ImgNormImageTools {
             Shading shading) throws IOException {
 
         RegionRequest request = RegionRequest.createInstance(server.getPath(), downsample, mainRoi);
-        BufferedImage img = server.readRegion(request);
+        BufferedImage img = readTile(server, request);
+
+        try {
+            maskImage(server, request, img, mainRoi, maskRoi, downsample, shading);
+        } catch (RuntimeException | Error e) {
+            ImgNormBufferPool.getDefault().release(img); // borrowed by readTile at full resolution
+            throw e;
+        }
+        return img;
+    }
+
+    /**
+     * Mask the region of an image covered by another ROI, in place.
+     */
+    private static void maskImage(ImageServer<BufferedImage> server, RegionRequest request, BufferedImage img,
+                                  ROI mainRoi, ROI maskRoi, double downsample, Shading shading) {
+        var event = new ImgNormEvents.TileMask();
+        event.begin();
 
         ROI maskROIMainIntersection = RoiTools.intersection(maskRoi, mainRoi)
                 .translate(-mainRoi.getBoundsX(), -mainRoi.getBoundsY())
                 .scale(1/downsample, 1/downsample);
 
-        if (maskROIMainIntersection.getArea() == 0) return img;
+        if (maskROIMainIntersection.getArea() == 0) { // recorded too, so the trace has a mask record for every tile
+            commitTileMask(event, server, request, img, shading, false);
+            return;
+        }
 
         switch(shading) {
             case BLACK -> {
@@ -278,7 +502,19 @@ public class ImgNormImageTools {
             }
         }
 
-        return img;
+        commitTileMask(event, server, request, img, shading, true);
+    }
+
+    private static void commitTileMask(ImgNormEvents.TileMask event, ImageServer<BufferedImage> server, RegionRequest request,
+                                       BufferedImage img, Shading shading, boolean masked) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.setRegion(server.getMetadata().getName(), request.getX(), request.getY(), request.getWidth(), request.getHeight(),
+                    (long)img.getWidth() * img.getHeight() * 3);
+            event.shading = shading.name();
+            event.masked = masked;
+            event.commit();
+        }
     }
 
     /**
@@ -292,6 +528,23 @@ public class ImgNormImageTools {
      */
     public static void stitchTiles(File patchDirectory, File outputDir, String finalImageSuffix, boolean deleteOriginalTiles)
             throws OutOfMemoryError {
+        stitchTiles(patchDirectory, outputDir, finalImageSuffix, deleteOriginalTiles, PATCH_CACHE_BYTES);
+    }
+
+    /**
+     * Stitch the normalized patches (in the "norm" subdirectory written by the normalization engine)
+     * and save as an ome.tiff.
+     *
+     * @param patchDirectory the directory containing the patches
+     * @param outputDir the output directory to write the stitched image
+     * @param finalImageSuffix suffix to append to the stitched image name
+     * @param deleteOriginalTiles whether to delete the entire directory containing the tiles once stitching ends, even if it
+     *                            failed or was interrupted (the image is then discarded, and tiled again by a later run)
+     * @param cacheBytes maximum number of bytes of decoded patches to keep in memory
+     * @throws OutOfMemoryError
+     */
+    public static void stitchTiles(File patchDirectory, File outputDir, String finalImageSuffix, boolean deleteOriginalTiles,
+                                   long cacheBytes) throws OutOfMemoryError {
 
         try {
             if (new File(patchDirectory, "ERROR.txt").exists()) {
@@ -302,66 +555,47 @@ public class ImgNormImageTools {
                         "its metadata is missing.");
             }
 
+            File normalizedDirectory = new File(patchDirectory, NORMALIZED_PATCH_DIR);
+            long missingPatches = countPatches(patchDirectory) - countPatches(normalizedDirectory);
+            if (missingPatches > 0) { // <- the engine should have reported these as failed
+                throw new RuntimeException("Stitching process for " + patchDirectory + " was skipped because " +
+                        missingPatches + " of its patches were not normalized.");
+            }
+
             logger.info("Stitching patches in " + patchDirectory.getName());
 
             String metadataString = Files.readString(new File(patchDirectory, "metadata.txt").toPath());
             double[] pixelMetadata = getPixelMetadata(metadataString);
             double[] preferredDownsamples = getDownsampleMetadata(metadataString);
 
-            List<File> patchFiles = Arrays.stream(patchDirectory.listFiles())
-                    .filter(file -> (file.getName().endsWith(".tif") || file.getName().endsWith(".tiff")))
-                    .filter(file -> !file.getName().equals("reference.tif") && !file.getName().equals("reference.tiff"))
-                    .toList();
-
-            var builder = new SparseImageServer.Builder();
-
-            patchFiles.parallelStream().forEach(patchFile -> {
-                try {
-                    String patchFilePath = patchFile.getAbsolutePath();
-                    String patchFileName = patchFile.getName();
-
-                    ImageServer<BufferedImage> server = ImageServerProvider.buildServer(patchFilePath, BufferedImage.class);
-                    RegionRequest request = RegionRequest.createInstance(server);
-                    BufferedImage img = server.readRegion(request);
-
-                    int xPos = extractPosition(patchFileName, "x-(\\d+)");
-                    int yPos = extractPosition(patchFileName, "y-(\\d+)");
-                    int height = img.getHeight();
-                    int width = img.getWidth();
-                    var region = ImageRegion.createInstance(xPos, yPos, width, height, 0, 0);
-                    var serverBuilder = ImageServerProvider.getPreferredUriImageSupport(BufferedImage.class, patchFile.toURI().toString()).getBuilders().get(0);
-                    builder.jsonRegion(region, 1.0, serverBuilder);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            });
-
-            SparseImageServer serverPre = builder.build();
-            ImageServer<BufferedImage> serverMain = ImageServers.pyramidalize(serverPre);
-
-            QP.setPixelSizeMicrons(new ImageData<>(serverMain), pixelMetadata[0], pixelMetadata[1], pixelMetadata[2]);
-
-            // Generate output file path
-            String outputFileName = patchDirectory.getName() + finalImageSuffix + ".tiff";
-            String outputPath = new File(outputDir, outputFileName).getAbsolutePath();
-
-            new OMEPyramidWriter.Builder(serverMain)
-                    .downsamples(preferredDownsamples) // Use pyramid levels calculated in the ImageServers.pyramidalize(server) method
-                    .tileSize(512)      // Requested tile size
-                    .channelsInterleaved()      // Because SparseImageServer returns all channels in a BufferedImage, it's more efficient to write them interleaved
-//                    .parallelize()   // TODO: Parallelize or not?
-                    .losslessCompression()      // Use lossless compression (often best for fluorescence, by lossy compression may be ok for brightfield)
-                    .build()
-                    .writeSeries(outputPath);
-
-            serverMain.close();
+            // Generate output file path. The image is written under another name and only moved into place once
+            // complete, so that an image whose stitching failed, was cancelled or crashed is never taken as normalized
+            File outputFile = new File(outputDir, patchDirectory.getName() + finalImageSuffix + ".tiff");
+            File partialFile = new File(outputDir, patchDirectory.getName() + finalImageSuffix + PARTIAL_IMAGE_SUFFIX);
+            partialFile.delete(); // left by a worker that crashed
+
+            try (var serverMain = new ImgNormPatchGridServer(normalizedDirectory, patchDirectory.getName(), pixelMetadata, preferredDownsamples, PYRAMID_TILE_SIZE, cacheBytes)) {
+                // Levels below the first are derived from the level above them while it is written (see ImgNormPyramidCascade),
+                // which relies on the tiles of each level being written before the next level is started
+                new OMEPyramidWriter.Builder(serverMain)
+                        .downsamples(preferredDownsamples) // Use the pyramid levels of the original image
+                        .tileSize(PYRAMID_TILE_SIZE)      // Requested tile size
+                        .channelsInterleaved()      // Because the patch grid server returns all channels in a BufferedImage, it's more efficient to write them interleaved
+//                        .parallelize()   // TODO: Parallelize or not?
+                        .losslessCompression()      // Use lossless compression (often best for fluorescence, by lossy compression may be ok for brightfield)
+                        .build()
+                        .writeSeries(partialFile.getAbsolutePath());
+                Files.move(partialFile.toPath(), outputFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                partialFile.delete(); // unless it has been moved into place
+            }
 
             logger.info("Successfully stitched patches in " + patchDirectory.getName() + "!");
 
         } catch (Exception e){
             throw new RuntimeException(e.getMessage());
         } catch (OutOfMemoryError ome){
-            System.gc();
+            ImgNormBufferPool.getDefault().clear(); // leave the memory to whatever runs next
             throw new OutOfMemoryError(ome.getMessage());
         } finally {
             // TODO: How to guarantee file deletion (issue on Windows)?
@@ -372,6 +606,58 @@ public class ImgNormImageTools {
 
     }
 
+    private static long countPatches(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) return 0;
+        return Arrays.stream(files).filter(file -> ImgNormPatchGridServer.parsePatch(file) != null).count();
+    }
+
+    /**
+     * Estimate the peak memory used by {@link #writeTiles} for a single image: the tile or
+     * reference image being read, plus a copy for masking and encoding.
+     *
+     * @param tileSizePx the length of the square tile in pixels
+     * @return the estimated number of bytes
+     */
+    public static long estimateTilingBytes(int tileSizePx) {
+        long pixels = Math.max((long)tileSizePx * tileSizePx, MAX_REFERENCE_IMAGE_PIXELS);
+        return pixels * 4 * 2;
+    }
+
+    /**
+     * Estimate the scratch space used by the tiles of an image from when it is tiled until it has
+     * been stitched: the uncompressed RGB tiles and their normalized copies, up to a third more for
+     * the lower pyramid levels written while stitching (see {@link ImgNormPyramidCascade}), and the
+     * reference image.
+     *
+     * @param width width of the image in pixels
+     * @param height height of the image in pixels
+     * @return the estimated number of bytes
+     */
+    public static long estimateScratchBytes(int width, int height) {
+        long pixels = (long)width * height;
+        return pixels * 3 * 7 / 3 + (long)MAX_REFERENCE_IMAGE_PIXELS * 3;
+    }
+
+    /**
+     * Create the project thumbnail of an RGB image from its lowest resolution, at the size QuPath uses for
+     * thumbnails, without depending on the GUI.
+     *
+     * @param server the image server
+     * @return the thumbnail
+     * @throws IOException if the image cannot be read
+     */
+    public static BufferedImage createThumbnail(ImageServer<BufferedImage> server) throws IOException {
+        double downsample = Math.max(1, Math.max(server.getWidth() / (double)THUMBNAIL_WIDTH, server.getHeight() / (double)THUMBNAIL_HEIGHT));
+        BufferedImage img = server.readRegion(RegionRequest.createInstance(server.getPath(), downsample,
+                0, 0, server.getWidth(), server.getHeight()));
+        BufferedImage thumbnail = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = thumbnail.createGraphics();
+        g2d.drawImage(img, 0, 0, null);
+        g2d.dispose();
+        return thumbnail;
+    }
+
     /**
      * Get the annotation objects from a project entry.
      * @param entry the project entry
@@ -444,14 +730,4 @@ public class ImgNormImageTools {
         }
     }
 
-    private static int extractPosition(String fileName, String regex) {
-        Pattern pattern = Pattern.compile(regex);
-        Matcher matcher = pattern.matcher(fileName);
-        if (matcher.find()) {
-            return Integer.parseInt(matcher.group(1));
-        } else {
-            throw new IllegalArgumentException("Pattern not found: " + regex);
-        }
-    }
-
 }
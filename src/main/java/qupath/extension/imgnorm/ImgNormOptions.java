@@ -0,0 +1,178 @@
+package qupath.extension.imgnorm;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Options for a single ImgNorm run. A new instance holds the defaults. Within QuPath, the values
+ * persisted by the user can be obtained with {@link ImgNormPreferences#createOptions()}; headless runs
+ * set them from the command line (see {@link ImgNormCli}).
+ */
+public class ImgNormOptions {
+
+    /**
+     * Default downsample of draft runs
+     */
+    public static final double DEFAULT_DRAFT_DOWNSAMPLE = 16;
+
+    private int imageConcurrency = 2;
+    private long memoryBudgetBytes = Runtime.getRuntime().maxMemory() / 2;
+    private boolean transferDetections = false;
+    private File sharedStoreDir = null;
+    private File scratchDir = null;
+    private long scratchBudgetBytes = Long.MAX_VALUE;
+    private int tileSizePixels = ImgNormPipeline.TILE_SIZE_PIXELS;
+    private int normalizationProcesses = 1;
+    private List<String> engineCommand = null;
+    private double draftDownsample = 1;
+    private boolean reuseStainVectors = true;
+
+    /**
+     * @return the maximum number of images opened, tiled or stitched at the same time
+     */
+    public int getImageConcurrency() {
+        return imageConcurrency;
+    }
+
+    public void setImageConcurrency(int imageConcurrency) {
+        this.imageConcurrency = Math.max(1, imageConcurrency);
+    }
+
+    /**
+     * @return the approximate number of bytes that concurrently processed images may use between them
+     */
+    public long getMemoryBudgetBytes() {
+        return memoryBudgetBytes;
+    }
+
+    public void setMemoryBudgetBytes(long memoryBudgetBytes) {
+        this.memoryBudgetBytes = Math.max(1, memoryBudgetBytes);
+    }
+
+    /**
+     * @return whether detections are transferred to the normalized project along with the annotations
+     */
+    public boolean isTransferDetections() {
+        return transferDetections;
+    }
+
+    public void setTransferDetections(boolean transferDetections) {
+        this.transferDetections = transferDetections;
+    }
+
+    /**
+     * @return root directory of the shared output store, or null if the store is not used
+     * @see ImgNormOutputStore
+     */
+    public File getSharedStoreDir() {
+        return sharedStoreDir;
+    }
+
+    public void setSharedStoreDir(File sharedStoreDir) {
+        this.sharedStoreDir = sharedStoreDir;
+    }
+
+    /**
+     * @return root directory for intermediate tiles (e.g., a local SSD), or null to use the project directory
+     */
+    public File getScratchDir() {
+        return scratchDir;
+    }
+
+    public void setScratchDir(File scratchDir) {
+        this.scratchDir = scratchDir;
+    }
+
+    /**
+     * @return the maximum number of bytes of tiles kept on scratch before tiling pauses until they have been stitched
+     */
+    public long getScratchBudgetBytes() {
+        return scratchBudgetBytes;
+    }
+
+    public void setScratchBudgetBytes(long scratchBudgetBytes) {
+        this.scratchBudgetBytes = Math.max(1, scratchBudgetBytes);
+    }
+
+    /**
+     * @return the side length of the square tiles the images are normalized in; larger tiles use more memory
+     */
+    public int getTileSizePixels() {
+        return tileSizePixels;
+    }
+
+    public void setTileSizePixels(int tileSizePixels) {
+        this.tileSizePixels = Math.max(1, tileSizePixels);
+    }
+
+    /**
+     * @return the maximum number of normalization engine processes run at the same time
+     */
+    public int getNormalizationProcesses() {
+        return normalizationProcesses;
+    }
+
+    public void setNormalizationProcesses(int normalizationProcesses) {
+        this.normalizationProcesses = Math.max(1, normalizationProcesses);
+    }
+
+    /**
+     * @return the command running the normalization engine (e.g., {@code python3 /path/to/main.py}), to which the
+     *         directories to normalize are appended, or null to use the executable bundled with the extension
+     */
+    public List<String> getEngineCommand() {
+        return engineCommand;
+    }
+
+    public void setEngineCommand(List<String> engineCommand) {
+        this.engineCommand = engineCommand == null || engineCommand.isEmpty() ? null : List.copyOf(engineCommand);
+    }
+
+    /**
+     * @return the downsample of a draft run, which normalizes every image at that resolution into a preview
+     *         project for quality control, or 1 for a full-resolution run
+     */
+    public double getDraftDownsample() {
+        return draftDownsample;
+    }
+
+    public void setDraftDownsample(double draftDownsample) {
+        this.draftDownsample = Double.isFinite(draftDownsample) ? Math.max(1, draftDownsample) : 1;
+    }
+
+    /**
+     * @return whether this is a draft run
+     * @see #getDraftDownsample()
+     */
+    public boolean isDraft() {
+        return draftDownsample > 1;
+    }
+
+    /**
+     * @return whether a full-resolution run normalizes images with the stain vectors estimated by the last
+     *         draft run for the same image and Ignore* annotations, rather than estimating them again
+     */
+    public boolean isReuseStainVectors() {
+        return reuseStainVectors;
+    }
+
+    public void setReuseStainVectors(boolean reuseStainVectors) {
+        this.reuseStainVectors = reuseStainVectors;
+    }
+
+    @Override
+    public String toString() {
+        return "ImgNormOptions[imageConcurrency=" + imageConcurrency +
+                ", memoryBudgetBytes=" + memoryBudgetBytes +
+                ", transferDetections=" + transferDetections +
+                ", sharedStoreDir=" + sharedStoreDir +
+                ", scratchDir=" + scratchDir +
+                ", scratchBudgetBytes=" + scratchBudgetBytes +
+                ", tileSizePixels=" + tileSizePixels +
+                ", normalizationProcesses=" + normalizationProcesses +
+                ", engineCommand=" + engineCommand +
+                ", draftDownsample=" + draftDownsample +
+                ", reuseStainVectors=" + reuseStainVectors + "]";
+    }
+
+}
@@ -0,0 +1,185 @@
+package qupath.extension.imgnorm;
+
+import org.locationtech.jts.io.WKBWriter;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content-addressed store of normalized images that can be shared between projects.
+ * <p>
+ * Images are keyed by the SHA-256 of the source image file, the Ignore* geometry, the tile size,
+ * the stain vectors given to the engine, if any (e.g., estimated by a draft run, which differ from
+ * those the engine estimates at full resolution) and the identity of the normalization engine
+ * (see {@link ImgNormEngine#getIdentity}), so an
+ * image that has been normalized before with identical inputs can be linked into a new run
+ * instead of being recomputed. The normalization parameters are defaults of the engine, so they
+ * are covered by its identity.
+ * <p>
+ * Hashing a whole slide takes a while, so the SHA-256 of each source file is cached in the store
+ * along with its path, size and modification time, and only computed again if any of these change.
+ * An edit that keeps both the size and the modification time of a file is therefore not noticed.
+ */
+public class ImgNormOutputStore {
+
+    static final Logger logger = LoggerFactory.getLogger(ImgNormOutputStore.class);
+
+    private static final String STORED_IMAGE_SUFFIX = ".ome.tiff";
+    private static final String FINGERPRINT_DIR = "fingerprints";
+
+    private final File storeDir;
+    private final String engineIdentity;
+
+    /**
+     * @param storeDir root directory of the store, which is created if needed
+     * @param engineIdentity identity of the normalization engine the images are normalized with
+     * @throws IOException if the directory cannot be created
+     */
+    public ImgNormOutputStore(File storeDir, String engineIdentity) throws IOException {
+        this.storeDir = storeDir;
+        this.engineIdentity = engineIdentity;
+        Files.createDirectories(storeDir.toPath());
+    }
+
+    /**
+     * Compute the key of a normalized image.
+     *
+     * @param sourceImage the source image file
+     * @param ignoreRoi union of the Ignore* annotations' ROIs
+     * @param tileSizePx the tile size used for normalization
+     * @param stainVectors the stain vectors given to the engine, or null if it estimates them from the image
+     * @return the key, as a hex string
+     * @throws IOException if the source image cannot be read
+     */
+    public String computeKey(File sourceImage, ROI ignoreRoi, int tileSizePx, String stainVectors) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(fingerprint(sourceImage).getBytes(StandardCharsets.UTF_8));
+        digest.update(ignoreRoi.isEmpty() ? new byte[0] : new WKBWriter().write(ignoreRoi.getGeometry()));
+        digest.update(("tile=" + tileSizePx + "\nvectors=" + (stainVectors == null ? "estimated" : stainVectors) +
+                "\n" + engineIdentity).getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @param key the key of a normalized image
+     * @return the stored image, or null if there is none for the key
+     */
+    public File find(String key) {
+        File stored = getStoredFile(key);
+        return stored.isFile() ? stored : null;
+    }
+
+    /**
+     * Make a stored image available at a target path, as a hard link if possible, then
+     * a symbolic link, and otherwise as a copy. A copy is made under a temporary name and
+     * then moved into place, so the target never holds a partially copied image.
+     *
+     * @param stored the stored image
+     * @param target the path to make it available at
+     * @throws IOException if the image could not be linked or copied
+     */
+    public void linkInto(File stored, File target) throws IOException {
+        Path targetPath = target.toPath();
+        try {
+            Files.createLink(targetPath, stored.toPath());
+            return;
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.debug("Unable to hard link {}: {}", stored, e.getMessage());
+        }
+        try {
+            Files.createSymbolicLink(targetPath, stored.toPath());
+            return;
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.debug("Unable to symbolically link {}: {}", stored, e.getMessage());
+        }
+        Path staging = Files.createTempFile(targetPath.getParent(), target.getName(), ".tmp");
+        try {
+            Files.copy(stored.toPath(), staging, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(staging, targetPath, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(staging);
+        }
+    }
+
+    /**
+     * Add a normalized image to the store, unless an image with the same key is stored already.
+     * The image is staged under a temporary name and then moved into place, so other runs
+     * never see a partially written image.
+     *
+     * @param key the key of the normalized image
+     * @param output the normalized image
+     * @throws IOException if the image could not be added
+     */
+    public void publish(String key, File output) throws IOException {
+        File stored = getStoredFile(key);
+        if (stored.exists()) return;
+        Files.createDirectories(stored.getParentFile().toPath());
+
+        Path staging = Files.createTempFile(stored.getParentFile().toPath(), key, ".tmp");
+        try {
+            Files.delete(staging);
+            try {
+                Files.createLink(staging, output.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(output.toPath(), staging);
+            }
+            Files.move(staging, stored.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Added {} to the shared output store", output.getName());
+        } finally {
+            Files.deleteIfExists(staging);
+        }
+    }
+
+    private File getStoredFile(String key) {
+        return new File(new File(storeDir, key.substring(0, 2)), key + STORED_IMAGE_SUFFIX);
+    }
+
+    /**
+     * @return the SHA-256 of a file, from the cache of the store if the file has not changed since
+     */
+    private String fingerprint(File file) throws IOException {
+        Path path = file.toPath().toRealPath();
+        String stamp = path + "\n" + Files.size(path) + "\n" + Files.getLastModifiedTime(path).toMillis();
+        File cached = new File(new File(storeDir, FINGERPRINT_DIR),
+                HexFormat.of().formatHex(newDigest().digest(path.toString().getBytes(StandardCharsets.UTF_8))));
+        if (cached.isFile()) {
+            String[] lines = Files.readString(cached.toPath()).split("\n");
+            if (lines.length == 4 && stamp.equals(lines[0] + "\n" + lines[1] + "\n" + lines[2]))
+                return lines[3];
+        }
+
+        String checksum = ImgNormEngine.sha256(path);
+        Path staging = null;
+        try {
+            Files.createDirectories(cached.getParentFile().toPath());
+            staging = Files.createTempFile(cached.getParentFile().toPath(), cached.getName(), ".tmp");
+            Files.writeString(staging, stamp + "\n" + checksum);
+            Files.move(staging, cached.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.debug("Unable to cache the fingerprint of {}: {}", file, e.getMessage());
+            if (staging != null)
+                Files.deleteIfExists(staging);
+        }
+        return checksum;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // SHA-256 is required of every JVM
+        }
+    }
+
+}
@@ -0,0 +1,412 @@
+package qupath.extension.imgnorm;
+
+import qupath.lib.images.servers.AbstractImageServer;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.regions.RegionRequest;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.*;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read-only image server backed by a directory of normalized patches named
+ * {@code [x-X,y-Y,w-W,h-H].tif}, as written by {@link ImgNormImageTools#writeTiles}.
+ * <p>
+ * Patches are indexed once by their file name into a grid, so a region request only
+ * decodes the patches it overlaps. Decoding goes through a single TIFF reader and the
+ * decoded patches are kept in an LRU cache bounded by a byte budget, which is shared
+ * by every pyramid level requested from this server. Patches are decoded into images
+ * borrowed from the {@link ImgNormBufferPool}, which are handed back once evicted.
+ * <p>
+ * Full-resolution regions are also fed into an {@link ImgNormPyramidCascade}, so that once
+ * the base level has been written the lower-resolution levels are read from the cascade
+ * rather than from the patches.
+ */
+public class ImgNormPatchGridServer extends AbstractImageServer<BufferedImage> {
+
+    static final Logger logger = LoggerFactory.getLogger(ImgNormPatchGridServer.class);
+    private static final Pattern PATCH_NAME_PATTERN = Pattern.compile("\\[x-(\\d+),y-(\\d+),w-(\\d+),h-(\\d+)]");
+
+    private final File patchDirectory;
+    private final String name;
+    private final ImageServerMetadata metadata;
+    private final int cellWidth;
+    private final int cellHeight;
+    private final int gridColumns;
+    private final int gridRows;
+    private final List<List<Patch>> grid; // one list per cell, indexed by row * gridColumns + column
+    private final PatchCache cache;
+    private final ImageReader reader;
+    private final ImgNormPyramidCascade cascade;
+
+    /**
+     * @param patchDirectory directory containing the patches
+     * @param pixelMetadata pixel height, pixel width and z-spacing (in microns)
+     * @param downsamples downsamples of the pyramid levels to expose
+     * @param tileSize tile size the pyramid will be written with
+     * @param cacheBytes maximum number of bytes of decoded patches to keep in memory
+     * @throws IOException if no patches are found or no TIFF reader is available
+     */
+    public ImgNormPatchGridServer(File patchDirectory, double[] pixelMetadata, double[] downsamples, int tileSize, long cacheBytes) throws IOException {
+        this(patchDirectory, patchDirectory.getName(), pixelMetadata, downsamples, tileSize, cacheBytes);
+    }
+
+    /**
+     * @param patchDirectory directory containing the patches
+     * @param name name of the image
+     * @param pixelMetadata pixel height, pixel width and z-spacing (in microns)
+     * @param downsamples downsamples of the pyramid levels to expose
+     * @param tileSize tile size the pyramid will be written with
+     * @param cacheBytes maximum number of bytes of decoded patches to keep in memory
+     * @throws IOException if no patches are found or no TIFF reader is available
+     */
+    public ImgNormPatchGridServer(File patchDirectory, String name, double[] pixelMetadata, double[] downsamples, int tileSize,
+                                  long cacheBytes) throws IOException {
+        super(BufferedImage.class);
+        this.patchDirectory = patchDirectory;
+        this.name = name;
+
+        List<Patch> patches = new ArrayList<>();
+        for (File file : Objects.requireNonNull(patchDirectory.listFiles(), "Directory not found: " + patchDirectory)) {
+            Patch patch = parsePatch(file);
+            if (patch != null)
+                patches.add(patch);
+        }
+        if (patches.isEmpty())
+            throw new IOException("No patches found in " + patchDirectory);
+
+        int width = 0;
+        int height = 0;
+        int maxPatchWidth = 0;
+        int maxPatchHeight = 0;
+        for (Patch patch : patches) {
+            width = Math.max(width, patch.x + patch.width);
+            height = Math.max(height, patch.y + patch.height);
+            maxPatchWidth = Math.max(maxPatchWidth, patch.width);
+            maxPatchHeight = Math.max(maxPatchHeight, patch.height);
+        }
+
+        this.cellWidth = maxPatchWidth;
+        this.cellHeight = maxPatchHeight;
+        this.gridColumns = (int)Math.ceil((double)width/cellWidth);
+        this.gridRows = (int)Math.ceil((double)height/cellHeight);
+        this.grid = new ArrayList<>(gridColumns * gridRows);
+        for (int i = 0; i < gridColumns * gridRows; i++) {
+            grid.add(new ArrayList<>(1));
+        }
+        for (Patch patch : patches) {
+            grid.get((patch.y / cellHeight) * gridColumns + patch.x / cellWidth).add(patch);
+        }
+
+        Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("tiff");
+        if (!readers.hasNext())
+            throw new IOException("No TIFF reader available to decode patches");
+        this.reader = readers.next();
+        this.cache = new PatchCache(cacheBytes, ImgNormBufferPool.getDefault());
+
+        this.metadata = new ImageServerMetadata.Builder()
+                .name(name)
+                .width(width)
+                .height(height)
+                .rgb(true)
+                .pixelType(PixelType.UINT8)
+                .channels(ImageChannel.getDefaultRGBChannels())
+                .preferredTileSize(tileSize, tileSize)
+                .levelsFromDownsamples(downsamples)
+                .pixelSizeMicrons(pixelMetadata[1], pixelMetadata[0])
+                .zSpacingMicrons(pixelMetadata[2])
+                .build();
+
+        this.cascade = downsamples.length > 1
+                ? new ImgNormPyramidCascade(width, height, downsamples, tileSize, new File(patchDirectory, "pyramid"))
+                : null;
+
+        logger.info("Indexed {} patches for {} ({}x{} grid, cache budget {} MB)",
+                patches.size(), name, gridColumns, gridRows, cacheBytes / (1024*1024));
+    }
+
+    @Override
+    public BufferedImage readRegion(RegionRequest request) throws IOException {
+        // The pyramid writer reads one tile at a time, so this stops stitching within a tile of the run being cancelled
+        if (Thread.currentThread().isInterrupted())
+            throw new InterruptedIOException("Stitching of " + name + " was interrupted");
+
+        var event = new ImgNormEvents.PyramidTile();
+        event.begin();
+        if (cascade != null) {
+            BufferedImage img = cascade.read(request);
+            if (img != null) {
+                commitPyramidTile(event, request, img, true);
+                return img;
+            }
+        }
+
+        double downsample = request.getDownsample();
+        int outWidth = (int)Math.max(1, Math.round(request.getWidth() / downsample));
+        int outHeight = (int)Math.max(1, Math.round(request.getHeight() / downsample));
+        BufferedImage output = new BufferedImage(outWidth, outHeight, BufferedImage.TYPE_INT_RGB);
+
+        int minCol = Math.max(0, request.getMinX() / cellWidth);
+        int minRow = Math.max(0, request.getMinY() / cellHeight);
+        int maxCol = Math.min(gridColumns - 1, (request.getMaxX() - 1) / cellWidth);
+        int maxRow = Math.min(gridRows - 1, (request.getMaxY() - 1) / cellHeight);
+
+        Graphics2D g2d = output.createGraphics();
+        try {
+            if (downsample != 1.0)
+                g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            for (int row = minRow; row <= maxRow; row++) {
+                for (int col = minCol; col <= maxCol; col++) {
+                    for (Patch patch : grid.get(row * gridColumns + col)) {
+                        drawPatch(g2d, patch, request, downsample);
+                    }
+                }
+            }
+        } finally {
+            g2d.dispose();
+        }
+
+        if (cascade != null)
+            cascade.accept(request, output);
+        commitPyramidTile(event, request, output, false);
+        return output;
+    }
+
+    private void commitPyramidTile(ImgNormEvents.PyramidTile event, RegionRequest request, BufferedImage img, boolean fromCascade) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.setRegion(name, request.getX(), request.getY(), request.getWidth(), request.getHeight(),
+                    (long)img.getWidth() * img.getHeight() * 3);
+            event.downsample = request.getDownsample();
+            event.fromCascade = fromCascade;
+            event.commit();
+        }
+    }
+
+    private void drawPatch(Graphics2D g2d, Patch patch, RegionRequest request, double downsample) throws IOException {
+        // Intersection of the patch and the request in full-resolution coordinates
+        int x1 = Math.max(patch.x, request.getMinX());
+        int y1 = Math.max(patch.y, request.getMinY());
+        int x2 = Math.min(patch.x + patch.width, request.getMaxX());
+        int y2 = Math.min(patch.y + patch.height, request.getMaxY());
+        if (x2 <= x1 || y2 <= y1) return;
+
+        CachedPatch cached = getPatchImage(patch);
+        try {
+            g2d.drawImage(cached.img,
+                    (int)Math.round((x1 - request.getMinX()) / downsample),
+                    (int)Math.round((y1 - request.getMinY()) / downsample),
+                    (int)Math.round((x2 - request.getMinX()) / downsample),
+                    (int)Math.round((y2 - request.getMinY()) / downsample),
+                    x1 - patch.x, y1 - patch.y, x2 - patch.x, y2 - patch.y,
+                    null);
+        } finally {
+            cache.unuse(cached);
+        }
+    }
+
+    /**
+     * @return the decoded patch, which is kept from being released until {@link PatchCache#unuse} is called
+     */
+    private CachedPatch getPatchImage(Patch patch) throws IOException {
+        CachedPatch cached = cache.use(patch);
+        if (cached != null) return cached;
+
+        synchronized (reader) {
+            cached = cache.use(patch); // another thread may have decoded it while we waited
+            if (cached != null) return cached;
+            var event = new ImgNormEvents.PatchDecode();
+            event.begin();
+            BufferedImage img = null;
+            try (ImageInputStream stream = ImageIO.createImageInputStream(patch.file)) {
+                if (stream == null)
+                    throw new IOException("Unable to open patch " + patch.file);
+                reader.setInput(stream, true, true);
+                img = ImgNormBufferPool.getDefault().borrow(reader.getImageTypes(0).next(), reader.getWidth(0), reader.getHeight(0));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setDestination(img);
+                img = reader.read(0, param); // decoded into the destination
+            } catch (IOException | RuntimeException e) {
+                ImgNormBufferPool.getDefault().release(img);
+                throw e;
+            } finally {
+                reader.setInput(null);
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.setRegion(name, patch.x, patch.y, patch.width, patch.height, (long)img.getWidth() * img.getHeight() * 3);
+                event.commit();
+            }
+            return cache.putAndUse(patch, img);
+        }
+    }
+
+    /**
+     * Parse the position and size of a patch from its file name.
+     *
+     * @param file the patch file
+     * @return the patch, or null if the file is not a patch (e.g., the reference image or metadata)
+     */
+    static Patch parsePatch(File file) {
+        String name = file.getName();
+        if (!(name.endsWith(".tif") || name.endsWith(".tiff"))) return null;
+        Matcher matcher = PATCH_NAME_PATTERN.matcher(name);
+        if (!matcher.find()) return null;
+        return new Patch(file,
+                Integer.parseInt(matcher.group(1)),
+                Integer.parseInt(matcher.group(2)),
+                Integer.parseInt(matcher.group(3)),
+                Integer.parseInt(matcher.group(4)));
+    }
+
+    @Override
+    public void close() throws Exception {
+        cache.clear();
+        reader.dispose();
+        if (cascade != null)
+            cascade.close();
+        super.close();
+    }
+
+    @Override
+    protected ServerBuilder<BufferedImage> createServerBuilder() {
+        return null; // Only used transiently to write the stitched image, so never serialized
+    }
+
+    @Override
+    protected String createID() {
+        return getClass().getName() + ": " + patchDirectory.toURI();
+    }
+
+    @Override
+    public Collection<URI> getURIs() {
+        return Collections.singletonList(patchDirectory.toURI());
+    }
+
+    @Override
+    public String getServerType() {
+        return "ImgNorm patch grid";
+    }
+
+    @Override
+    public ImageServerMetadata getOriginalMetadata() {
+        return metadata;
+    }
+
+    static class Patch {
+        final File file;
+        final int x;
+        final int y;
+        final int width;
+        final int height;
+
+        Patch(File file, int x, int y, int width, int height) {
+            this.file = file;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public String toString() {
+            return file.getName();
+        }
+    }
+
+    /**
+     * A decoded patch and the number of region requests drawing it.
+     */
+    static class CachedPatch {
+        final BufferedImage img;
+        int users = 0;
+        boolean evicted = false;
+
+        CachedPatch(BufferedImage img) {
+            this.img = img;
+        }
+    }
+
+    /**
+     * LRU cache of decoded patches that evicts the least recently used patches
+     * once the total size exceeds a byte budget. Evicted patches are released to the
+     * buffer pool as soon as no request is drawing them.
+     */
+    static class PatchCache {
+        private final long maxBytes;
+        private final ImgNormBufferPool pool;
+        private long currentBytes = 0;
+        private final LinkedHashMap<Patch, CachedPatch> map = new LinkedHashMap<>(16, 0.75f, true);
+
+        PatchCache(long maxBytes, ImgNormBufferPool pool) {
+            this.maxBytes = maxBytes;
+            this.pool = pool;
+        }
+
+        synchronized CachedPatch use(Patch patch) {
+            CachedPatch cached = map.get(patch);
+            if (cached != null) cached.users++;
+            return cached;
+        }
+
+        synchronized void unuse(CachedPatch cached) {
+            cached.users--;
+            if (cached.users == 0 && cached.evicted)
+                pool.release(cached.img);
+        }
+
+        synchronized CachedPatch putAndUse(Patch patch, BufferedImage img) {
+            CachedPatch cached = new CachedPatch(img);
+            cached.users++;
+            CachedPatch previous = map.put(patch, cached);
+            if (previous != null) evict(previous);
+            currentBytes += sizeOf(img);
+
+            // Always keep the most recent patch, even if it alone exceeds the budget
+            Iterator<Map.Entry<Patch, CachedPatch>> iterator = map.entrySet().iterator();
+            while (currentBytes > maxBytes && map.size() > 1 && iterator.hasNext()) {
+                Map.Entry<Patch, CachedPatch> eldest = iterator.next();
+                if (eldest.getKey() == patch) continue;
+                iterator.remove();
+                evict(eldest.getValue());
+            }
+            return cached;
+        }
+
+        synchronized void clear() {
+            map.values().forEach(this::evict);
+            map.clear();
+        }
+
+        private void evict(CachedPatch cached) {
+            currentBytes -= sizeOf(cached.img);
+            cached.evicted = true;
+            if (cached.users == 0)
+                pool.release(cached.img);
+        }
+
+        private static long sizeOf(BufferedImage img) {
+            DataBuffer buffer = img.getRaster().getDataBuffer();
+            return (long)buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+        }
+    }
+
+}
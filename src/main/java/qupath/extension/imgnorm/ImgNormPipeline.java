@@ -0,0 +1,1006 @@
+package qupath.extension.imgnorm;
+
+import qupath.lib.color.ColorDeconvolutionStains;
+import qupath.lib.color.StainVector;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServers;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectTools;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.projects.Projects;
+import qupath.lib.roi.interfaces.ROI;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.URI;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The ImgNorm pipeline for a list of project entries: tiling, normalization, stitching and
+ * the creation of the normalized project.
+ * <p>
+ * The pipeline does not depend on the QuPath GUI or the JavaFX thread, so it can be driven by
+ * {@link ImgNormRunner} as well as headlessly through {@link ImgNorm}. A pipeline can only be run once.
+ */
+public class ImgNormPipeline {
+
+    static final Logger logger = LoggerFactory.getLogger(ImgNormPipeline.class);
+    static final int TILE_SIZE_PIXELS = 5000;  // Default, see ImgNormOptions. NOTE: LARGER VALUES WILL USE MORE MEMORY!
+    private static final String FINAL_IMAGE_SUFFIX = "_norm.ome";
+    private static final ColorDeconvolutionStains FINAL_STAINS = new ColorDeconvolutionStains("Normalized",
+            StainVector.createStainVector("Hematoxylin", 0.651, 0.701, 0.29),
+            StainVector.createStainVector("Eosin", 0.216, 0.801, 0.558),
+            255, 255, 255);
+
+    private final Project<BufferedImage> project;
+    private final List<ProjectImageEntry<BufferedImage>> entries;
+    private final ImgNormOptions options;
+    private final ImgNormProgress progressAggregator;
+    private final ImgNormRunStats stats = new ImgNormRunStats();
+    private final boolean createNormalizedProject;
+    private ImgNormDirectoryManager dirManager;
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private volatile boolean cancelled = false;
+    private volatile boolean hasErrors = false;
+    private ExecutorService prefetchPool;
+    private ExecutorService imagePool;
+    private final Set<Thread> workerThreads = ConcurrentHashMap.newKeySet(); // interrupted on cancellation
+    private volatile ImgNormRunPython pythonRunner;
+    private Project<BufferedImage> normalizedProject;
+
+    // State of a run, shared by the stages of the images
+    private ImgNormOutputStore outputStore;
+    private ImgNormStainVectors stainVectors;
+    private ImgNormClaims claims; // only in sharded runs
+    private final Map<String, ROI> ignoreRoisByBaseName = new ConcurrentHashMap<>();
+    private final Map<String, String> savedStainVectorsByBaseName = new ConcurrentHashMap<>(); // reused from draft runs
+    private final Map<String, String> storeKeysByBaseName = new ConcurrentHashMap<>();
+    private final Map<File, CompletableFuture<ImgNormImageTools.TileSource>> tileSources = new ConcurrentHashMap<>();
+    private final Map<String, String> failuresByBaseName = new ConcurrentHashMap<>();
+    private final Set<String> reusedBaseNames = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> pixelsByBaseName = new ConcurrentHashMap<>();
+    private final Set<File> duplicateTracker = ConcurrentHashMap.newKeySet();
+    private ImgNormResult[] resultsByEntry;
+    private ImgFileData[] imgFileDataByEntry;
+    private Semaphore memoryBudget;
+    private int tilingMegabytes;
+    private long stitchingCacheBytes;
+    private int stitchingMegabytes;
+
+    /**
+     * @param project the project the entries belong to; the normalized project is created inside its directory
+     * @param entries the entries to normalize
+     * @param options options for the run
+     * @param listener receives the progress of the run
+     */
+    public ImgNormPipeline(Project<BufferedImage> project, List<ProjectImageEntry<BufferedImage>> entries,
+                           ImgNormOptions options, ImgNormProgress.Listener listener) {
+        this(project, entries, options, listener, null, true);
+    }
+
+    /**
+     * @param project the project the entries belong to
+     * @param entries the entries to normalize
+     * @param options options for the run
+     * @param listener receives the progress of the run
+     * @param dirManager the directories to use, or null to create a new set inside the project directory
+     * @param createNormalizedProject whether to create the normalized project, or only write the normalized images
+     */
+    ImgNormPipeline(Project<BufferedImage> project, List<ProjectImageEntry<BufferedImage>> entries, ImgNormOptions options,
+                    ImgNormProgress.Listener listener, ImgNormDirectoryManager dirManager, boolean createNormalizedProject) {
+        this.project = project;
+        this.entries = List.copyOf(entries);
+        this.options = options;
+        this.progressAggregator = new ImgNormProgress(listener);
+        this.dirManager = dirManager;
+        this.createNormalizedProject = createNormalizedProject;
+    }
+
+    /**
+     * Run the pipeline on the calling thread.
+     *
+     * @return one result per entry, in the order of the entries
+     * @throws IOException if the output directories or the normalized project cannot be created
+     * @throws CancelledException if the run was cancelled with {@link #cancel()}
+     */
+    public List<ImgNormResult> run() throws IOException, CancelledException {
+        if (!started.compareAndSet(false, true))
+            throw new IllegalStateException("An ImgNorm pipeline can only be run once");
+        if (dirManager != null && dirManager.getImgTempDir() == null)
+            throw new IllegalStateException("The directories of this pipeline can only be merged");
+
+        stats.startRun();
+        if (dirManager != null && dirManager.getClaimsDir() != null) {
+            claims = new ImgNormClaims(dirManager.getClaimsDir());
+            claims.startHeartbeat();
+        }
+        ImgNormBufferPool bufferPool = ImgNormBufferPool.getDefault();
+        long bufferPoolHits = bufferPool.getHits();
+        long bufferPoolMisses = bufferPool.getMisses();
+        List<ImgNormResult> results = null;
+        try {
+            results = runPipeline();
+            return results;
+        } finally {
+            stats.add("bufferPoolHits", bufferPool.getHits() - bufferPoolHits);
+            stats.add("bufferPoolMisses", bufferPool.getMisses() - bufferPoolMisses);
+            bufferPool.clear();
+            releaseUnfinishedClaims();
+            stats.finishRun();
+            logger.info("{}", stats);
+            writeReport(results);
+            progressAggregator.close();
+            if (prefetchPool != null) prefetchPool.shutdownNow();
+            if (imagePool != null) imagePool.shutdownNow();
+            if (isCancelled() && dirManager != null)
+                deleteInBackground(dirManager.getImgTempDir());
+        }
+    }
+
+    /**
+     * Release the claims of the images this worker did not finish (because they failed, or the run was
+     * cancelled or aborted), so that a relaunched worker processes them again. Failures are recorded with
+     * the claims, to be reported when merging.
+     */
+    private void releaseUnfinishedClaims() {
+        if (claims == null) return;
+        Map<String, String> failures = new HashMap<>(failuresByBaseName);
+        for (int i = 0; imgFileDataByEntry != null && i < imgFileDataByEntry.length; i++) {
+            if (imgFileDataByEntry[i] != null && resultsByEntry[i] != null && resultsByEntry[i].status() == ImgNormResult.Status.FAILED)
+                failures.putIfAbsent(imgFileDataByEntry[i].getBaseName(), resultsByEntry[i].message());
+        }
+        for (String baseName : claims.getHeld()) {
+            String failure = failures.get(baseName);
+            if (failure == null && getFinalImageFile(dirManager, baseName).isFile())
+                continue; // done, so kept to tell later workers
+            claims.release(baseName, isCancelled() ? null : Objects.requireNonNullElse(failure, "No normalized image was written"));
+        }
+        claims.close();
+    }
+
+    /**
+     * Write the report of the run next to the normalized project (one per worker in a sharded run).
+     * A report that cannot be written is logged, but does not fail the run.
+     */
+    private void writeReport(List<ImgNormResult> results) {
+        if (dirManager == null || dirManager.getMainDir() == null) return;
+        File reportFile = new File(dirManager.getMainDir(), ImgNormRunReport.FILE_NAME);
+        if (dirManager.getClaimsDir() != null)
+            reportFile = new File(new File(dirManager.getMainDir(), "reports"), dirManager.getImgTempDir().getName() + ".json");
+        try {
+            Files.createDirectories(reportFile.getParentFile().toPath());
+            ImgNormRunReport.write(reportFile, stats, options, results, isCancelled());
+            logger.info("Run report written to {}", reportFile);
+        } catch (IOException e) {
+            logger.warn("Failed to write the run report: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Delete the scratch directory of a cancelled run without holding up the return of control.
+     */
+    private static void deleteInBackground(File dir) {
+        if (dir == null || !dir.exists()) return;
+        new Thread(() -> ImgNormDirectoryManager.deleteDirectory(dir), "imgnorm-cleanup").start();
+    }
+
+    /**
+     * @param name name of the threads
+     * @return a thread factory whose threads are interrupted when the run is cancelled
+     */
+    private ThreadFactory workerThreadFactory(String name) {
+        AtomicInteger count = new AtomicInteger(0);
+        return runnable -> {
+            Thread thread = new Thread(() -> {
+                try {
+                    runnable.run();
+                } finally {
+                    workerThreads.remove(Thread.currentThread());
+                }
+            }, name + "-" + count.incrementAndGet());
+            workerThreads.add(thread);
+            return thread;
+        };
+    }
+
+    private List<ImgNormResult> runPipeline() throws IOException, CancelledException {
+        logger.info("Starting ImgNorm...");
+        List<ImgFileData> origImgFiles = new ArrayList<>();
+
+        progressAggregator.setMessage("Setting up directories...");
+        if (dirManager == null)
+            dirManager = new ImgNormDirectoryManager(Projects.getBaseDirectory(project), options.getScratchDir(),
+                    options.isDraft() ? "normalized_draft" : "normalized");
+        stainVectors = new ImgNormStainVectors(Projects.getBaseDirectory(project));
+        if (options.isDraft())
+            logger.info("Draft run at a downsample of {}: the preview project is written to {}", options.getDraftDownsample(), dirManager.getMainDir());
+
+        // Create the list of working entries
+        progressAggregator.setMessage("Gathering image entries...");
+        List<ProjectImageEntry<BufferedImage>> origEntryList = entries;
+        logger.debug("Entries: {}", origEntryList);
+
+        progressAggregator.addProgress(1);
+        checkAndHandleCancel();
+
+        // Iterate over the entries, taking their ImageData and creating tiles/patches from them.
+        // Entries are read ahead on a separate thread, and up to imageConcurrency of them are tiled at once.
+        // The tiled entries are normalized and stitched in waves, so that the tiles on scratch never exceed the scratch budget.
+        int imageConcurrency = options.getImageConcurrency();
+        prefetchPool = Executors.newSingleThreadExecutor(workerThreadFactory("imgnorm-prefetch"));
+        imagePool = Executors.newFixedThreadPool(imageConcurrency, workerThreadFactory("imgnorm-image"));
+        memoryBudget = new Semaphore(toMegabytes(options.getMemoryBudgetBytes()));
+        tilingMegabytes = Math.min(memoryBudget.availablePermits(), toMegabytes(ImgNormImageTools.estimateTilingBytes(options.getTileSizePixels())));
+        stitchingCacheBytes = options.getMemoryBudgetBytes() / imageConcurrency; // each stitch gets an equal share of the budget for its patch cache
+        stitchingMegabytes = toMegabytes(stitchingCacheBytes);
+
+        if (options.getSharedStoreDir() != null && !options.isDraft()) { // the store only holds full-resolution images
+            try {
+                outputStore = new ImgNormOutputStore(options.getSharedStoreDir(), ImgNormEngine.getIdentity(options.getEngineCommand()));
+            } catch (IOException e) {
+                logger.error("Shared output store is unavailable, so every image will be normalized: " + e.getMessage());
+            }
+        }
+
+        // Outcomes are recorded per entry where an entry is skipped or fails on its own, and per base name
+        // (i.e., per normalized image, which several entries may share) from stitching onwards
+        resultsByEntry = new ImgNormResult[origEntryList.size()];
+        imgFileDataByEntry = new ImgFileData[origEntryList.size()];
+
+        int lookaheadCount = imageConcurrency * 2;
+        Semaphore lookahead = new Semaphore(lookaheadCount); // entries handed on for tiling but not tiled yet
+        List<CompletableFuture<OpenedEntry>> openings = new ArrayList<>();
+        List<CompletableFuture<String>> waveTilings = new ArrayList<>();
+        long waveScratchBytes = 0;
+        int waveEntryCount = 0;
+        for (int i = 0; i < origEntryList.size(); i++) {
+            checkAndHandleCancel();
+            while (openings.size() < origEntryList.size() && openings.size() <= i + lookaheadCount) {
+                ProjectImageEntry<BufferedImage> nextEntry = origEntryList.get(openings.size());
+                int nextIndex = openings.size();
+                openings.add(CompletableFuture.supplyAsync(() -> openEntry(nextEntry, nextIndex, resultsByEntry), prefetchPool));
+            }
+
+            ProjectImageEntry<BufferedImage> entry = origEntryList.get(i);
+            int entryIndex = i;
+            OpenedEntry openedEntry;
+            try {
+                openedEntry = openings.get(i).join();
+            } catch (CompletionException e) {
+                recordEntryFailure(entryIndex, e);
+                openedEntry = null;
+            }
+            openings.set(i, null); // the image data is only held by the tiling from here on
+            waveEntryCount++;
+            if (openedEntry == null) {
+                progressAggregator.addProgress(25.0/origEntryList.size());
+                continue;
+            }
+
+            ImageServer<BufferedImage> server = openedEntry.imageData().getServer();
+            long scratchBytes = ImgNormImageTools.estimateScratchBytes(server.getWidth(), server.getHeight());
+            if (!waveTilings.isEmpty() && scratchBytes > options.getScratchBudgetBytes() - waveScratchBytes) {
+                // Pause tiling until the tiles written so far have been normalized, stitched and removed from scratch
+                logger.info("Scratch budget reached, so normalizing the {} image(s) tiled so far before tiling {}", waveTilings.size(), entry);
+                finishWave(waveTilings, waveEntryCount - 1);
+                waveTilings.clear();
+                waveScratchBytes = 0;
+                waveEntryCount = 1;
+            }
+            waveScratchBytes += scratchBytes;
+
+            try {
+                lookahead.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancelledException("ImgNorm run interrupted.");
+            }
+            OpenedEntry entryToTile = openedEntry;
+            waveTilings.add(CompletableFuture
+                    .supplyAsync(() -> tileEntry(entry, entryIndex, entryToTile), imagePool)
+                    .whenComplete((baseName, e) -> {
+                        lookahead.release();
+                        progressAggregator.addProgress(25.0/origEntryList.size() /* increment = 25 */);
+                        if (e != null)
+                            recordEntryFailure(entryIndex, e);
+                    }));
+        }
+        finishWave(waveTilings, waveEntryCount);
+
+        for (int i = 0; i < imgFileDataByEntry.length; i++) {
+            if (imgFileDataByEntry[i] != null && resultsByEntry[i] == null) origImgFiles.add(imgFileDataByEntry[i]);
+        }
+
+        logger.debug("Images to normalize: {}", origImgFiles);
+        checkAndHandleCancel();
+
+        if (createNormalizedProject) {
+            progressAggregator.setMessage("Transferring to new project...");
+
+            // Create and populate a new project for the normalized images
+            try (var timer = stats.start(ImgNormRunStats.Phase.PROJECT)) {
+                normalizedProject = populateNormalizedProject(dirManager, origImgFiles, failuresByBaseName, 2.0);
+            }
+        }
+
+        checkAndHandleCancel();
+
+        progressAggregator.setMessage("Done!");
+        ImgNormDirectoryManager.deleteDirectory(dirManager.getImgTempDir()); // in case previous attempts to delete didn't work
+
+        List<ImgNormResult> results = new ArrayList<>();
+        for (int i = 0; i < origEntryList.size(); i++) {
+            ImgFileData imgFileData = imgFileDataByEntry[i];
+            if (resultsByEntry[i] != null || imgFileData == null) {
+                results.add(resultsByEntry[i]);
+                continue;
+            }
+            String imageName = origEntryList.get(i).getImageName();
+            String baseName = imgFileData.getBaseName();
+            File output = getFinalImageFile(dirManager, baseName);
+            String failure = failuresByBaseName.get(baseName);
+            if (failure != null || !output.isFile())
+                results.add(new ImgNormResult(imageName, ImgNormResult.Status.FAILED, null,
+                        failure != null ? failure : "No normalized image was written"));
+            else
+                results.add(new ImgNormResult(imageName,
+                        reusedBaseNames.contains(baseName) ? ImgNormResult.Status.REUSED : ImgNormResult.Status.NORMALIZED, output, null));
+        }
+        return results;
+    }
+
+    /**
+     * Tile an entry, unless its normalized image is shared with an earlier entry, reused from the shared
+     * output store or claimed by another worker.
+     *
+     * @param entry the project entry
+     * @param entryIndex index of the entry in the list of entries
+     * @param openedEntry the image data and image file of the entry
+     * @return the base name of the tiled image, or null if the entry was not tiled
+     */
+    private String tileEntry(ProjectImageEntry<BufferedImage> entry, int entryIndex, OpenedEntry openedEntry) {
+        ImageData<BufferedImage> entryImageData = openedEntry.imageData();
+        File entryImgFile = openedEntry.imageFile();
+        ImgFileData imgFileData = new ImgFileData(entryImgFile, entry, entryImageData.getHierarchy().getAnnotationObjects());
+        imgFileDataByEntry[entryIndex] = imgFileData;
+        stats.addImageTime(imgFileData.getBaseName(), ImgNormRunStats.Phase.OPEN, openedEntry.openDuration());
+
+        // Require all entries with Ignore annotations to have their images tiled even if they share the same image file
+        // But entries without Ignore annotations that share the same image file can skip tiling if tiling for one has been done already
+        if (!imgFileData.isHasMod() && !duplicateTracker.add(entryImgFile)) return null;
+
+        if (isCancelled()) return null;
+        ignoreRoisByBaseName.put(imgFileData.getBaseName(), imgFileData.getIgnoreRoi());
+        // The image data of a draft run is downsampled, while the annotations are at full resolution
+        ROI ignoreRoi = options.isDraft()
+                ? imgFileData.getIgnoreRoi().scale(1/options.getDraftDownsample(), 1/options.getDraftDownsample())
+                : imgFileData.getIgnoreRoi();
+        try {
+            // In a sharded run, another worker may be processing (or have processed) the same normalized image
+            if (claims != null && !claims.claim(imgFileData.getBaseName(), getFinalImageFile(dirManager, imgFileData.getBaseName()))) {
+                logger.info("{} was skipped because it has been claimed by another worker or normalized already", entry);
+                resultsByEntry[entryIndex] = new ImgNormResult(entry.getImageName(), ImgNormResult.Status.SKIPPED, null,
+                        "Claimed by another worker or normalized already");
+                return null;
+            }
+
+            // The vectors of a draft run are looked up once, so that the image is normalized with the vectors it is stored under
+            String savedStainVectors = null;
+            if (!options.isDraft() && options.isReuseStainVectors()) {
+                savedStainVectors = stainVectors.find(imgFileData.getBaseName(), imgFileData.getIgnoreRoi());
+                if (savedStainVectors != null)
+                    savedStainVectorsByBaseName.put(imgFileData.getBaseName(), savedStainVectors);
+            }
+
+            // Reuse an identical normalized image from the shared store if there is one
+            if (outputStore != null) {
+                String key = outputStore.computeKey(entryImgFile, imgFileData.getIgnoreRoi(), options.getTileSizePixels(), savedStainVectors);
+                File stored = outputStore.find(key);
+                if (stored != null) {
+                    logger.info("Reusing normalized image for {} from the shared output store", entry);
+                    outputStore.linkInto(stored, getFinalImageFile(dirManager, imgFileData.getBaseName()));
+                    reusedBaseNames.add(imgFileData.getBaseName());
+                    return null;
+                }
+                storeKeysByBaseName.put(imgFileData.getBaseName(), key);
+            }
+
+            // The first tiling of each image file is shared with later entries for the same file in the same wave,
+            // which only need to regenerate the tiles that either entry masks
+            CompletableFuture<ImgNormImageTools.TileSource> ownTiling = new CompletableFuture<>();
+            CompletableFuture<ImgNormImageTools.TileSource> sharedTiling = tileSources.putIfAbsent(entryImgFile, ownTiling);
+            ImgNormImageTools.TileSource tileSource = sharedTiling == null ? null : sharedTiling.join();
+            try {
+                memoryBudget.acquire(tilingMegabytes);
+                try (var timer = stats.start(ImgNormRunStats.Phase.TILE, imgFileData.getBaseName())) {
+                    progressAggregator.setMessage("Writing tiles for " + entry);
+                    ImgNormImageTools.writeTiles(entryImageData, ignoreRoi, dirManager.getImgTempDir(),
+                            options.getTileSizePixels(), imgFileData.getBaseName(), tileSource, stats);
+                } finally {
+                    memoryBudget.release(tilingMegabytes);
+                }
+                long pixels = (long)entryImageData.getServer().getWidth() * entryImageData.getServer().getHeight();
+                stats.addPixels(ImgNormRunStats.Phase.TILE, pixels);
+                stats.setImagePixels(imgFileData.getBaseName(), pixels);
+                stats.setImageTileBytes(imgFileData.getBaseName(),
+                        ImgNormDirectoryManager.getDirectorySize(new File(dirManager.getImgTempDir(), imgFileData.getBaseName())));
+                pixelsByBaseName.put(imgFileData.getBaseName(), pixels);
+                ownTiling.complete(new ImgNormImageTools.TileSource(
+                        new File(dirManager.getImgTempDir(), imgFileData.getBaseName()), ignoreRoi));
+            } finally {
+                ownTiling.complete(null); // no-op on success; otherwise later entries tile the whole image themselves
+            }
+            return imgFileData.getBaseName();
+        } catch (IOException | InterruptedException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Normalize and stitch the images tiled in a wave, removing the tiles of each image from scratch
+     * once it has been stitched.
+     *
+     * @param tilings the tilings of the wave, completing with the base names of the tiled images
+     * @param entryCount the number of entries the wave accounts for in the progress, including skipped entries
+     * @throws CancelledException if the run has been cancelled
+     */
+    private void finishWave(List<CompletableFuture<String>> tilings, int entryCount) throws CancelledException {
+        List<File> patchDirectories = tilings.stream()
+                .map(tiling -> tiling.handle((baseName, e) -> e == null ? baseName : null).join()) // failures have been recorded already
+                .filter(Objects::nonNull)
+                .map(baseName -> new File(dirManager.getImgTempDir(), baseName))
+                .toList();
+        tileSources.clear(); // the tiles of this wave are removed once stitched, so later waves cannot link them
+        checkAndHandleCancel();
+
+        double share = (double)entryCount / entries.size();
+        if (patchDirectories.isEmpty()) {
+            progressAggregator.addProgress((40.0 + 32.0) * share);
+            return;
+        }
+
+        // Take the resultant saved tiles, normalize them using Python, and stitch them back to their original dimensions
+        progressAggregator.setMessage("Initializing normalization algorithm...");
+        for (File patchDirectory : patchDirectories) {
+            String savedStainVectors = savedStainVectorsByBaseName.get(patchDirectory.getName());
+            if (savedStainVectors == null) continue;
+            try {
+                ImgNormStainVectors.writeInto(savedStainVectors, patchDirectory);
+                logger.info("Normalizing {} with the stain vectors saved by a draft run", patchDirectory.getName());
+                stats.increment("stainVectorsReused");
+            } catch (IOException e) {
+                // The engine estimates the vectors itself, so the image must not be stored under the key of the saved vectors
+                logger.warn("Failed to reuse the stain vectors of {}: {}", patchDirectory.getName(), e.getMessage());
+                storeKeysByBaseName.remove(patchDirectory.getName());
+            }
+        }
+        pythonRunner = new ImgNormRunPython(patchDirectories, this, 40.0 * share, options.getNormalizationProcesses());
+        try (var timer = stats.start(ImgNormRunStats.Phase.NORMALIZE)) {
+            pythonRunner.runPython();
+        } finally {
+            pythonRunner = null;
+        }
+        stats.addPixels(ImgNormRunStats.Phase.NORMALIZE, getPixels(patchDirectories));
+        if (options.isDraft()) {
+            for (File patchDirectory : patchDirectories) {
+                try {
+                    stainVectors.save(patchDirectory.getName(), ignoreRoisByBaseName.get(patchDirectory.getName()), patchDirectory);
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Failed to save the stain vectors of {}: {}", patchDirectory.getName(), e.getMessage());
+                }
+            }
+        }
+
+        checkAndHandleCancel();
+        progressAggregator.setMessage("Stitching images...");
+        List<CompletableFuture<Void>> stitchingFutures = new ArrayList<>();
+        for (File patchDirectory : patchDirectories) {
+            stitchingFutures.add(CompletableFuture.runAsync(() -> {
+                if (isCancelled()) return;
+                progressAggregator.setMessage("Stitching for " + patchDirectory);
+                try {
+                    memoryBudget.acquire(stitchingMegabytes);
+                } catch (InterruptedException e) {
+                    throw new CompletionException(e);
+                }
+                try (var timer = stats.start(ImgNormRunStats.Phase.STITCH, patchDirectory.getName())) {
+                    // Also removes the tiles from scratch, whether or not stitching succeeds: each run tiles into a scratch directory
+                    // of its own, so an image that fails or is cancelled is discarded, partial output included, and tiled again when rerun
+                    ImgNormImageTools.stitchTiles(patchDirectory, dirManager.getImgFinalDir(), FINAL_IMAGE_SUFFIX, true, stitchingCacheBytes);
+                } catch (RuntimeException | OutOfMemoryError e) {
+                    if (isCancelled()) {
+                        logger.debug("Stitching for {} stopped: {}", patchDirectory.getName(), e.getMessage());
+                        return;
+                    } else if (e instanceof IndexOutOfBoundsException) {
+                        logger.error("Processing failed for " + patchDirectory.getName() + ": " + e.getMessage() +
+                                "\nThis may be due to the names of the image files being too large.");
+                    } else {
+                        logger.error("Processing failed for " + patchDirectory.getName() + ": " + e.getMessage());
+                    }
+
+                    failuresByBaseName.put(patchDirectory.getName(), String.valueOf(e.getMessage()));
+                    hasErrors = true;
+                    return;
+                } finally {
+                    memoryBudget.release(stitchingMegabytes);
+                }
+
+                stats.addPixels(ImgNormRunStats.Phase.STITCH, getPixels(List.of(patchDirectory)));
+                stats.setImageOutputBytes(patchDirectory.getName(), getFinalImageFile(dirManager, patchDirectory.getName()).length());
+                String storeKey = storeKeysByBaseName.get(patchDirectory.getName());
+                if (outputStore != null && storeKey != null) {
+                    try {
+                        outputStore.publish(storeKey, getFinalImageFile(dirManager, patchDirectory.getName()));
+                    } catch (IOException e) {
+                        logger.warn("Failed to add " + patchDirectory.getName() + " to the shared output store: " + e.getMessage());
+                    }
+                }
+                progressAggregator.addProgress(32.0 * share / patchDirectories.size() /* increment = 32 overall */);
+            }, imagePool));
+        }
+        CompletableFuture.allOf(stitchingFutures.toArray(CompletableFuture[]::new)).join();
+    }
+
+    private void recordEntryFailure(int entryIndex, Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (isCancelled()) { // the entry was interrupted rather than failing
+            logger.debug("{} stopped: {}", entries.get(entryIndex), cause.getMessage());
+            return;
+        }
+        logger.error(cause.getMessage());
+        resultsByEntry[entryIndex] = new ImgNormResult(entries.get(entryIndex).getImageName(), ImgNormResult.Status.FAILED, null, cause.getMessage());
+        hasErrors = true;
+    }
+
+    /**
+     * Create the normalized project from the normalized images written by the workers of a sharded run,
+     * without processing any images. Entries without a normalized image are reported as failed if a worker
+     * failed on them or still holds their claim (i.e., it has not finished yet, or stopped), and as skipped otherwise.
+     *
+     * @return one result per entry, in the order of the entries
+     * @throws IOException if the normalized project cannot be created or written
+     */
+    public List<ImgNormResult> merge() throws IOException {
+        if (!started.compareAndSet(false, true))
+            throw new IllegalStateException("An ImgNorm pipeline can only be run once");
+        if (dirManager == null || dirManager.getNewProjDir() == null)
+            throw new IllegalStateException("The directories of this pipeline cannot be merged");
+
+        imagePool = Executors.newFixedThreadPool(options.getImageConcurrency(), workerThreadFactory("imgnorm-image"));
+        try {
+            progressAggregator.setMessage("Merging normalized images...");
+            resultsByEntry = new ImgNormResult[entries.size()];
+            imgFileDataByEntry = new ImgFileData[entries.size()];
+            List<ImgFileData> imgFiles = new ArrayList<>();
+            ImgNormClaims shardClaims = new ImgNormClaims(dirManager.getClaimsDir());
+            for (int i = 0; i < entries.size(); i++) {
+                ProjectImageEntry<BufferedImage> entry = entries.get(i);
+                File imageFile = getImageFile(entry);
+                if (imageFile == null) {
+                    resultsByEntry[i] = new ImgNormResult(entry.getImageName(), ImgNormResult.Status.SKIPPED, null, "URI is invalid");
+                    continue;
+                }
+                // Only the hierarchy is needed to work out the base name, which is much cheaper than reading the image data
+                ImgFileData imgFileData = new ImgFileData(imageFile, entry, entry.readHierarchy().getAnnotationObjects());
+                String baseName = imgFileData.getBaseName();
+                // A failure recorded by the last worker to process the image wins over any image left by an earlier one
+                String failure = shardClaims.getFailure(baseName);
+                if (failure != null || !getFinalImageFile(dirManager, baseName).isFile()) {
+                    String owner = shardClaims.getOwner(baseName);
+                    if (failure != null)
+                        resultsByEntry[i] = new ImgNormResult(entry.getImageName(), ImgNormResult.Status.FAILED, null, failure);
+                    else if (owner != null)
+                        resultsByEntry[i] = new ImgNormResult(entry.getImageName(), ImgNormResult.Status.FAILED, null,
+                                "Not finished by the worker that claimed it (" + owner + ")");
+                    else
+                        resultsByEntry[i] = new ImgNormResult(entry.getImageName(), ImgNormResult.Status.SKIPPED, null, "Not processed by any worker");
+                    continue;
+                }
+                imgFileDataByEntry[i] = imgFileData;
+                imgFiles.add(imgFileData);
+            }
+
+            normalizedProject = populateNormalizedProject(dirManager, imgFiles, failuresByBaseName, 100.0);
+
+            List<ImgNormResult> results = new ArrayList<>();
+            for (int i = 0; i < entries.size(); i++) {
+                if (resultsByEntry[i] != null) {
+                    results.add(resultsByEntry[i]);
+                    continue;
+                }
+                String baseName = imgFileDataByEntry[i].getBaseName();
+                String failure = failuresByBaseName.get(baseName);
+                results.add(failure != null
+                        ? new ImgNormResult(entries.get(i).getImageName(), ImgNormResult.Status.FAILED, null, failure)
+                        : new ImgNormResult(entries.get(i).getImageName(), ImgNormResult.Status.NORMALIZED, getFinalImageFile(dirManager, baseName), null));
+            }
+            return results;
+        } finally {
+            progressAggregator.close();
+            imagePool.shutdownNow();
+        }
+    }
+
+    /**
+     * Select a deterministic shard of a list of entries, so that workers given the same list agree on
+     * which of them processes each entry. Entries are assigned by their image file, so entries sharing an
+     * image file end up in the same shard and can share its tiling (see {@link #getShardKey}).
+     *
+     * @param entries the entries, e.g. all entries of a project
+     * @param shardIndex index of the shard, from 0 to shardCount - 1
+     * @param shardCount total number of shards
+     * @return the entries in the shard, in their original order
+     */
+    public static List<ProjectImageEntry<BufferedImage>> selectShard(List<ProjectImageEntry<BufferedImage>> entries,
+                                                                     int shardIndex, int shardCount) {
+        return selectShard(entries, entry -> {
+            File imageFile = getImageFile(entry);
+            return imageFile == null ? entry.getID() : getShardKey(imageFile);
+        }, shardIndex, shardCount);
+    }
+
+    /**
+     * QuPath resolves the image files of a project on each machine, so workers that mount the shared
+     * filesystem at different paths, or run on different OSes, see different paths for the same file.
+     * Shards are therefore selected by file name, which every worker sees the same, and which also
+     * identifies the image in the shared output (see {@link ImgFileData#getBaseName}).
+     *
+     * @param imageFile the image file of an entry
+     * @return the key to select the shard of the entry by
+     */
+    static String getShardKey(File imageFile) {
+        return imageFile.getName();
+    }
+
+    /**
+     * Select a deterministic shard of a list of items by a key of each item.
+     *
+     * @param items the items
+     * @param keyFunction the key of an item, items with the same key being in the same shard
+     * @param shardIndex index of the shard, from 0 to shardCount - 1
+     * @param shardCount total number of shards
+     * @return the items in the shard, in their original order
+     */
+    static <T> List<T> selectShard(List<T> items, Function<T, String> keyFunction, int shardIndex, int shardCount) {
+        if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount)
+            throw new IllegalArgumentException("Invalid shard " + shardIndex + " of " + shardCount);
+        return items.stream()
+                .filter(item -> Math.floorMod(keyFunction.apply(item).hashCode(), shardCount) == shardIndex) // String.hashCode() is the same in every JVM
+                .toList();
+    }
+
+    /**
+     * @param entry the project entry
+     * @return the single image file of the entry, or null if it has none
+     */
+    private static File getImageFile(ProjectImageEntry<BufferedImage> entry) {
+        try {
+            Collection<URI> uris = entry.getURIs();
+            if (uris.size() != 1 || !"file".equals(uris.iterator().next().getScheme())) return null;
+            return new File(uris.iterator().next());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Create the normalized project and add an entry for every normalized image, transferring
+     * the object hierarchy from the original entry. Entries are added in the order of the original
+     * project, while reading, saving and thumbnail generation run in parallel on the image pool.
+     *
+     * @param dirManager the directory manager for this run
+     * @param origImgFiles the original images, in project order
+     * @param failuresByBaseName failures by base name, which images that fail to be added are recorded in
+     * @param progressToAdd how much progress to add to the task
+     * @return the normalized project
+     * @throws IOException if the project cannot be created or written
+     */
+    private Project<BufferedImage> populateNormalizedProject(ImgNormDirectoryManager dirManager, List<ImgFileData> origImgFiles,
+                                                              Map<String, String> failuresByBaseName, double progressToAdd) throws IOException {
+        Project<BufferedImage> normProj = Projects.createProject(dirManager.getNewProjDir(), BufferedImage.class);
+
+        // Map the base names of the normalized images to their files, chopping off the extension and the added suffix
+        Map<String, File> normImgFilesByBaseName = new HashMap<>();
+        for (File file : Objects.requireNonNull(dirManager.getImgFinalDir().listFiles())) {
+            String normImgStr = file.getName();
+            int extensionIndex = normImgStr.lastIndexOf(".");
+            if (extensionIndex < 0) continue;
+            String normImgStrInt = normImgStr.substring(0, extensionIndex);
+            if (!normImgStrInt.endsWith(FINAL_IMAGE_SUFFIX)) continue;
+            normImgFilesByBaseName.put(normImgStrInt.substring(0, normImgStrInt.length() - FINAL_IMAGE_SUFFIX.length()), file);
+        }
+
+        // Open the servers in parallel, then add the entries in order
+        List<CompletableFuture<ImageServer<BufferedImage>>> serverFutures = origImgFiles.stream()
+                .map(imgFileData -> CompletableFuture.supplyAsync(() -> {
+                    File normImgFile = normImgFilesByBaseName.get(imgFileData.getBaseName());
+                    if (normImgFile == null) return null; // the image failed earlier, which has been logged already
+                    try {
+                        return ImageServers.buildServer(normImgFile.toURI());
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, imagePool))
+                .toList();
+
+        List<CompletableFuture<Void>> entryFutures = new ArrayList<>();
+        for (int i = 0; i < origImgFiles.size(); i++) {
+            ImgFileData imgFileData = origImgFiles.get(i);
+            final ImageServer<BufferedImage> imageServer;
+            try {
+                imageServer = serverFutures.get(i).join();
+            } catch (CompletionException e) {
+                logger.error("Failed to open the normalized image for " + imgFileData + ": " + e.getCause().getMessage());
+                failuresByBaseName.put(imgFileData.getBaseName(), "Failed to open the normalized image: " + e.getCause().getMessage());
+                hasErrors = true;
+                continue;
+            }
+            if (imageServer == null) continue;
+
+            ProjectImageEntry<BufferedImage> imageEntryNorm = normProj.addImage(imageServer.getBuilder());
+            imageEntryNorm.setImageName(normImgFilesByBaseName.get(imgFileData.getBaseName()).getName());
+
+            entryFutures.add(CompletableFuture.runAsync(() -> {
+                try (imageServer; var timer = stats.start(ImgNormRunStats.Phase.PROJECT, imgFileData.getBaseName())) {
+                    // Reuse the hierarchy of the un-normalized image as a whole rather than re-adding its objects, and set image to H&E
+                    PathObjectHierarchy hierarchy = imgFileData.readHierarchy(options.isTransferDetections());
+                    if (options.isDraft())
+                        hierarchy = scaleHierarchy(hierarchy, 1/options.getDraftDownsample());
+                    var imageDataNorm = new ImageData<>(imageServer, hierarchy, ImageData.ImageType.BRIGHTFIELD_H_E);
+                    // Set image to new stain vectors
+                    imageDataNorm.setColorDeconvolutionStains(FINAL_STAINS);
+                    // Save the entry
+                    imageEntryNorm.saveImageData(imageDataNorm);
+                    imageEntryNorm.setThumbnail(ImgNormImageTools.createThumbnail(imageServer));
+                    stats.addPixels(ImgNormRunStats.Phase.PROJECT, (long)imageServer.getWidth() * imageServer.getHeight());
+                } catch (Exception e) {
+                    logger.error("Failed to add " + imgFileData + " to the normalized project: " + e.getMessage());
+                    failuresByBaseName.put(imgFileData.getBaseName(), "Failed to add to the normalized project: " + e.getMessage());
+                    hasErrors = true;
+                } finally {
+                    progressAggregator.addProgress(progressToAdd/origImgFiles.size());
+                }
+            }, imagePool));
+        }
+        CompletableFuture.allOf(entryFutures.toArray(CompletableFuture[]::new)).join();
+
+        normProj.syncChanges();
+        return normProj;
+    }
+
+    /**
+     * Scale the objects of a hierarchy, e.g. to the resolution of a draft run. Only the annotations are kept,
+     * which is enough to check the preview against the original.
+     */
+    private static PathObjectHierarchy scaleHierarchy(PathObjectHierarchy hierarchy, double scale) {
+        AffineTransform transform = AffineTransform.getScaleInstance(scale, scale);
+        PathObjectHierarchy scaled = new PathObjectHierarchy();
+        scaled.addObjects(hierarchy.getAnnotationObjects().stream()
+                .map(annotation -> PathObjectTools.transformObject(annotation, transform, true))
+                .toList());
+        return scaled;
+    }
+
+    /**
+     * @param dirManager the directory manager for this run
+     * @param baseName base name of the image
+     * @return the file the normalized image is written to by {@link ImgNormImageTools#stitchTiles}
+     */
+    private File getFinalImageFile(ImgNormDirectoryManager dirManager, String baseName) {
+        return new File(dirManager.getImgFinalDir(), baseName + FINAL_IMAGE_SUFFIX + ".tiff");
+    }
+
+    private record OpenedEntry(ImageData<BufferedImage> imageData, File imageFile, Duration openDuration) {}
+
+    /**
+     * Read the image data of an entry, unless the entry should be skipped.
+     *
+     * @param entry the project entry
+     * @param entryIndex index of the entry in the list of entries
+     * @param resultsByEntry results by entry, which skipped entries are recorded in
+     * @return the image data and image file, or null if the URI is invalid or the image is not set to H&E
+     */
+    private OpenedEntry openEntry(ProjectImageEntry<BufferedImage> entry, int entryIndex, ImgNormResult[] resultsByEntry) {
+        if (isCancelled()) return null;
+        progressAggregator.setMessage("Opening " + entry);
+
+        try {
+            Collection<URI> uris = entry.getURIs();
+            URI firstUri = uris.iterator().next();
+            if (uris.size() != 1 && !Files.exists(Paths.get(firstUri))) { // skip if URI is invalid
+                logger.warn("{} was skipped because URI is invalid", entry);
+                resultsByEntry[entryIndex] = new ImgNormResult(entry.getImageName(), ImgNormResult.Status.SKIPPED, null, "URI is invalid");
+                return null;
+            }
+
+            ImageData<BufferedImage> entryImageData;
+            long openStartNanos = System.nanoTime();
+            try (var timer = stats.start(ImgNormRunStats.Phase.OPEN)) {
+                entryImageData = entry.readImageData(); // readImageData() can be a costly operation
+            }
+            Duration openDuration = Duration.ofNanos(System.nanoTime() - openStartNanos);
+            stats.addPixels(ImgNormRunStats.Phase.OPEN, (long)entryImageData.getServer().getWidth() * entryImageData.getServer().getHeight());
+            if (entryImageData.getImageType() != ImageData.ImageType.BRIGHTFIELD_H_E) { // skip if not set to H&E
+                logger.warn("{} was skipped because image type is not set to Brightfield H&E", entry);
+                resultsByEntry[entryIndex] = new ImgNormResult(entry.getImageName(), ImgNormResult.Status.SKIPPED, null,
+                        "Image type is not set to Brightfield H&E");
+                return null;
+            }
+            if (options.isDraft()) {
+                entryImageData = new ImageData<>(new ImgNormDraftServer(entryImageData.getServer(), options.getDraftDownsample()),
+                        entryImageData.getHierarchy(), entryImageData.getImageType());
+            }
+            return new OpenedEntry(entryImageData, new File(firstUri), openDuration);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * @param patchDirectories patch directories of the images tiled in this run
+     * @return the total number of pixels of the images
+     */
+    private long getPixels(List<File> patchDirectories) {
+        return patchDirectories.stream().mapToLong(dir -> pixelsByBaseName.getOrDefault(dir.getName(), 0L)).sum();
+    }
+
+    private static int toMegabytes(long bytes) {
+        return (int)Math.max(1, Math.min(Integer.MAX_VALUE, bytes / (1024*1024)));
+    }
+
+
+    /**
+     * The image file of a project entry, plus a summary of its Ignore* annotations.
+     * The hierarchy is only read (again) from the entry when it is transferred to the
+     * normalized project, so it is not held in memory for the whole run.
+     */
+    private static class ImgFileData {
+        private final File imageFile;
+        private final ProjectImageEntry<BufferedImage> entry;
+        private final ROI ignoreRoi;
+        private final boolean hasMod;
+        private final String groupID;
+
+        public ImgFileData(File imageFile, ProjectImageEntry<BufferedImage> entry, Collection<PathObject> annotationsCollection) {
+            this.imageFile = imageFile;
+            this.entry = entry;
+
+            List<PathObject> ignoreAnnotations = annotationsCollection.stream()
+                    .filter(annotation -> annotation.getPathClass() == PathClass.fromString("Ignore*"))
+                    .toList();
+            this.hasMod = !ignoreAnnotations.isEmpty();
+            this.ignoreRoi = ImgNormImageTools.getIgnoreRoi(ignoreAnnotations);
+
+            // Use the entry ID rather than a counter, so the base name is the same in every run and every worker of a sharded run
+            this.groupID = this.hasMod ? "_" + entry.getID() : "";
+        }
+
+        public File getImageFile() {
+            return imageFile;
+        }
+
+        /**
+         * Read the object hierarchy of the original entry, to be reused as a whole for the normalized entry.
+         *
+         * @param keepDetections whether to keep detection objects, or remove them (in bulk) from the hierarchy
+         * @return the hierarchy
+         * @throws IOException if the entry's data cannot be read
+         */
+        public PathObjectHierarchy readHierarchy(boolean keepDetections) throws IOException {
+            PathObjectHierarchy hierarchy = entry.readHierarchy();
+            if (!keepDetections)
+                hierarchy.removeObjects(hierarchy.getDetectionObjects(), false);
+            return hierarchy;
+        }
+
+        /**
+         * @return the union of the Ignore* annotations' ROIs (empty if there are none)
+         */
+        public ROI getIgnoreRoi() {
+            return ignoreRoi;
+        }
+
+        public boolean isHasMod() {
+            return hasMod;
+        }
+
+        public String getBaseName() {
+            String imageFileName = imageFile.getName();
+            return imageFileName.substring(0, imageFileName.lastIndexOf(".")) + groupID;
+        }
+
+        public String getGroupID() {
+            return groupID;
+        }
+
+        @Override
+        public String toString() {
+            return imageFile.toString();
+        }
+
+    }
+
+    /**
+     * @return the normalized project, or null if the run has not completed
+     */
+    public Project<BufferedImage> getNormalizedProject() {
+        return normalizedProject;
+    }
+
+    /**
+     * @return the phase timings of the run, which are updated while it runs
+     */
+    public ImgNormRunStats getStats() {
+        return stats;
+    }
+
+    ImgNormOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * @return the aggregator that progress and status messages should be reported through
+     */
+    public ImgNormProgress getProgressAggregator() {
+        return progressAggregator;
+    }
+
+    /**
+     * Request the run to stop. The Python processes are killed and the worker threads interrupted,
+     * which stops tiling and stitching at the next tile, so {@link #run()} throws a
+     * {@link CancelledException} within seconds. The scratch directory is then deleted in the background.
+     * Can be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+        ImgNormRunPython runner = pythonRunner;
+        if (runner != null)
+            runner.destroy();
+        workerThreads.forEach(Thread::interrupt);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true if any image failed, which is logged
+     */
+    public boolean hasErrors() {
+        return hasErrors;
+    }
+
+    /**
+     * Set the error status for the run
+     * @param errorStatus
+     */
+    public void setErrorStatus(boolean errorStatus) {
+        hasErrors = errorStatus;
+    }
+
+    public void checkAndHandleCancel() throws CancelledException {
+        if (isCancelled()) {
+            throw new CancelledException("ImgNorm run cancelled by user.");
+        }
+    }
+
+    public static class CancelledException extends Exception {
+        public CancelledException(String errorMessage) {
+            super(errorMessage);
+        }
+    }
+
+}
@@ -0,0 +1,153 @@
+package qupath.extension.imgnorm;
+
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.StringProperty;
+import qupath.lib.gui.prefs.PathPrefs;
+import qupath.lib.gui.tools.GuiTools;
+import qupath.lib.plugins.parameters.ParameterList;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Persistent user preferences for ImgNorm, and the dialog used to edit them. These depend on QuPath's
+ * GUI module and JavaFX, so they are only used by the extension; headless runs take their options from
+ * the command line (see {@link ImgNormCli}).
+ */
+public class ImgNormPreferences {
+
+    private static final ImgNormOptions DEFAULTS = new ImgNormOptions();
+
+    private static final IntegerProperty imageConcurrency = PathPrefs.createPersistentPreference(
+            "imgnorm.imageConcurrency", DEFAULTS.getImageConcurrency());
+    private static final IntegerProperty memoryBudgetMB = PathPrefs.createPersistentPreference(
+            "imgnorm.memoryBudgetMB", (int)(DEFAULTS.getMemoryBudgetBytes() / (1024*1024)));
+    private static final BooleanProperty transferDetections = PathPrefs.createPersistentPreference(
+            "imgnorm.transferDetections", DEFAULTS.isTransferDetections());
+    private static final StringProperty sharedStoreDir = PathPrefs.createPersistentPreference(
+            "imgnorm.sharedStoreDir", "");
+    private static final StringProperty scratchDir = PathPrefs.createPersistentPreference(
+            "imgnorm.scratchDir", "");
+    private static final IntegerProperty scratchBudgetGB = PathPrefs.createPersistentPreference(
+            "imgnorm.scratchBudgetGB", 0);
+    private static final DoubleProperty draftDownsample = PathPrefs.createPersistentPreference(
+            "imgnorm.draftDownsample", ImgNormOptions.DEFAULT_DRAFT_DOWNSAMPLE);
+    private static final BooleanProperty reuseStainVectors = PathPrefs.createPersistentPreference(
+            "imgnorm.reuseStainVectors", DEFAULTS.isReuseStainVectors());
+    // Depends on the hardware, so kept per host for user directories shared between computers
+    private static final StringProperty calibration = PathPrefs.createPersistentPreference(
+            "imgnorm.calibration." + getHostName(), "");
+
+    /**
+     * @return options for a new run, populated from the persisted preferences
+     */
+    public static ImgNormOptions createOptions() {
+        ImgNormOptions options = new ImgNormOptions();
+        options.setImageConcurrency(imageConcurrency.get());
+        options.setMemoryBudgetBytes((long)memoryBudgetMB.get() * 1024*1024);
+        options.setTransferDetections(transferDetections.get());
+        options.setSharedStoreDir(sharedStoreDir.get().isBlank() ? null : new File(sharedStoreDir.get().strip()));
+        options.setScratchDir(scratchDir.get().isBlank() ? null : new File(scratchDir.get().strip()));
+        if (scratchBudgetGB.get() > 0)
+            options.setScratchBudgetBytes((long)scratchBudgetGB.get() * 1024*1024*1024);
+        options.setReuseStainVectors(reuseStainVectors.get());
+        ImgNormCalibration.Result result = getCalibration();
+        if (result != null) {
+            options.setTileSizePixels(result.tileSizePixels());
+            options.setNormalizationProcesses(result.normalizationProcesses());
+        }
+        return options;
+    }
+
+    /**
+     * @return options for a draft run, i.e. {@link #createOptions()} at the preferred draft downsample
+     */
+    public static ImgNormOptions createDraftOptions() {
+        ImgNormOptions options = createOptions();
+        options.setDraftDownsample(Math.max(2, draftDownsample.get()));
+        return options;
+    }
+
+    /**
+     * @return the calibration saved for this computer, or null if it has not been calibrated
+     */
+    public static ImgNormCalibration.Result getCalibration() {
+        String[] values = calibration.get().split(",");
+        if (values.length != 3)
+            return null;
+        try {
+            return new ImgNormCalibration.Result(Integer.parseInt(values[0]), Integer.parseInt(values[1]), Double.parseDouble(values[2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Save the calibration for this computer, to be used by all later runs.
+     *
+     * @param result the calibration, or null to go back to the defaults
+     */
+    public static void saveCalibration(ImgNormCalibration.Result result) {
+        calibration.set(result == null ? "" :
+                result.tileSizePixels() + "," + result.normalizationProcesses() + "," + result.megapixelsPerSecond());
+    }
+
+    private static String getHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+    /**
+     * Show a dialog to edit the preferences.
+     *
+     * @return true if the preferences were changed, false if the dialog was cancelled
+     */
+    public static boolean showSettingsDialog() {
+        ParameterList params = new ParameterList()
+                .addIntParameter("imageConcurrency", "Images processed at once", imageConcurrency.get(), null,
+                        "Maximum number of images opened, tiled or stitched at the same time")
+                .addIntParameter("memoryBudgetMB", "Memory budget", memoryBudgetMB.get(), "MB",
+                        "Approximate memory that images processed at the same time may use between them")
+                .addBooleanParameter("transferDetections", "Transfer detections", transferDetections.get(),
+                        "Copy detections (e.g., cells) to the normalized project along with the annotations")
+                .addStringParameter("sharedStoreDir", "Shared output store", sharedStoreDir.get(),
+                        "Directory of normalized images shared between projects. Images normalized before with the same " +
+                                "inputs are reused from here instead of being recomputed. Leave empty to disable.")
+                .addStringParameter("scratchDir", "Scratch directory", scratchDir.get(),
+                        "Directory for intermediate tiles, ideally on a fast local disk. Leave empty to use the project directory.")
+                .addIntParameter("scratchBudgetGB", "Scratch budget", scratchBudgetGB.get(), "GB",
+                        "Maximum disk space used by intermediate tiles. Tiling pauses until earlier images have been stitched " +
+                                "when it is reached. Set to 0 for no limit.")
+                .addDoubleParameter("draftDownsample", "Draft downsample", draftDownsample.get(), null,
+                        "Downsample of draft previews (Extensions > ImgNorm > Draft preview...), e.g. 16 to normalize " +
+                                "images at 1/16 of their width and height")
+                .addBooleanParameter("reuseStainVectors", "Reuse draft stain vectors", reuseStainVectors.get(),
+                        "Normalize images with the stain vectors estimated by their last draft preview, as long as " +
+                                "their Ignore* annotations have not changed since");
+        ImgNormCalibration.Result result = getCalibration();
+        params.addEmptyParameter("calibration", result == null
+                ? "Not calibrated for this computer (Extensions > ImgNorm > Calibrate for this computer...)"
+                : "Calibrated for this computer: tiles of " + result.tileSizePixels() + " pixels, " +
+                        result.normalizationProcesses() + " normalization process(es)");
+
+        if (!GuiTools.showParameterDialog("ImgNorm settings", params))
+            return false;
+
+        imageConcurrency.set(Math.max(1, params.getIntParameterValue("imageConcurrency")));
+        memoryBudgetMB.set(Math.max(1, params.getIntParameterValue("memoryBudgetMB")));
+        transferDetections.set(params.getBooleanParameterValue("transferDetections"));
+        sharedStoreDir.set(params.getStringParameterValue("sharedStoreDir"));
+        scratchDir.set(params.getStringParameterValue("scratchDir"));
+        scratchBudgetGB.set(Math.max(0, params.getIntParameterValue("scratchBudgetGB")));
+        draftDownsample.set(Math.max(2, params.getDoubleParameterValue("draftDownsample")));
+        reuseStainVectors.set(params.getBooleanParameterValue("reuseStainVectors"));
+        return true;
+    }
+
+}
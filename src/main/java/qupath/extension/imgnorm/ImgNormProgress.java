@@ -0,0 +1,145 @@
+package qupath.extension.imgnorm;
+
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Collects progress from any number of worker threads and passes it on to a listener at a
+ * fixed, low rate.
+ * <p>
+ * Workers only update atomic counters and references, so reporting never blocks them, and
+ * the listener sees at most one update per refresh period however many workers are running.
+ */
+public class ImgNormProgress implements AutoCloseable {
+
+    private static final long REFRESH_PERIOD_MILLIS = 250;
+
+    private final Listener listener;
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "imgnorm-progress");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final DoubleAdder progress = new DoubleAdder();
+    private final AtomicReference<String> message = new AtomicReference<>("");
+    private final AtomicReference<AtomicReferenceArray<String>> workerLines = new AtomicReference<>(null);
+    private final AtomicLong patchesNormalized = new AtomicLong(0);
+    private volatile boolean paused = false;
+    private double lastProgress = Double.NaN;
+    private String lastMessage = null;
+
+    /**
+     * Receives the aggregated progress.
+     */
+    public interface Listener {
+        /**
+         * @param progress the total progress, from 0 to 100
+         * @param message the status message
+         */
+        void update(double progress, String message);
+    }
+
+    public ImgNormProgress(Listener listener) {
+        this.listener = listener;
+        refresher.scheduleAtFixedRate(this::refresh, 0, REFRESH_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param amount progress to add, out of a total of 100
+     */
+    public void addProgress(double amount) {
+        progress.add(amount);
+    }
+
+    /**
+     * @return the total progress so far, from 0 to 100
+     */
+    public double getProgress() {
+        return progress.sum();
+    }
+
+    public void setMessage(String message) {
+        this.message.set(message);
+    }
+
+    /**
+     * Show one status line per worker below the message, until {@link #finishWorkers()} is called.
+     *
+     * @param workerCount the number of workers
+     */
+    public void startWorkers(int workerCount) {
+        AtomicReferenceArray<String> lines = new AtomicReferenceArray<>(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            lines.set(i, "[Retrieving processor updates...]");
+        }
+        workerLines.set(lines);
+    }
+
+    /**
+     * @param workerNumber the worker, starting from 1
+     * @param line the latest status of the worker
+     */
+    public void setWorkerLine(int workerNumber, String line) {
+        AtomicReferenceArray<String> lines = workerLines.get();
+        if (lines != null && workerNumber >= 1 && workerNumber <= lines.length())
+            lines.set(workerNumber - 1, line);
+    }
+
+    public void finishWorkers() {
+        workerLines.set(null);
+    }
+
+    public void incrementPatchesNormalized() {
+        patchesNormalized.incrementAndGet();
+    }
+
+    public long getPatchesNormalized() {
+        return patchesNormalized.get();
+    }
+
+    /**
+     * Stop passing updates to the listener (e.g., while the run is being cancelled).
+     */
+    public void pause() {
+        paused = true;
+    }
+
+    private synchronized void refresh() {
+        if (paused) return;
+
+        double currentProgress = Math.min(100, progress.sum());
+        String currentMessage = buildMessage();
+        if (currentProgress == lastProgress && Objects.equals(currentMessage, lastMessage)) return;
+
+        lastProgress = currentProgress;
+        lastMessage = currentMessage;
+        listener.update(currentProgress, currentMessage);
+    }
+
+    private String buildMessage() {
+        AtomicReferenceArray<String> lines = workerLines.get();
+        if (lines == null) return message.get();
+        if (lines.length() == 1) return lines.get(0); // no need to indicate the number of processes used
+
+        StringBuilder sb = new StringBuilder(message.get())
+                .append(" (No. processes: ").append(lines.length())
+                .append(", patches normalized: ").append(patchesNormalized.get()).append(")\n ");
+        for (int i = 0; i < lines.length(); i++) {
+            sb.append("\nProcess #").append(i + 1).append(": ").append(lines.get(i));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() {
+        refresher.shutdownNow();
+        refresh(); // make sure the final state is reported
+    }
+
+}
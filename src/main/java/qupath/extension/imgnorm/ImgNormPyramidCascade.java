@@ -0,0 +1,276 @@
+package qupath.extension.imgnorm;
+
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the lower-resolution levels of a pyramid from the level above them while the
+ * full-resolution level is being written.
+ * <p>
+ * Every full-resolution tile handed to {@link #accept} is area-averaged into a strip of
+ * the next level. Once a strip has received all of its source pixels, it is written to a
+ * raw RGB file in the scratch directory and fed into the level below it, so only the
+ * strips currently being filled are held in memory. Requests for a completed level are
+ * then served from that file by {@link #read} instead of going back to the full-resolution
+ * patches, which brings the total cost of the pyramid down to roughly 1.33x the base level.
+ */
+class ImgNormPyramidCascade implements AutoCloseable {
+
+    static final Logger logger = LoggerFactory.getLogger(ImgNormPyramidCascade.class);
+
+    private final double[] downsamples;
+    private final Level[] levels;
+    private final Set<Long> acceptedTiles = new HashSet<>();
+
+    /**
+     * @param width full-resolution image width
+     * @param height full-resolution image height
+     * @param downsamples downsamples of the pyramid levels, in increasing order
+     * @param tileSize height (in pixels of the level above) of the rows of tiles requested by the writer
+     * @param scratchDir directory to store the completed levels in
+     * @throws IOException if the level files cannot be created
+     */
+    ImgNormPyramidCascade(int width, int height, double[] downsamples, int tileSize, File scratchDir) throws IOException {
+        this.downsamples = downsamples.clone();
+        this.levels = new Level[downsamples.length];
+        scratchDir.mkdirs();
+        for (int k = 0; k < downsamples.length; k++) {
+            levels[k] = new Level(k, width, height, tileSize, scratchDir);
+        }
+    }
+
+    /**
+     * Feed a tile read at the first pyramid level into the cascade. Tiles at other
+     * downsamples, and tiles that have been fed already, are ignored.
+     *
+     * @param request the region request the tile was read for
+     * @param img the tile
+     * @throws IOException if a completed strip cannot be written
+     */
+    synchronized void accept(RegionRequest request, BufferedImage img) throws IOException {
+        if (levels.length < 2 || levelOf(request.getDownsample()) != 0) return;
+
+        int x0 = (int)Math.floor(request.getMinX() / downsamples[0]);
+        int y0 = (int)Math.floor(request.getMinY() / downsamples[0]);
+        if (!acceptedTiles.add(((long)x0 << 32) | (y0 & 0xFFFFFFFFL))) return;
+
+        int w = Math.min(img.getWidth(), levels[0].width - x0);
+        int h = Math.min(img.getHeight(), levels[0].height - y0);
+        if (w <= 0 || h <= 0) return;
+
+        int[] rgb = img.getRGB(0, 0, w, h, null, 0, w);
+        accumulate(1, x0, y0, w, h, rgb);
+    }
+
+    /**
+     * Read a region from a completed lower-resolution level.
+     *
+     * @param request the region request
+     * @return the region, or null if the request does not match a completed level
+     * @throws IOException if the level file cannot be read
+     */
+    BufferedImage read(RegionRequest request) throws IOException {
+        int k = levelOf(request.getDownsample());
+        if (k <= 0) return null;
+        Level level = levels[k];
+        if (!level.isComplete()) return null;
+
+        double downsample = request.getDownsample();
+        int outWidth = (int)Math.max(1, Math.round(request.getWidth() / downsample));
+        int outHeight = (int)Math.max(1, Math.round(request.getHeight() / downsample));
+        int x0 = (int)Math.floor(request.getMinX() / downsample);
+        int y0 = (int)Math.floor(request.getMinY() / downsample);
+
+        BufferedImage output = new BufferedImage(outWidth, outHeight, BufferedImage.TYPE_INT_RGB);
+        int readWidth = Math.min(outWidth, level.width - x0);
+        if (readWidth <= 0) return output;
+
+        int[] row = new int[readWidth];
+        ByteBuffer buffer = ByteBuffer.allocate(readWidth * 3);
+        for (int y = 0; y < outHeight && y0 + y < level.height; y++) {
+            buffer.clear();
+            long position = ((long)(y0 + y) * level.width + x0) * 3;
+            while (buffer.hasRemaining()) {
+                if (level.channel.read(buffer, position + buffer.position()) < 0) break;
+            }
+            byte[] bytes = buffer.array();
+            for (int x = 0; x < readWidth; x++) {
+                row[x] = ((bytes[x*3] & 0xFF) << 16) | ((bytes[x*3 + 1] & 0xFF) << 8) | (bytes[x*3 + 2] & 0xFF);
+            }
+            output.setRGB(0, y, readWidth, 1, row, 0, readWidth);
+        }
+        return output;
+    }
+
+    /**
+     * Add a block of pixels from level {@code k - 1} into the strips of level {@code k},
+     * flushing every strip that becomes complete.
+     */
+    private void accumulate(int k, int x0, int y0, int w, int h, int[] rgb) throws IOException {
+        if (k >= levels.length) return;
+        Level level = levels[k];
+        Level source = levels[k - 1];
+
+        for (int y = 0; y < h; y++) {
+            int sy = y0 + y;
+            int dy = level.destRowOfSourceRow[sy];
+            Strip strip = level.getStrip(dy / level.stripRows);
+            int rowOffset = (dy - strip.firstRow) * level.width;
+            for (int x = 0; x < w; x++) {
+                int dx = level.destColOfSourceCol[x0 + x];
+                int value = rgb[y*w + x];
+                int i = (rowOffset + dx) * 3;
+                strip.sums[i] += (value >> 16) & 0xFF;
+                strip.sums[i + 1] += (value >> 8) & 0xFF;
+                strip.sums[i + 2] += value & 0xFF;
+            }
+            strip.received += w;
+        }
+
+        // Flush in order so the level below receives whole rows
+        for (Iterator<Strip> iterator = level.activeStrips.values().iterator(); iterator.hasNext(); ) {
+            Strip strip = iterator.next();
+            if (strip.received < (long)strip.expectedSourceRows * source.width) continue;
+            iterator.remove();
+            int[] averaged = level.flush(strip);
+            level.completedStrips++;
+            accumulate(k + 1, 0, strip.firstRow, level.width, strip.rows, averaged);
+        }
+
+        if (level.isComplete())
+            logger.debug("Pyramid level {} (downsample {}) derived from level {}", k, downsamples[k], k - 1);
+    }
+
+    private int levelOf(double downsample) {
+        for (int k = 0; k < downsamples.length; k++) {
+            if (Math.abs(downsample - downsamples[k]) <= 1e-6 * downsamples[k])
+                return k;
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Level level : levels) {
+            if (level.channel != null) level.channel.close();
+        }
+    }
+
+    private class Level {
+        private final int width;
+        private final int height;
+        private final int stripRows;
+        private final int stripCount;
+        private int[] destRowOfSourceRow;
+        private int[] destColOfSourceCol;
+        private int[] sourceRowsPerDestRow;
+        private int[] sourceColsPerDestCol;
+        private final TreeMap<Integer, Strip> activeStrips = new TreeMap<>();
+        private int completedStrips = 0;
+        private FileChannel channel;
+
+        private Level(int k, int fullWidth, int fullHeight, int tileSize, File scratchDir) throws IOException {
+            this.width = (int)Math.ceil(fullWidth / downsamples[k]);
+            this.height = (int)Math.ceil(fullHeight / downsamples[k]);
+            if (k == 0) {
+                this.stripRows = height;
+                this.stripCount = 1;
+                return;
+            }
+
+            Level source = levels[k - 1];
+            double ratio = downsamples[k - 1] / downsamples[k];
+            this.stripRows = Math.max(1, (int)Math.ceil(tileSize * ratio));
+            this.stripCount = (int)Math.ceil((double)height / stripRows);
+
+            destRowOfSourceRow = new int[source.height];
+            sourceRowsPerDestRow = new int[height];
+            for (int sy = 0; sy < source.height; sy++) {
+                destRowOfSourceRow[sy] = Math.min(height - 1, (int)Math.floor(sy * ratio));
+                sourceRowsPerDestRow[destRowOfSourceRow[sy]]++;
+            }
+            destColOfSourceCol = new int[source.width];
+            sourceColsPerDestCol = new int[width];
+            for (int sx = 0; sx < source.width; sx++) {
+                destColOfSourceCol[sx] = Math.min(width - 1, (int)Math.floor(sx * ratio));
+                sourceColsPerDestCol[destColOfSourceCol[sx]]++;
+            }
+
+            this.channel = FileChannel.open(new File(scratchDir, "level-" + k + ".rgb").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        private Strip getStrip(int index) {
+            return activeStrips.computeIfAbsent(index, i -> {
+                int firstRow = i * stripRows;
+                int rows = Math.min(stripRows, height - firstRow);
+                int expected = 0;
+                for (int r = firstRow; r < firstRow + rows; r++) {
+                    expected += sourceRowsPerDestRow[r];
+                }
+                return new Strip(firstRow, rows, width, expected);
+            });
+        }
+
+        /**
+         * Average the sums of a complete strip, write it to the level file and return
+         * the averaged pixels as packed RGB.
+         */
+        private int[] flush(Strip strip) throws IOException {
+            int[] averaged = new int[strip.rows * width];
+            ByteBuffer buffer = ByteBuffer.allocate(strip.rows * width * 3);
+            for (int r = 0; r < strip.rows; r++) {
+                int rowCount = sourceRowsPerDestRow[strip.firstRow + r];
+                for (int c = 0; c < width; c++) {
+                    int i = r * width + c;
+                    int count = rowCount * sourceColsPerDestCol[c];
+                    int red = 0, green = 0, blue = 0;
+                    if (count > 0) {
+                        red = (strip.sums[i*3] + count/2) / count;
+                        green = (strip.sums[i*3 + 1] + count/2) / count;
+                        blue = (strip.sums[i*3 + 2] + count/2) / count;
+                    }
+                    averaged[i] = (red << 16) | (green << 8) | blue;
+                    buffer.put((byte)red).put((byte)green).put((byte)blue);
+                }
+            }
+            buffer.flip();
+            long position = (long)strip.firstRow * width * 3;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            return averaged;
+        }
+
+        private boolean isComplete() {
+            return completedStrips == stripCount;
+        }
+    }
+
+    private static class Strip {
+        private final int firstRow;
+        private final int rows;
+        private final int expectedSourceRows;
+        private final int[] sums;
+        private long received = 0;
+
+        private Strip(int firstRow, int rows, int width, int expectedSourceRows) {
+            this.firstRow = firstRow;
+            this.rows = rows;
+            this.expectedSourceRows = expectedSourceRows;
+            this.sums = new int[rows * width * 3];
+        }
+    }
+
+}
@@ -0,0 +1,33 @@
+package qupath.extension.imgnorm;
+
+import java.io.File;
+
+/**
+ * Outcome of an ImgNorm run for a single project entry.
+ *
+ * @param imageName name of the original project entry
+ * @param status what happened to the entry
+ * @param output the normalized image, or null if none was written
+ * @param message the reason the entry was skipped or failed, or null
+ */
+public record ImgNormResult(String imageName, Status status, File output, String message) {
+
+    public enum Status {
+        /** The image was normalized in this run. */
+        NORMALIZED,
+        /** An identical normalized image was reused from the shared output store. */
+        REUSED,
+        /** The entry was not processed (e.g., it is not set to Brightfield H&E). */
+        SKIPPED,
+        /** Processing the entry failed. */
+        FAILED
+    }
+
+    /**
+     * @return true if a normalized image is available for the entry
+     */
+    public boolean isSuccessful() {
+        return status == Status.NORMALIZED || status == Status.REUSED;
+    }
+
+}
@@ -2,13 +2,13 @@ package qupath.extension.imgnorm;
 
 import java.io.*;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
-import java.nio.file.attribute.DosFileAttributes;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import javafx.application.Platform;
 import com.google.gson.Gson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,246 +17,398 @@ import org.slf4j.LoggerFactory;
 public class ImgNormRunPython {
 
     static final Logger logger = LoggerFactory.getLogger(ImgNormRunPython.class);
-    private Integer inputDirSize;
-    private String lastProcessOutputLine = null;
-    private final File inputDir;
-    private final ImgNormRunner.ImgNormTask task;
+    private final List<File> patchDirectories;
+    private final ImgNormPipeline pipeline;
     private final Double progressToAdd;
     private final Integer PREFERRED_NO_PROCESSORS;
-
-
-    /**
-     * @param inputDir directory containing directories of .tif/.tiff patches
-     * @param task the ImgNormTask being run
-     * @param progressToAdd how much progress to add to the task
-     * @param tryMultiprocessing request if multiprocessing (parallelization) should be done
-     */
-    public ImgNormRunPython(File inputDir, ImgNormRunner.ImgNormTask task, Double progressToAdd, boolean tryMultiprocessing) {
-        this.inputDir = inputDir;
-        this.task = task;
-        this.progressToAdd = progressToAdd;
-
-        if (tryMultiprocessing)
-            this.PREFERRED_NO_PROCESSORS = processorsToUse();
-        else
-            this.PREFERRED_NO_PROCESSORS = 1;
+    private final List<Process> processList = new CopyOnWriteArrayList<>();
+    private volatile boolean destroyed = false;
+
+    private static final long POLL_MILLIS = 1000;
+    private static final long HEARTBEAT_TIMEOUT_MILLIS = 5 * 60 * 1000; // normalizing a patch takes seconds, estimating the reference less than a minute
+    private static final long MIN_SPECULATION_MILLIS = 60 * 1000;
+    private static final double SPECULATION_FACTOR = 2.0; // relative to the median duration of the jobs completed so far
+    private static final int MAX_ATTEMPTS = 3;
+
+    // Python processes of every run, which are killed if QuPath exits while they are running,
+    // as PyInstaller executables run the script in a child process that would otherwise outlive it
+    private static final Set<Process> liveProcesses = ConcurrentHashMap.newKeySet();
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> liveProcesses.forEach(ImgNormRunPython::destroyProcessTree),
+                "imgnorm-python-cleanup"));
     }
 
+
     /**
-     * @param inputDir directory containing directories of .tif/.tiff patches
-     * @param task the ImgNormTask being run
+     * @param patchDirectories directories of .tif/.tiff patches
+     * @param pipeline the ImgNormPipeline being run
      * @param progressToAdd how much progress to add to the task
      * @param processorsToUse the number of processors (i.e., instances of the Python
      *                        executable for parallelization) to use
      */
-    public ImgNormRunPython(File inputDir, ImgNormRunner.ImgNormTask task, Double progressToAdd, int processorsToUse) {
-        this.inputDir = inputDir;
-        this.task = task;
+    public ImgNormRunPython(List<File> patchDirectories, ImgNormPipeline pipeline, Double progressToAdd, int processorsToUse) {
+        this.patchDirectories = patchDirectories;
+        this.pipeline = pipeline;
         this.progressToAdd = progressToAdd;
         this.PREFERRED_NO_PROCESSORS = processorsToUse;
     }
 
     /**
-     * Load and run the Python executable.
+     * Load and run the Python executable, with one job per patch directory.
+     * <p>
+     * Jobs are dispatched from a queue to up to the preferred number of processes. Each process
+     * reports a heartbeat with every line it prints (at least one per patch); a job whose process
+     * falls silent for too long is killed and re-dispatched, and a job that runs much longer than
+     * the jobs completed so far gets a speculative second attempt once the queue is empty and a
+     * process is free (so never more processes run than preferred), which works through the patches
+     * in reverse order. The first attempt to finish wins and the other
+     * one is killed. The engine writes each normalized patch atomically and skips patches that have
+     * been normalized already, so attempts of the same job can safely share a directory, and a job
+     * that is retried because some of its patches failed only normalizes those patches again.
      */
     public void runPython() {
-        String inputDirStr = inputDir.toString();
-        List<String> inputDirContentsStr = Arrays.stream(Objects.requireNonNull(new File(inputDirStr).listFiles(),
-                "Directory not found: " + inputDirStr)) // <- this should not happen...
-                .filter(file -> !file.isHidden()) // <- remove invisible files
-                .map(File::toString)
-                .toList();
-
-        inputDirSize = inputDirContentsStr.size();
-
         logger.info("Initializing Python...");
-        File tempExecutable = null;
 
         ExecutorService pool = Executors.newCachedThreadPool();
 
         try {
-            // Extract the executable from the JAR to a temporary file
-            InputStream executableStream = null;
-            if (System.getProperty("os.name").toLowerCase().contains("windows")){
-                executableStream = ImgNormRunPython.class.getClassLoader().getResourceAsStream("python/imgNorm/dist/main.exe");
-                tempExecutable = File.createTempFile("python/main.exe", "");
-            } else if (System.getProperty("os.name").toLowerCase().contains("mac")){
-                executableStream = ImgNormRunPython.class.getClassLoader().getResourceAsStream("python/imgNorm/dist/main");
-                tempExecutable = File.createTempFile("python/main", "");
-            }
-
-            if (executableStream == null) {
-                throw new FileNotFoundException("Executable resource not found.");
-            }
-            Files.copy(executableStream, tempExecutable.toPath(), StandardCopyOption.REPLACE_EXISTING);
-            tempExecutable.setExecutable(true);
-
-            logger.info("Extracted Python executable to: " + tempExecutable.getAbsolutePath());
-
-            List<List<String>> partitionedInputDirContentsStrList = getPartitionedList(inputDirContentsStr, PREFERRED_NO_PROCESSORS);
-            List<Process> processList = new ArrayList<>();
-            int count = 1;
-            for (List<String> partitionedInputDirContentsStr : partitionedInputDirContentsStrList) {
-
-                String jsonArg = new Gson().toJson(partitionedInputDirContentsStr); // make a JSON representation of the list to give to Python
-                String encodedJsonArg = Base64.getEncoder().encodeToString(jsonArg.getBytes()); // encode the JSON string, as Windows path strings use "\\" interpreted as escape characters
-                logger.info("JSON Argument: " + jsonArg + "\n Encoded JSON Argument: " + encodedJsonArg); // debugging only...
-                ProcessBuilder pb = new ProcessBuilder(tempExecutable.getAbsolutePath(), encodedJsonArg); // <- COMMAND LINE ARGUMENTS FOR PYTHON EXECUTABLE
-                pb.redirectErrorStream(true); // Combine stdout and stderr
-                Process process = pb.start();
-                logger.info("Python process: " + process);
-
-                processList.add(process);
-                int finalCount = count;
-                CompletableFuture.runAsync(() -> readProcessOutput(process.getInputStream(), task, process, finalCount, partitionedInputDirContentsStrList.size()), pool);
-
-                count++;
-            }
+            List<String> engineCommand = pipeline.getOptions().getEngineCommand();
+            if (engineCommand == null)
+                engineCommand = ImgNormEngine.getCommand();
+            else
+                logger.info("Using normalization engine: " + String.join(" ", engineCommand));
 
-            for (Process process : processList) {
-                int exitValue = process.waitFor();
-                if (exitValue == 1) throw new RuntimeException("Python script finished with exit code: " + exitValue);
-            }
+            ImgNormProgress progress = pipeline.getProgressAggregator();
+            progress.setMessage("Normalizing images");
+            progress.startWorkers(PREFERRED_NO_PROCESSORS);
+            runJobs(engineCommand, pool);
 
         } catch (IOException | InterruptedException e) {
             logger.error("Failed to run Python script.", e);
             throw new RuntimeException(e);
         } finally {
             pool.shutdown();
-            if (tempExecutable != null && tempExecutable.exists()) {
-                boolean deleted = tempExecutable.delete();
-                if (deleted) {
-                    logger.info("Temporary Python executable deleted successfully.");
-                } else {
-                    logger.warn("Failed to delete temporary Python executable.");
-                }
-            }
+            processList.forEach(process -> {
+                if (process.isAlive()) destroyProcessTree(process); // e.g., if waiting was interrupted
+                liveProcesses.remove(process);
+            });
+            pipeline.getProgressAggregator().finishWorkers();
         }
     }
 
-    private void readProcessOutput(InputStream inputStream, ImgNormRunner.ImgNormTask task, Process process, int processNumber, int totalProcesses) {
-        new BufferedReader(new InputStreamReader(inputStream)).lines().forEach(line -> {
+    /**
+     * Dispatch the jobs and watch over their attempts until every job has completed or failed.
+     */
+    private void runJobs(List<String> engineCommand, ExecutorService pool) throws IOException, InterruptedException {
+        Deque<Job> queue = new ArrayDeque<>();
+        patchDirectories.forEach(dir -> queue.add(new Job(dir)));
+        int jobCount = queue.size();
+        List<Attempt> running = new ArrayList<>();
 
-            if (line.equals("Next")) {
-                updateTaskProgressByProcess(task);
-            }
+        try {
+            dispatchJobs(queue, jobCount, running, engineCommand, pool);
+        } finally {
+            running.forEach(attempt -> attempt.finish("cancelled")); // no-op for attempts that have been reaped
+        }
+    }
 
-            if (line.contains("Failed to normalize")) {
-                logger.error(line);
-                task.setErrorStatus(true);
+    private void dispatchJobs(Deque<Job> queue, int jobCount, List<Attempt> running, List<String> engineCommand, ExecutorService pool)
+            throws IOException, InterruptedException {
+        List<Long> completedDurations = new ArrayList<>();
+        Deque<Integer> freeSlots = new ArrayDeque<>();
+        for (int slot = 1; slot <= PREFERRED_NO_PROCESSORS; slot++) {
+            freeSlots.add(slot);
+        }
+        int remainingJobs = jobCount;
+
+        while (remainingJobs > 0) {
+            if (destroyed || pipeline.isCancelled()) return;
+            long now = System.currentTimeMillis();
+
+            // Reap the attempts that have exited
+            for (Iterator<Attempt> iterator = running.iterator(); iterator.hasNext(); ) {
+                Attempt attempt = iterator.next();
+                if (attempt.process.isAlive()) continue;
+                iterator.remove();
+                liveProcesses.remove(attempt.process);
+                freeSlots.addFirst(attempt.slot);
+                Job job = attempt.job;
+                attempt.finish(attempt.killed ? attempt.outcome : attempt.process.exitValue() == 0 ? "completed" : "failed");
+                pipeline.getStats().addBusyTime(ImgNormRunStats.Phase.NORMALIZE, null, Duration.ofMillis(now - attempt.startMillis));
+                if (job.done || attempt.killed || !job.attempts.contains(attempt)) continue; // settled already
+
+                int exitValue = attempt.process.exitValue();
+                if (exitValue == 0) {
+                    job.done = true;
+                    remainingJobs--;
+                    completedDurations.add(now - job.startMillis);
+                    pipeline.getStats().addImageTime(job.directory.getName(), ImgNormRunStats.Phase.NORMALIZE, Duration.ofMillis(now - job.startMillis));
+                    pipeline.getProgressAggregator().addProgress(progressToAdd / jobCount);
+                    killOtherAttempts(job, running);
+                } else if (job.attempts.stream().noneMatch(other -> other.process.isAlive())) {
+                    logger.warn("Python process for {} finished with exit code: {}", job.directory.getName(), exitValue);
+                    remainingJobs -= retryOrFail(job, queue);
+                }
             }
 
-            if (task.isQuietlyCancelled() || task.isCancelled()) {
-                // TODO: See if Platform.runLater() is necessary
-                Platform.runLater(() -> {
-                    logger.info("Terminating Python script for cancellation...");
-                    process.destroy();
-                });
-                return;
+            // Kill and re-dispatch the attempts that have stopped reporting
+            for (Attempt attempt : running) {
+                if (attempt.killed || now - attempt.lastHeartbeatMillis <= HEARTBEAT_TIMEOUT_MILLIS) continue;
+                logger.warn("Python process for {} has not reported progress for {}s, so it will be restarted",
+                        attempt.job.directory.getName(), (now - attempt.lastHeartbeatMillis) / 1000);
+                attempt.kill("stalled");
+                pipeline.getStats().increment("stalledProcesses");
+                Job job = attempt.job;
+                if (!job.done && job.attempts.stream().noneMatch(other -> other != attempt && !other.killed))
+                    remainingJobs -= retryOrFail(job, queue);
             }
 
-            logger.info(line);
-            updateTaskMessageByProcess(task, line, processNumber, totalProcesses);
+            // Dispatch queued jobs to free processes
+            while (!freeSlots.isEmpty() && !queue.isEmpty()) {
+                Job job = queue.poll();
+                if (job.startMillis == 0) job.startMillis = now;
+                running.add(startAttempt(engineCommand, job, freeSlots.poll(), false, pool));
+            }
 
-        });
+            // Once the queue is empty, start a speculative attempt for the slowest straggler in a free process slot.
+            // Speculative attempts count against the number of processes, which the memory use was sized for
+            if (queue.isEmpty() && !completedDurations.isEmpty() && !freeSlots.isEmpty()) {
+                long threshold = Math.max(MIN_SPECULATION_MILLIS, (long)(SPECULATION_FACTOR * median(completedDurations)));
+                Job straggler = running.stream()
+                        .map(attempt -> attempt.job)
+                        .filter(job -> !job.done && job.attempts.size() == 1 && now - job.startMillis > threshold)
+                        .min(Comparator.comparingLong(job -> job.startMillis))
+                        .orElse(null);
+                if (straggler != null) {
+                    int slot = freeSlots.poll();
+                    logger.info("Normalization of {} is taking more than {}s, so starting a speculative attempt",
+                            straggler.directory.getName(), threshold / 1000);
+                    running.add(startAttempt(engineCommand, straggler, slot, true, pool));
+                    pipeline.getStats().increment("speculativeAttempts");
+                }
+            }
 
-        updateTaskMessageByProcess(task, "[Done]", processNumber, totalProcesses);
+            Thread.sleep(POLL_MILLIS);
+        }
     }
 
-    private synchronized void updateTaskProgressByProcess(ImgNormRunner.ImgNormTask task) {
-        Platform.runLater(() -> task.updateTaskProgress(task.getProgress()*100 + progressToAdd/(double)inputDirSize, 100));
+    /**
+     * Queue a job again after its attempts have failed, unless it has failed too often already,
+     * in which case its directory is flagged so that stitching skips it.
+     *
+     * @return 1 if the job has failed for good, 0 if it was queued again
+     */
+    private int retryOrFail(Job job, Deque<Job> queue) {
+        job.failures++;
+        if (job.failures < MAX_ATTEMPTS) {
+            pipeline.getStats().increment("normalizationRetries");
+            job.attempts.clear();
+            queue.addFirst(job);
+            return 0;
+        }
+        job.done = true;
+        String failedPatches = readFailedPatches(job.directory);
+        logger.error("Failed to normalize in {} after {} attempts{}", job.directory, job.failures,
+                failedPatches.isEmpty() ? "" : ", patches still failing:\n" + failedPatches);
+        pipeline.setErrorStatus(true);
+        File errorFlag = new File(job.directory, "ERROR.txt");
+        if (!errorFlag.exists()) {
+            try {
+                Files.writeString(errorFlag.toPath(), "Normalization failed after " + job.failures + " attempts\n" + failedPatches);
+            } catch (IOException e) {
+                logger.warn("Failed to flag {}: {}", job.directory, e.getMessage());
+            }
+        }
+        return 1;
     }
 
-    private synchronized void updateTaskMessageByProcess(ImgNormRunner.ImgNormTask task, String line, int processNumber, int totalProcesses) {
-        if (totalProcesses == 1) { // if configured to 1 process, then no need to indicate the number of processes used
-            task.updateTaskMessage(line);
-            return;
+    /**
+     * @return the patches listed as failed by the last attempt of a job, or an empty string if the
+     *         job failed as a whole (e.g., its reference image could not be read)
+     */
+    private static String readFailedPatches(File directory) {
+        File failedList = new File(new File(directory, ImgNormImageTools.NORMALIZED_PATCH_DIR), "failed_patches.txt");
+        try {
+            return failedList.exists() ? Files.readString(failedList.toPath()).strip() : "";
+        } catch (IOException e) {
+            return "";
         }
+    }
 
-        if (lastProcessOutputLine == null) {
-            lastProcessOutputLine = createLineBreaks("[Retrieving processor updates...]",totalProcesses + 2); // ensure we have 2 extra lines for a header and its line break
-            lastProcessOutputLine = replaceNthLine(lastProcessOutputLine, 0, "Normalizing images (No. processes: " + totalProcesses + ")");
-            lastProcessOutputLine = replaceNthLine(lastProcessOutputLine, 1, " ");
+    private void killOtherAttempts(Job job, List<Attempt> running) {
+        for (Attempt other : running) {
+            if (other.job == job && !other.killed)
+                other.kill("superseded");
         }
+    }
 
-        lastProcessOutputLine = replaceNthLine(lastProcessOutputLine, processNumber + 1 /* +1 to make space b/w header */, "Process #" + processNumber + ": " + line);
-        task.updateTaskMessage(lastProcessOutputLine);
+    private Attempt startAttempt(List<String> engineCommand, Job job, int slot, boolean reverse, ExecutorService pool) throws IOException {
+        String jsonArg = new Gson().toJson(List.of(job.directory.toString())); // make a JSON representation of the list to give to Python
+        String encodedJsonArg = Base64.getEncoder().encodeToString(jsonArg.getBytes()); // encode the JSON string, as Windows path strings use "\\" interpreted as escape characters
+        logger.debug("JSON Argument: " + jsonArg + "\n Encoded JSON Argument: " + encodedJsonArg);
+        List<String> command = new ArrayList<>(engineCommand);
+        command.add(encodedJsonArg); // <- COMMAND LINE ARGUMENTS FOR PYTHON EXECUTABLE
+        if (reverse) command.add("reverse");
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectErrorStream(true); // Combine stdout and stderr
+        Process process = pb.start();
+        logger.info("Python process for {}: {}", job.directory.getName(), process);
+
+        Attempt attempt = new Attempt(job, process, slot, reverse);
+        job.attempts.add(attempt);
+        processList.add(process);
+        liveProcesses.add(process);
+        if (destroyed) destroyProcessTree(process); // destroyed while the process was starting
+        CompletableFuture.runAsync(() -> readProcessOutput(process.getInputStream(), attempt), pool);
+        return attempt;
     }
 
-    /**
-     * Get the number of Python executables to spawn for multiprocessing
-     * (based on a fraction of the machine's core count). Note that this
-     * returns 1 for macOS due to poor multiprocessing benchmarks observed
-     * during testing.
-     *
-     * @return the number of Python executables to spawn
-     */
-    private int processorsToUse() { // limit to a 1/2 of the cores for now
-        if (System.getProperty("os.name").toLowerCase().contains("mac"))
-            return 1;
+    private void readProcessOutput(InputStream inputStream, Attempt attempt) {
+        ImgNormProgress progress = pipeline.getProgressAggregator();
+        new BufferedReader(new InputStreamReader(inputStream)).lines().forEach(line -> {
+            attempt.lastHeartbeatMillis = System.currentTimeMillis();
+            attempt.tracePatch(line);
+
+            if (line.contains("Failed to normalize") || line.startsWith("Retrying patch")) {
+                logger.warn(line); // reported as an error once the job has run out of attempts
+                if (line.startsWith("Failed to normalize patch"))
+                    pipeline.getStats().increment("patchFailures");
+            } else if (line.startsWith("Normalizing patch") || line.startsWith("Skipping patch")) {
+                if (line.startsWith("Normalizing patch"))
+                    progress.incrementPatchesNormalized();
+                logger.debug(line); // one line per patch, so keep these out of the log by default
+            } else {
+                logger.info(line);
+            }
+            progress.setWorkerLine(attempt.slot, line);
 
-        double fractionOfCoresToUse = (double) 1/2;
-        int processorCount = Runtime.getRuntime().availableProcessors();
-        return (int)Math.ceil((double)processorCount*fractionOfCoresToUse);
+        });
+
+        attempt.tracePatch(null);
+        progress.setWorkerLine(attempt.slot, "[Done]");
     }
 
+    private static long median(List<Long> values) {
+        List<Long> sorted = values.stream().sorted().toList();
+        return sorted.get(sorted.size() / 2);
+    }
 
     /**
-     * Get a list containing partitions of the input list.
-     *
-     * @param inputList the input list
-     * @param preferredSplitCount preferred number of partitions.
-     * @return list containing partitions of the input list
+     * A patch directory to normalize. Only accessed from the thread running the jobs.
      */
-    private static <T> List<List<T>> getPartitionedList(List <T> inputList, int preferredSplitCount) {
-
-        List<T> mutableList = new ArrayList<>(inputList);
-
-        int remainder = (preferredSplitCount < mutableList.size()) ? mutableList.size() % preferredSplitCount : 0;
-        int partitionSize = (preferredSplitCount < mutableList.size()) ? (mutableList.size() - remainder)/preferredSplitCount : 1; // floored b/c cast to int
+    private static class Job {
+        private final File directory;
+        private final List<Attempt> attempts = new ArrayList<>();
+        private long startMillis = 0;
+        private int failures = 0;
+        private boolean done = false;
+
+        private Job(File directory) {
+            this.directory = directory;
+        }
+    }
 
-        List<T> remainderEntry = new ArrayList<>();
-        for (int i = 0; i < remainder; i++) {
-            remainderEntry.add(mutableList.remove(0));
+    /**
+     * A process normalizing the patches of a job.
+     */
+    private static class Attempt {
+        private final Job job;
+        private final Process process;
+        private final int slot;
+        private final long startMillis = System.currentTimeMillis();
+        private volatile long lastHeartbeatMillis = System.currentTimeMillis(); // updated by the output reader
+        private boolean killed = false;
+        private String outcome = null;
+        private boolean finished = false;
+        private final ImgNormEvents.WorkerProcess processEvent = new ImgNormEvents.WorkerProcess();
+        private ImgNormEvents.PatchNormalize patchEvent = null; // only accessed by the output reader
+
+        private Attempt(Job job, Process process, int slot, boolean speculative) {
+            this.job = job;
+            this.process = process;
+            this.slot = slot;
+            processEvent.begin();
+            processEvent.imageName = job.directory.getName();
+            processEvent.worker = slot;
+            processEvent.pid = process.pid();
+            processEvent.speculative = speculative;
         }
 
-        List<List<T>> listPartitions = new ArrayList<>();
+        private void kill(String reason) {
+            killed = true;
+            outcome = reason;
+            destroyProcessTree(process);
+        }
 
-        while (!mutableList.isEmpty()) {
-            List<T> nextEntry = new ArrayList<>();
-            for (int j = 0; j < partitionSize; j++) {
-                T element = mutableList.remove(0);
-                nextEntry.add(element);
+        /**
+         * Record the process's lifecycle event, once it has exited or been abandoned.
+         */
+        private void finish(String outcome) {
+            if (finished) return;
+            finished = true;
+            processEvent.end();
+            if (processEvent.shouldCommit()) {
+                processEvent.exitCode = process.isAlive() ? -1 : process.exitValue();
+                processEvent.outcome = outcome;
+                processEvent.commit();
             }
-            listPartitions.add(nextEntry);
         }
 
-        if (!remainderEntry.isEmpty() && !listPartitions.isEmpty()) { // Distribute the remainder
-            for (List<T> partition : listPartitions) {
-                partition.add(remainderEntry.remove(0));
-                if (remainderEntry.isEmpty())
-                    break;
+        /**
+         * Time the patches from the engine's output: a patch is taken to be normalized from the line
+         * announcing it until the next line announcing a patch (or the end of the output).
+         *
+         * @param line a line of output, or null at the end of the output
+         */
+        private void tracePatch(String line) {
+            boolean normalizing = line != null && line.startsWith("Normalizing patch");
+            boolean skipping = line != null && line.startsWith("Skipping patch");
+            if (line != null && !normalizing && !skipping) return;
+
+            if (patchEvent != null) {
+                patchEvent.end();
+                if (patchEvent.shouldCommit())
+                    patchEvent.commit();
+                patchEvent = null;
             }
+            if (line == null) return;
+
+            var event = new ImgNormEvents.PatchNormalize();
+            if (!event.isEnabled()) return;
+            int nameIndex = line.lastIndexOf(": ");
+            var patch = nameIndex < 0 ? null : ImgNormPatchGridServer.parsePatch(new File(job.directory, line.substring(nameIndex + 2)));
+            if (patch != null)
+                event.setRegion(job.directory.getName(), patch.x, patch.y, patch.width, patch.height, patch.file.length());
+            else
+                event.imageName = job.directory.getName();
+            event.worker = slot;
+            event.skipped = skipping;
+            event.begin();
+            patchEvent = event;
         }
-
-        return listPartitions;
     }
 
-    private static String replaceNthLine(String input, int lineToReplace, String newLineContent) {
-        String[] lines = input.split("\n");
-
-        if (lineToReplace < 0 || lineToReplace >= lines.length) {
-            throw new IllegalArgumentException("Line number out of bounds");
-        }
-
-        lines[lineToReplace] = newLineContent;
-
-        return String.join("\n", lines);
+    /**
+     * Kill the Python processes, including their child processes, and stop starting new ones.
+     * Can be called from any thread; {@link #runPython()} then returns as soon as the processes have exited.
+     */
+    public void destroy() {
+        destroyed = true;
+        if (!processList.isEmpty())
+            logger.info("Terminating Python processes for cancellation...");
+        processList.forEach(ImgNormRunPython::destroyProcessTree);
     }
 
-    private static String createLineBreaks(String optionalPrefix, int n) {
-        return (optionalPrefix + " \n").repeat(n);
+    /**
+     * Forcibly kill a process and all of its descendants. The descendants are listed first,
+     * since they may no longer be found once their parent has exited.
+     *
+     * @param process the process
+     */
+    static void destroyProcessTree(Process process) {
+        List<ProcessHandle> descendants = process.descendants().toList();
+        process.destroyForcibly();
+        descendants.forEach(ProcessHandle::destroyForcibly);
     }
 
-
 }
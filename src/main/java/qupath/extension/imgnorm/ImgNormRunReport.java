@@ -0,0 +1,117 @@
+package qupath.extension.imgnorm;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Machine-readable report of an ImgNorm run, written as JSON next to the normalized project so that
+ * runs can be compared over time. Durations are in milliseconds and sizes in bytes.
+ */
+public class ImgNormRunReport {
+
+    static final String FILE_NAME = "imgnorm_report.json";
+
+    private ImgNormRunReport() {}
+
+    /**
+     * Write the report of a run.
+     *
+     * @param file the file to write
+     * @param stats the timings and counts of the run
+     * @param options the options of the run
+     * @param results the results of the run, or null if it did not complete
+     * @param cancelled whether the run was cancelled
+     * @throws IOException if the report cannot be written
+     */
+    static void write(File file, ImgNormRunStats stats, ImgNormOptions options, List<ImgNormResult> results,
+                      boolean cancelled) throws IOException {
+        JsonObject report = new JsonObject();
+        report.addProperty("startTime", String.valueOf(stats.getStartTime()));
+        report.addProperty("durationMillis", stats.getTotalDuration().toMillis());
+        report.addProperty("completed", results != null);
+        report.addProperty("cancelled", cancelled);
+        report.addProperty("peakHeapBytes", stats.getPeakHeapBytes());
+        report.addProperty("maxHeapBytes", Runtime.getRuntime().maxMemory());
+        report.addProperty("availableProcessors", Runtime.getRuntime().availableProcessors());
+        report.addProperty("options", options.toString());
+
+        // Outcome counts, including the failures and retries of the normalization engine
+        JsonObject counts = new JsonObject();
+        for (ImgNormResult.Status status : ImgNormResult.Status.values()) {
+            counts.addProperty(status.name().toLowerCase(), results == null ? 0 :
+                    results.stream().filter(result -> result != null && result.status() == status).count());
+        }
+        for (Map.Entry<String, Long> counter : stats.getCounters().entrySet()) {
+            counts.addProperty(counter.getKey(), counter.getValue());
+        }
+        report.add("counts", counts);
+
+        JsonObject phases = new JsonObject();
+        for (ImgNormRunStats.Phase phase : ImgNormRunStats.Phase.values()) {
+            JsonObject phaseReport = new JsonObject();
+            Duration duration = stats.getDuration(phase);
+            Duration busyTime = stats.getBusyTime(phase);
+            int workers = getWorkerCount(phase, options);
+            phaseReport.addProperty("durationMillis", duration.toMillis());
+            phaseReport.addProperty("busyMillis", busyTime.toMillis());
+            phaseReport.addProperty("workers", workers);
+            phaseReport.addProperty("utilization", duration.isZero() ? 0 : (double)busyTime.toNanos() / duration.toNanos() / workers);
+            phaseReport.addProperty("pixels", stats.getPixels(phase));
+            phaseReport.addProperty("megapixelsPerSecond", stats.getMegapixelsPerSecond(phase));
+            phases.add(phase.name().toLowerCase(), phaseReport);
+        }
+        report.add("phases", phases);
+
+        JsonArray images = new JsonArray();
+        for (ImgNormRunStats.ImageStats imageStats : stats.getImages()) {
+            JsonObject imageReport = new JsonObject();
+            imageReport.addProperty("baseName", imageStats.getBaseName());
+            imageReport.addProperty("pixels", imageStats.getPixels());
+            imageReport.addProperty("tileBytes", imageStats.getTileBytes());
+            imageReport.addProperty("outputBytes", imageStats.getOutputBytes());
+            JsonObject imagePhases = new JsonObject();
+            for (ImgNormRunStats.Phase phase : ImgNormRunStats.Phase.values()) {
+                imagePhases.addProperty(phase.name().toLowerCase() + "Millis", imageStats.getDuration(phase).toMillis());
+            }
+            imageReport.add("phases", imagePhases);
+            images.add(imageReport);
+        }
+        report.add("images", images);
+
+        JsonArray entries = new JsonArray();
+        if (results != null) {
+            for (ImgNormResult result : results) {
+                if (result == null) continue;
+                JsonObject entryReport = new JsonObject();
+                entryReport.addProperty("imageName", result.imageName());
+                entryReport.addProperty("status", result.status().name());
+                entryReport.addProperty("output", result.output() == null ? null : result.output().getAbsolutePath());
+                entryReport.addProperty("message", result.message());
+                entries.add(entryReport);
+            }
+        }
+        report.add("entries", entries);
+
+        Files.writeString(file.toPath(), new GsonBuilder().setPrettyPrinting().serializeNulls().create().toJson(report));
+    }
+
+    /**
+     * @return the number of workers the work of a phase is spread over
+     */
+    private static int getWorkerCount(ImgNormRunStats.Phase phase, ImgNormOptions options) {
+        return switch (phase) {
+            case OPEN -> 1; // entries are read ahead on a single thread
+            case NORMALIZE -> options.getNormalizationProcesses();
+            case TILE, REFERENCE, STITCH, PROJECT -> options.getImageConcurrency();
+        };
+    }
+
+}
@@ -0,0 +1,296 @@
+package qupath.extension.imgnorm;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timings and counts of an ImgNorm run: per phase, per normalized image and for the run as a whole.
+ * <p>
+ * The wall time of a phase runs from when its first piece of work starts until its last one ends, so work
+ * running in parallel (e.g., the tiling of several images) is only counted once, while phases that overlap
+ * (e.g., opening the next image while tiling the previous one) are each counted in full. The busy time of a
+ * phase is the sum of the durations of its pieces of work, so that dividing it by the wall time and the
+ * number of workers gives the utilization of the workers.
+ */
+public class ImgNormRunStats {
+
+    public enum Phase {
+        /** Reading the image data of the entries. */
+        OPEN,
+        /** Writing the tiles and reference images. */
+        TILE,
+        /** Writing the reference images (part of {@link #TILE}). */
+        REFERENCE,
+        /** Running the normalization engine. */
+        NORMALIZE,
+        /** Stitching the normalized tiles into pyramidal images. */
+        STITCH,
+        /** Adding the normalized images to the normalized project. */
+        PROJECT
+    }
+
+    /**
+     * Marks the end of a piece of work started with {@link #start(Phase)}.
+     */
+    public interface Timer extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    /**
+     * Timings and sizes of one normalized image, identified by its base name.
+     */
+    public static class ImageStats {
+        private final String baseName;
+        private final long[] phaseNanos = new long[Phase.values().length];
+        private long pixels;
+        private long tileBytes;
+        private long outputBytes;
+
+        private ImageStats(String baseName) {
+            this.baseName = baseName;
+        }
+
+        public String getBaseName() {
+            return baseName;
+        }
+
+        public Duration getDuration(Phase phase) {
+            return Duration.ofNanos(phaseNanos[phase.ordinal()]);
+        }
+
+        public long getPixels() {
+            return pixels;
+        }
+
+        /**
+         * @return the number of bytes of tiles written to scratch for the image
+         */
+        public long getTileBytes() {
+            return tileBytes;
+        }
+
+        /**
+         * @return the size of the normalized image in bytes
+         */
+        public long getOutputBytes() {
+            return outputBytes;
+        }
+    }
+
+    private final int[] activeCounts = new int[Phase.values().length];
+    private final long[] activeSinceNanos = new long[Phase.values().length];
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private final long[] busyNanos = new long[Phase.values().length];
+    private final long[] phasePixels = new long[Phase.values().length];
+    private final Map<String, ImageStats> images = new LinkedHashMap<>();
+    private final Map<String, Long> counters = new LinkedHashMap<>();
+    private Instant runStart = null;
+    private long runStartNanos = -1;
+    private long runEndNanos = -1;
+
+    synchronized void startRun() {
+        runStart = Instant.now();
+        runStartNanos = System.nanoTime();
+        heapPools().forEach(MemoryPoolMXBean::resetPeakUsage);
+    }
+
+    synchronized void finishRun() {
+        runEndNanos = System.nanoTime();
+    }
+
+    /**
+     * Start timing a piece of work, e.g. with try-with-resources.
+     *
+     * @param phase the phase the work belongs to
+     * @return a timer to close when the work is done
+     */
+    public Timer start(Phase phase) {
+        return start(phase, null);
+    }
+
+    /**
+     * Start timing a piece of work for an image, e.g. with try-with-resources.
+     *
+     * @param phase the phase the work belongs to
+     * @param baseName base name of the image the work is for, or null
+     * @return a timer to close when the work is done
+     */
+    public synchronized Timer start(Phase phase, String baseName) {
+        int i = phase.ordinal();
+        long startNanos = System.nanoTime();
+        if (activeCounts[i]++ == 0)
+            activeSinceNanos[i] = startNanos;
+        return () -> stop(phase, baseName, startNanos);
+    }
+
+    private synchronized void stop(Phase phase, String baseName, long startNanos) {
+        int i = phase.ordinal();
+        long endNanos = System.nanoTime();
+        if (--activeCounts[i] == 0)
+            phaseNanos[i] += endNanos - activeSinceNanos[i];
+        busyNanos[i] += endNanos - startNanos;
+        if (baseName != null)
+            getOrCreateImage(baseName).phaseNanos[i] += endNanos - startNanos;
+    }
+
+    /**
+     * Record work that was timed elsewhere (e.g., by a worker process) as busy time of a phase.
+     *
+     * @param phase the phase
+     * @param baseName base name of the image the work was for, or null
+     * @param duration how long the work took
+     */
+    public synchronized void addBusyTime(Phase phase, String baseName, Duration duration) {
+        busyNanos[phase.ordinal()] += duration.toNanos();
+        if (baseName != null)
+            getOrCreateImage(baseName).phaseNanos[phase.ordinal()] += duration.toNanos();
+    }
+
+    /**
+     * Attribute work that was timed (as busy time) without knowing which image it was for to an image.
+     */
+    synchronized void addImageTime(String baseName, Phase phase, Duration duration) {
+        getOrCreateImage(baseName).phaseNanos[phase.ordinal()] += duration.toNanos();
+    }
+
+    /**
+     * @param phase the phase
+     * @param pixels the number of (full-resolution) pixels that went through the phase
+     */
+    public synchronized void addPixels(Phase phase, long pixels) {
+        phasePixels[phase.ordinal()] += pixels;
+    }
+
+    synchronized void setImagePixels(String baseName, long pixels) {
+        getOrCreateImage(baseName).pixels = pixels;
+    }
+
+    synchronized void setImageTileBytes(String baseName, long bytes) {
+        getOrCreateImage(baseName).tileBytes = bytes;
+    }
+
+    synchronized void setImageOutputBytes(String baseName, long bytes) {
+        getOrCreateImage(baseName).outputBytes = bytes;
+    }
+
+    /**
+     * @param name name of the counter, e.g. "normalizationRetries"
+     */
+    public synchronized void increment(String name) {
+        counters.merge(name, 1L, Long::sum);
+    }
+
+    /**
+     * @param name name of the counter, e.g. "bufferPoolHits"
+     * @param amount the amount to add
+     */
+    public synchronized void add(String name, long amount) {
+        counters.merge(name, amount, Long::sum);
+    }
+
+    private ImageStats getOrCreateImage(String baseName) {
+        return images.computeIfAbsent(baseName, ImageStats::new);
+    }
+
+    /**
+     * @param phase the phase
+     * @return the time during which the phase had work in progress, including work still in progress
+     */
+    public synchronized Duration getDuration(Phase phase) {
+        int i = phase.ordinal();
+        long nanos = phaseNanos[i];
+        if (activeCounts[i] > 0)
+            nanos += System.nanoTime() - activeSinceNanos[i];
+        return Duration.ofNanos(nanos);
+    }
+
+    /**
+     * @param phase the phase
+     * @return the summed duration of the completed pieces of work of the phase
+     */
+    public synchronized Duration getBusyTime(Phase phase) {
+        return Duration.ofNanos(busyNanos[phase.ordinal()]);
+    }
+
+    /**
+     * @param phase the phase
+     * @return the number of pixels that went through the phase
+     */
+    public synchronized long getPixels(Phase phase) {
+        return phasePixels[phase.ordinal()];
+    }
+
+    /**
+     * @param phase the phase
+     * @return the throughput of the phase, or 0 if it has not taken any time
+     */
+    public double getMegapixelsPerSecond(Phase phase) {
+        double seconds = getDuration(phase).toNanos() / 1e9;
+        return seconds > 0 ? getPixels(phase) / 1e6 / seconds : 0;
+    }
+
+    /**
+     * @return the stats of the images tiled in the run, in the order they were first recorded
+     */
+    public synchronized List<ImageStats> getImages() {
+        return new ArrayList<>(images.values());
+    }
+
+    /**
+     * @return the counters, e.g. of retried normalization jobs
+     */
+    public synchronized Map<String, Long> getCounters() {
+        return new LinkedHashMap<>(counters);
+    }
+
+    /**
+     * @return when the run started, or null if it has not started
+     */
+    public synchronized Instant getStartTime() {
+        return runStart;
+    }
+
+    /**
+     * @return the duration of the run so far, or zero if it has not started
+     */
+    public synchronized Duration getTotalDuration() {
+        if (runStartNanos < 0) return Duration.ZERO;
+        return Duration.ofNanos((runEndNanos < 0 ? System.nanoTime() : runEndNanos) - runStartNanos);
+    }
+
+    /**
+     * @return the peak heap usage since the run started, summed over the heap's memory pools (so an upper bound)
+     */
+    public long getPeakHeapBytes() {
+        return heapPools().stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        return ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP && pool.isValid())
+                .toList();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ImgNorm run took ").append(formatSeconds(getTotalDuration()));
+        for (Phase phase : Phase.values()) {
+            sb.append(String.format("%n  %-9s %9s  %10.1f MP  %8.2f MP/s", phase, formatSeconds(getDuration(phase)),
+                    getPixels(phase) / 1e6, getMegapixelsPerSecond(phase)));
+        }
+        return sb.toString();
+    }
+
+    private static String formatSeconds(Duration duration) {
+        return String.format("%.2f s", duration.toMillis() / 1000.0);
+    }
+
+}
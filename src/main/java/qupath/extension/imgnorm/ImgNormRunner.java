@@ -6,25 +6,15 @@ import javafx.event.ActionEvent;
 import javafx.scene.Node;
 import javafx.scene.control.*;
 import org.controlsfx.dialog.ProgressDialog;
-import qupath.lib.color.ColorDeconvolutionStains;
-import qupath.lib.color.StainVector;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.dialogs.Dialogs;
 import qupath.lib.gui.viewer.QuPathViewer;
 import qupath.lib.images.ImageData;
-import qupath.lib.images.servers.ImageServers;
-import qupath.lib.objects.PathObject;
-import qupath.lib.objects.classes.PathClass;
 import qupath.lib.projects.Project;
-import qupath.lib.projects.ProjectImageEntry;
-import qupath.lib.projects.Projects;
 import java.awt.image.BufferedImage;
 import java.io.*;
-import java.net.URI;
-import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,19 +22,23 @@ import org.slf4j.LoggerFactory;
 public class ImgNormRunner implements Runnable {
 
     private final QuPathGUI qupath;
-    private static final int TILE_SIZE_PIXELS = 5000;  // NOTE: LARGER VALUES WILL USE MORE MEMORY!
-    private static final String FINAL_IMAGE_SUFFIX = "_norm.ome";
+    private final boolean draft;
     private ProgressDialog progressDialog;
-    private static final ColorDeconvolutionStains FINAL_STAINS = new ColorDeconvolutionStains("Normalized",
-            StainVector.createStainVector("Hematoxylin", 0.651, 0.701, 0.29),
-            StainVector.createStainVector("Eosin", 0.216, 0.801, 0.558),
-            255, 255, 255);
-    private boolean hasErrors = false;
     final Logger logger = LoggerFactory.getLogger(ImgNormRunner.class);
 
 
     public ImgNormRunner(QuPathGUI qupath){
+        this(qupath, false);
+    }
+
+    /**
+     * @param qupath the QuPath instance
+     * @param draft whether to run a draft preview, i.e. normalize the images at a low resolution into a
+     *              separate project, to check the results before the full run
+     */
+    public ImgNormRunner(QuPathGUI qupath, boolean draft){
         this.qupath = qupath;
+        this.draft = draft;
     }
 
     @Override
@@ -59,7 +53,12 @@ public class ImgNormRunner implements Runnable {
             return;
         }
 
-        if(!Dialogs.showYesNoDialog("Begin ImgNorm", "Normalize H&E images for this project?" +
+        ImgNormOptions options = draft ? ImgNormPreferences.createDraftOptions() : ImgNormPreferences.createOptions();
+        if (draft) {
+            if (!Dialogs.showYesNoDialog("Begin ImgNorm draft", "Preview the normalization of the H&E images for this project" +
+                    " at a downsample of " + options.getDraftDownsample() + "? The previews will be added to a new project," +
+                    " and their stain vectors will be reused by the full run.")) return;
+        } else if(!Dialogs.showYesNoDialog("Begin ImgNorm", "Normalize H&E images for this project?" +
                 " The normalized images will be added to a new project.")) return;
 
         var viewers = qupath.getAllViewers();
@@ -81,7 +80,8 @@ public class ImgNormRunner implements Runnable {
             }
         }
 
-        ImgNormTask imageProcessingTask = new ImgNormTask();
+        logger.info("Running with {}", options);
+        ImgNormTask imageProcessingTask = new ImgNormTask(project, options);
         ExecutorService pool = Executors.newSingleThreadExecutor();
 
         // Progress bar window configuration
@@ -94,7 +94,8 @@ public class ImgNormRunner implements Runnable {
             progressDialog.getDialogPane().getButtonTypes().add(ButtonType.CANCEL);
             progressDialog.setResizable(true);
 
-            // Resize the progressDialog if the message changes in line number. (Currently unused)
+            // Resize the progressDialog if the message changes in line number.
+            // Message updates are coalesced by ImgNormProgress, so this runs at most a few times per second.
             imageProcessingTask.messageProperty().addListener((v, o, n) -> {
                 int newlineCount = n.split("\n").length;
                 int oldLineCount = o.split("\n").length;
@@ -102,31 +103,7 @@ public class ImgNormRunner implements Runnable {
                 int newHeight = newlineCount * lineHeight + 222; // padding adjustment
 
                 if (newlineCount - oldLineCount == 0) return;
-
-                if (newlineCount - oldLineCount > 0) {
-                    CompletableFuture<Void> future = CompletableFuture.runAsync(() -> {
-                        for (int i = (int)progressDialog.getHeight(); i < newHeight; i++) {
-                            progressDialog.setHeight(i);
-                            try {
-                                Thread.sleep(100/(newHeight - i)); // animate the resizing
-                            } catch (InterruptedException e) {
-                                throw new RuntimeException(e);
-                            }
-                        }
-                    });
-                } else {
-                    CompletableFuture<Void> future = CompletableFuture.runAsync(() -> {
-                        for (int i = (int)progressDialog.getHeight(); i > newHeight; i--) {
-                            progressDialog.setHeight(i);
-                            try {
-                                Thread.sleep(100/(i - newHeight)); // animate the resizing
-                            } catch (InterruptedException e) {
-                                throw new RuntimeException(e);
-                            }
-                        }
-                    });
-                }
-
+                progressDialog.setHeight(newHeight);
             });
 
             progressDialog.getDialogPane().lookupButton(ButtonType.CANCEL).addEventFilter(ActionEvent.ACTION, e -> {
@@ -149,7 +126,6 @@ public class ImgNormRunner implements Runnable {
             throw new RuntimeException(e);
         } finally {
             pool.shutdown();
-            hasErrors = false;
         }
 
     }
@@ -160,11 +136,22 @@ public class ImgNormRunner implements Runnable {
         private boolean functionallyDone = false;
         public void quietCancel() {
             this.quietCancel = true;
+            pipeline.cancel();
+            pipeline.getProgressAggregator().pause();
         }
         public boolean isQuietlyCancelled() {
             return quietCancel;
         }
         private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        private final ImgNormPipeline pipeline;
+
+        ImgNormTask(Project<BufferedImage> project, ImgNormOptions options) {
+            this.pipeline = new ImgNormPipeline(project, project.getImageList(), options, (progress, message) -> {
+                // Task coalesces these onto the FX thread itself
+                updateProgress(progress, 100);
+                updateMessage(message);
+            });
+        }
 
 
         @Override
@@ -191,173 +178,23 @@ public class ImgNormRunner implements Runnable {
                     }
                 }, 0, 1, TimeUnit.SECONDS);
 
-                logger.info("Starting ImgNorm...");
-                updateTaskProgress(0, 100);
-                Project<BufferedImage> origProj = qupath.getProject();
-                List<ImgFileData> origImgFiles = new ArrayList<>();
-
-                updateMessage("Setting up directories...");
-                File projectDir = Projects.getBaseDirectory(origProj);
-                ImgNormDirectoryManager dirManager;
                 try {
-                    dirManager = new ImgNormDirectoryManager(projectDir);
-                } catch(IOException e){ // This shouldn't happen
+                    pipeline.run();
+                } catch (IOException e) { // This shouldn't happen
+                    logger.error(e.getMessage());
                     showErrorMessage("Error", "Failed to set up directories for image processing!");
                     return null;
                 }
 
-                // Create the list of working entries from the current project
-                updateMessage("Gathering image entries...");
-                List<ProjectImageEntry<BufferedImage>> origEntryList = origProj.getImageList();
-                System.out.println("origEntryList: " + origEntryList);
-
-                Platform.runLater(() -> updateTaskProgress(getProgress()*100 + 1, 100));
-                checkAndHandleCancel();
-
-                // Iterate over the entries, taking their ImageData and creating tiles/patches from them
-                Set<File> duplicateTracker = new HashSet<>();
-                for (ProjectImageEntry<BufferedImage> entry : origEntryList) {
-                    updateMessage("Opening " + entry);
-                    checkAndHandleCancel();
-
-                    try {
-                        Platform.runLater(() -> updateTaskProgress(getProgress()*100 + 25.0/origEntryList.size() /* increment = 25 */, 100));
-
-                        Collection<URI> uris = entry.getURIs();
-                        URI firstUri = uris.iterator().next();
-                        if (uris.size() != 1 && !Files.exists(Paths.get(firstUri))) { // skip if URI is invalid
-                            logger.warn("{} was skipped because URI is invalid", entry);
-                            continue;
-                        }
-
-                        ImageData<BufferedImage> entryImageData = entry.readImageData(); // readImageData() can be a costly operation
-                        if (entryImageData.getImageType() != ImageData.ImageType.BRIGHTFIELD_H_E) { // skip if not set to H&E
-                            logger.warn("{} was skipped because image type is not set to Brightfield H&E", entry);
-                            continue;
-                        }
-
-                        File entryImgFile = new File(firstUri);
-                        ImgFileData imgFileData = new ImgFileData(entryImgFile, entryImageData.getHierarchy().getAnnotationObjects());
-                        origImgFiles.add(imgFileData);
-
-                        // Require all entries with Ignore annotations to have their images tiled even if they share the same image file
-                        // But entries without Ignore annotations that share the same image file can skip tiling if tiling for one has been done already
-                        if (!imgFileData.isHasMod()) {
-                            if (duplicateTracker.contains(entryImgFile)) continue;
-                            duplicateTracker.add(entryImgFile); // same as duplicateTracker.add(imgFileData.getImageFile())
-                        }
-
-                        System.gc();
-                        updateMessage("Writing tiles for " + entry);
-                        ImgNormImageTools.writeTiles(entryImageData, dirManager.getImgTempDir(), TILE_SIZE_PIXELS, imgFileData.getBaseName());
-
-                    } catch (RuntimeException | IOException | InterruptedException | OutOfMemoryError e) {
-                        logger.error(e.getMessage());
-                        hasErrors = true;
-                    }
-                }
-
-                System.out.println("origImgFiles: " + origImgFiles);
-
-                // Take the resultant saved tiles, normalize them using Python, and stitch them back to their original dimensions
-                checkAndHandleCancel();
-                updateMessage("Initializing normalization algorithm...");
-                ImgNormRunPython pythonRunner = new ImgNormRunPython(dirManager.getImgTempDir(), this, 40.0, false);
-                // TODO: ^^^ Multiprocess or not?
-                pythonRunner.runPython();
-
-                checkAndHandleCancel();
-                updateMessage("Stitching images...");
-                List<File> patchDirectories = new ArrayList<>();
-                Arrays.stream(dirManager.getImgTempDir().listFiles()).toList().forEach(file -> {
-                    if (file.isDirectory()) { // <- this removes any invisible files (they usually aren't directories)
-                        patchDirectories.add(file);
-                    }
-                });
-                for (File patchDirectory : patchDirectories) {
-                    updateMessage("Stitching for " + patchDirectory);
-                    try {
-                        System.gc();
-                        ImgNormImageTools.stitchTiles(patchDirectory, dirManager.getImgFinalDir(), FINAL_IMAGE_SUFFIX,true);
-                    } catch (RuntimeException | OutOfMemoryError e) {
-                        if (e instanceof IndexOutOfBoundsException) {
-                            logger.error("Processing failed for " + patchDirectory.getName() + ": " + e.getMessage() +
-                                    "\nThis may be due to the names of the image files being too large.");
-                        } else {
-                            logger.error("Processing failed for " + patchDirectory.getName() + ": " + e.getMessage());
-                        }
-
-                        hasErrors = true;
-                        continue;
-                    }
-                    Platform.runLater(() -> updateTaskProgress(getProgress()*100 + 32.0/(double)patchDirectories.size() /* increment = 32 */, 100));
-                    checkAndHandleCancel();
-                }
-
-                updateMessage("Transferring to new project...");
-
-                // Create a new project for the normalized images
+                // Only the final swap to the normalized project touches the FX thread
+                Project<BufferedImage> normProj = pipeline.getNormalizedProject();
                 Platform.runLater(() -> {
-                    // TODO: Find out why the line below needs to be run twice to work
-                    qupath.setProject(Projects.createProject(dirManager.getNewProjDir(), BufferedImage.class));
-                    qupath.setProject(Projects.createProject(dirManager.getNewProjDir(), BufferedImage.class));
-                    Project<BufferedImage> normProj = qupath.getProject();
-
-                    // Populate new project with the normalized images
-                    origImgFiles.forEach(imgFileData -> {
-                        try {
-                            String origImgFileStrFinal =  imgFileData.getBaseName();
-                            File normImgFile = null;
-
-                            // Locate the corresponding normalized image via string matching
-                            for (File file : Objects.requireNonNull(dirManager.getImgFinalDir().listFiles())){
-                                String normImgStr = file.getName();
-                                // Chop off extension
-                                String normImgStrInt = normImgStr.substring(0, normImgStr.lastIndexOf("."));
-                                // Chop off added suffix
-                                String normImgStrFinal = normImgStrInt.substring(0, normImgStrInt.length() - FINAL_IMAGE_SUFFIX.length());
-
-                                System.out.println("normImgStr: " + normImgStr);
-                                System.out.println("normImgStrInt: " + normImgStrInt);
-                                System.out.println("normImgStrFinal: " + normImgStrFinal + "\n");
-
-                                if (origImgFileStrFinal.equals(normImgStrFinal)) {
-                                    System.out.println("MATCH: " + normImgStrFinal);
-                                    normImgFile = file;
-                                    break;
-                                }
-
-                                System.out.println("The original " + origImgFileStrFinal + " is not equal to " + normImgStrFinal);
-                            }
-
-                            if (normImgFile != null) { // null shouldn't happen because the normalized images should all be located
-                                var imageServer = ImageServers.buildServer(normImgFile.toURI());
-                                ProjectImageEntry<BufferedImage> imageEntryNorm = normProj.addImage(imageServer.getBuilder());
-                                imageEntryNorm.setImageName(normImgFile.getName());
-                                var imageDataNorm = imageEntryNorm.readImageData();
-                                // Set image to H&E
-                                imageDataNorm.setImageType(ImageData.ImageType.BRIGHTFIELD_H_E);
-                                // Transfer the annotations from the un-normalized image
-                                imageDataNorm.getHierarchy().addObjects(imgFileData.getAnnotationsList());
-                                // Set image to new stain vectors
-                                imageDataNorm.setColorDeconvolutionStains(FINAL_STAINS);
-                                // Save the entry
-                                imageEntryNorm.saveImageData(imageDataNorm);
-                            }
-
-                        } catch (IOException e){
-                            throw new RuntimeException(e);
-                        }
-                    });
-
-                    // "Reload" the project to update GUI elements. // TODO: Find a better way of doing this
+                    // "Reload" the project to update GUI elements, as the viewers and project browser may
+                    // otherwise keep showing stale state. TODO: Find a better way of doing this
                     qupath.setProject(null);
                     qupath.setProject(normProj);
                 });
 
-                Platform.runLater(() -> updateTaskProgress(getProgress()*100 + 2, 100));
-                checkAndHandleCancel();
-
                 String time;
                 long elapsedTime = (System.currentTimeMillis() - startTime) / 1000; // seconds
                 long hours = elapsedTime / 3600;
@@ -373,18 +210,15 @@ public class ImgNormRunner implements Runnable {
 
 
                 logger.info("ImgNorm Done! " + time);
-                updateMessage("Done!");
-                if (hasErrors)
+                if (pipeline.hasErrors())
                     showInfoMessage("ImgNorm Run Completed", "Run completed with errors. " + time + " See log for details.");
                 else
                     showInfoMessage("ImgNorm Run Completed", "Run completed! " + time);
 
-                ImgNormDirectoryManager.deleteDirectory(dirManager.getImgTempDir()); // in case previous attempts to delete didn't work
-
                 return null;
 
-            } catch (TaskCancelledException tce) {
-                logger.warn(tce.getMessage());
+            } catch (ImgNormPipeline.CancelledException ce) {
+                logger.warn(ce.getMessage());
                 return null;
             } catch (Exception e) {
                 logger.error(e.getMessage());
@@ -398,78 +232,10 @@ public class ImgNormRunner implements Runnable {
         }
 
 
-        private class ImgFileData {
-            private final File imageFile;
-            private final List<PathObject> annotationsList;
-            private final boolean hasMod;
-            private final String groupID;
-            private static final AtomicInteger modInstancesMade = new AtomicInteger(0);
-
-            public ImgFileData(File imageFile, Collection<PathObject> annotationsCollection) {
-                this.imageFile = imageFile;
-
-                // Convert collection to list
-                List<PathObject> annotationsCollectionAsList = new ArrayList<>(annotationsCollection);
-                // PathObjects include their child objects. Therefore, preprocess each annotation to remove underlying detection objects.
-                annotationsCollectionAsList.replaceAll(annotation -> {
-                    annotation.removeChildObjects(annotation.getChildObjects().stream()
-                            .filter(PathObject::isDetection) // remove detection objects
-                            .toList());
-                    return annotation;
-                });
-
-                this.annotationsList = Collections.unmodifiableList(annotationsCollectionAsList);
-                this.hasMod = annotationsList.stream()
-                        .anyMatch(annotation -> annotation.getPathClass() == PathClass.fromString("Ignore*"));
-
-                this.groupID = this.hasMod ? "_" + modInstancesMade.incrementAndGet() : "";
-            }
-
-            public File getImageFile() {
-                return imageFile;
-            }
-
-            public List<PathObject> getAnnotationsList() {
-                return annotationsList;
-            }
-
-            public boolean isHasMod() {
-                return hasMod;
-            }
-
-            public String getBaseName() {
-                String imageFileName = imageFile.getName();
-                return imageFileName.substring(0, imageFileName.lastIndexOf(".")) + groupID;
-            }
-
-            public String getGroupID() {
-                return groupID;
-            }
-
-            public static void resetModInstancesMade() {
-                modInstancesMade.set(0);
-            }
-
-            @Override
-            public String toString() {
-                return imageFile.toString();
-            }
-
-        }
-
-
         public synchronized void updateTaskProgress(double workDone, double maxWork) {
             updateProgress(workDone, maxWork);
         }
 
-        /**
-         * Synchronized version of updateMessage.
-         * @param message
-         */
-        public synchronized void updateTaskMessage(String message) {
-            updateMessage(message);
-        }
-
         /**
          * Synchronized version of getProgress.
          * @return the current progress
@@ -478,26 +244,6 @@ public class ImgNormRunner implements Runnable {
             return getProgress();
         }
 
-        /**
-         * Set the error status for the ImgNormRunner instance
-         * @param errorStatus
-         */
-        public void setErrorStatus(boolean errorStatus) {
-            hasErrors = errorStatus;
-        }
-
-        public void checkAndHandleCancel() throws TaskCancelledException {
-            if (isQuietlyCancelled() || isCancelled()) {
-                throw new TaskCancelledException("ImgNorm run cancelled by user.");
-            }
-        }
-
-        class TaskCancelledException extends Exception {
-            public TaskCancelledException(String errorMessage) {
-                super(errorMessage);
-            }
-        }
-
         /*
         I can't find Dialogs.showInfoMessage() so might as well make the dialog components from scratch
          */
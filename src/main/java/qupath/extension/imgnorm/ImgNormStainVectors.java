@@ -0,0 +1,115 @@
+package qupath.extension.imgnorm;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.locationtech.jts.io.WKBWriter;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The stain vectors estimated by draft runs, kept in the project directory so that a later
+ * full-resolution run can normalize each image with the vectors that were checked in the draft.
+ * <p>
+ * The normalization engine writes the vectors it estimated for a patch directory to
+ * {@code norm/stain_vectors.json}, and uses the vectors in {@code stain_vectors.json} of the patch
+ * directory instead of estimating them if that file exists. Saved vectors are only reused for the
+ * same Ignore* annotations, as those are masked out of the reference image the vectors are estimated from.
+ */
+final class ImgNormStainVectors {
+
+    static final Logger logger = LoggerFactory.getLogger(ImgNormStainVectors.class);
+    static final String FILE_NAME = "stain_vectors.json";
+    private static final String DIR_NAME = "imgnorm_stain_vectors";
+
+    private final File dir;
+
+    /**
+     * @param projectDir the directory of the original project
+     */
+    ImgNormStainVectors(File projectDir) {
+        this.dir = new File(projectDir, DIR_NAME);
+    }
+
+    /**
+     * Save the vectors the engine estimated for an image, replacing any saved before.
+     *
+     * @param baseName base name of the image
+     * @param ignoreRoi the Ignore* annotations of the image, at full resolution
+     * @param patchDirectory the patch directory the engine has normalized
+     * @return true if vectors were saved, false if the engine did not write any
+     * @throws IOException if the vectors cannot be read or written
+     */
+    boolean save(String baseName, ROI ignoreRoi, File patchDirectory) throws IOException {
+        File estimated = new File(new File(patchDirectory, ImgNormImageTools.NORMALIZED_PATCH_DIR), FILE_NAME);
+        if (!estimated.isFile())
+            return false;
+        JsonObject vectors = JsonParser.parseString(Files.readString(estimated.toPath())).getAsJsonObject();
+        vectors.addProperty("ignoreRoi", fingerprint(ignoreRoi));
+
+        Files.createDirectories(dir.toPath());
+        File target = new File(dir, baseName + ".json");
+        File tmp = new File(dir, baseName + ".json.tmp");
+        Files.writeString(tmp.toPath(), vectors.toString());
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * Find the saved vectors of an image, if there are any for its current Ignore* annotations.
+     *
+     * @param baseName base name of the image
+     * @param ignoreRoi the Ignore* annotations of the image, at full resolution
+     * @return the vectors, as JSON to be given to the engine with {@link #writeInto}, or null if there are none
+     */
+    String find(String baseName, ROI ignoreRoi) {
+        File saved = new File(dir, baseName + ".json");
+        if (!saved.isFile())
+            return null;
+        try {
+            JsonObject vectors = JsonParser.parseString(Files.readString(saved.toPath())).getAsJsonObject();
+            JsonElement savedFingerprint = vectors.remove("ignoreRoi");
+            if (savedFingerprint == null || !savedFingerprint.getAsString().equals(fingerprint(ignoreRoi))) {
+                logger.info("Stain vectors saved for {} are not reused, as its Ignore* annotations have changed", baseName);
+                return null;
+            }
+            return vectors.toString();
+        } catch (IOException | RuntimeException e) { // including malformed JSON
+            logger.warn("Stain vectors saved for {} cannot be reused: {}", baseName, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Give the engine vectors to normalize a patch directory with, instead of estimating them.
+     *
+     * @param vectors the vectors, as returned by {@link #find}
+     * @param patchDirectory the patch directory the engine will normalize
+     * @throws IOException if the vectors cannot be written
+     */
+    static void writeInto(String vectors, File patchDirectory) throws IOException {
+        Files.writeString(new File(patchDirectory, FILE_NAME).toPath(), vectors);
+    }
+
+    private static String fingerprint(ROI ignoreRoi) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            if (!ignoreRoi.isEmpty())
+                digest.update(new WKBWriter().write(ignoreRoi.getGeometry()));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) { // every JVM supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package qupath.extension.imgnorm;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImgNormBufferPoolTest {
+
+    @Test
+    void sizeClassesAreAnEighthOfAPowerOfTwoApart() {
+        assertEquals(1024, ImgNormBufferPool.getSizeClass(1));
+        assertEquals(1024, ImgNormBufferPool.getSizeClass(1024));
+        assertEquals(1024 + 128, ImgNormBufferPool.getSizeClass(1025));
+        assertEquals(2048, ImgNormBufferPool.getSizeClass(2048));
+        assertEquals(2048 + 256, ImgNormBufferPool.getSizeClass(2049));
+        assertEquals(1 << 24, ImgNormBufferPool.getSizeClass((1 << 24) - 1));
+        assertTrue(ImgNormBufferPool.getSizeClass(Integer.MAX_VALUE - 100) <= Integer.MAX_VALUE - 8);
+    }
+
+    @Test
+    void sizeClassesFitAndWasteAtMostAnEighth() {
+        for (int size = 1025; size < 1 << 22; size = size * 3 / 2 + 7) {
+            int sizeClass = ImgNormBufferPool.getSizeClass(size);
+            assertTrue(sizeClass >= size, "class " + sizeClass + " of " + size);
+            assertTrue(sizeClass - size <= size / 8 + 1, "class " + sizeClass + " of " + size);
+        }
+    }
+
+    @Test
+    void releasedArraysAreReused() {
+        ImgNormBufferPool pool = new ImgNormBufferPool(Long.MAX_VALUE, false);
+        BufferedImage img = pool.borrowRgb(100, 100);
+        assertEquals(100, img.getWidth());
+        assertEquals(BufferedImage.TYPE_INT_RGB, img.getType());
+        pool.release(img);
+
+        // A slightly smaller image is in the same size class, so reuses the array
+        BufferedImage reused = pool.borrowRgb(100, 99);
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+        assertEquals(99, reused.getHeight());
+    }
+
+    @Test
+    void imagesReleasedTwiceAreOnlyPooledOnce() {
+        ImgNormBufferPool pool = new ImgNormBufferPool(Long.MAX_VALUE, false);
+        BufferedImage img = pool.borrowRgb(64, 64);
+        pool.release(img);
+        pool.release(img);
+
+        BufferedImage first = pool.borrowRgb(64, 64);
+        BufferedImage second = pool.borrowRgb(64, 64);
+        assertEquals(1, pool.getHits());
+        assertNotSame(first.getRaster().getDataBuffer(), second.getRaster().getDataBuffer());
+    }
+
+    @Test
+    void imagesNotFromThePoolAreIgnored() {
+        ImgNormBufferPool pool = new ImgNormBufferPool(Long.MAX_VALUE, false);
+        pool.release(new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB));
+        pool.release(null);
+        pool.borrowRgb(64, 64);
+        assertEquals(0, pool.getHits());
+    }
+
+    @Test
+    void arraysBeyondTheRetainedBytesAreDropped() {
+        ImgNormBufferPool pool = new ImgNormBufferPool(0, false);
+        pool.release(pool.borrowRgb(64, 64));
+        pool.borrowRgb(64, 64);
+        assertEquals(0, pool.getHits());
+        assertEquals(2, pool.getMisses());
+    }
+
+}
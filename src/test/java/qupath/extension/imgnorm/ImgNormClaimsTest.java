@@ -0,0 +1,105 @@
+package qupath.extension.imgnorm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImgNormClaimsTest {
+
+    @TempDir
+    File claimsDir;
+
+    @TempDir
+    File outputDir;
+
+    @Test
+    void onlyOneWorkerClaimsAnImage() throws IOException {
+        ImgNormClaims worker = new ImgNormClaims(claimsDir);
+        ImgNormClaims other = new ImgNormClaims(claimsDir);
+        assertTrue(worker.claim("slide", output("slide")));
+        assertFalse(other.claim("slide", output("slide")));
+        assertFalse(worker.claim("slide", output("slide")));
+        assertTrue(worker.getOwner("slide").endsWith(":" + ProcessHandle.current().pid()));
+    }
+
+    @Test
+    void finishedImagesAreNeverClaimed() throws IOException {
+        Files.writeString(output("slide").toPath(), "normalized");
+        assertFalse(new ImgNormClaims(claimsDir).claim("slide", output("slide")));
+    }
+
+    @Test
+    void releasedClaimsCanBeClaimedAgain() throws IOException {
+        ImgNormClaims worker = new ImgNormClaims(claimsDir);
+        assertTrue(worker.claim("slide", output("slide")));
+        worker.release("slide", null);
+        assertNull(worker.getOwner("slide"));
+        assertNull(worker.getFailure("slide"));
+        assertTrue(worker.getHeld().isEmpty());
+        assertTrue(new ImgNormClaims(claimsDir).claim("slide", output("slide")));
+    }
+
+    @Test
+    void failuresAreRecordedUntilTheImageIsClaimedAgain() throws IOException {
+        ImgNormClaims worker = new ImgNormClaims(claimsDir);
+        assertTrue(worker.claim("slide", output("slide")));
+        worker.release("slide", "Out of memory");
+
+        ImgNormClaims relaunched = new ImgNormClaims(claimsDir);
+        assertEquals("Out of memory", relaunched.getFailure("slide"));
+        assertTrue(relaunched.claim("slide", output("slide")));
+        assertNull(relaunched.getFailure("slide"));
+    }
+
+    @Test
+    void staleClaimsAreTakenOver() throws IOException {
+        ImgNormClaims crashed = new ImgNormClaims(claimsDir);
+        assertTrue(crashed.claim("slide", output("slide")));
+        Files.setLastModifiedTime(new File(claimsDir, "slide.claim").toPath(),
+                FileTime.from(Instant.now().minus(ImgNormClaims.STALE_AFTER).minusSeconds(60)));
+
+        ImgNormClaims relaunched = new ImgNormClaims(claimsDir);
+        assertTrue(relaunched.claim("slide", output("slide")));
+        assertEquals(1, claimsDir.list().length); // the stale claim was removed
+    }
+
+    @Test
+    void staleClaimsOfFinishedImagesAreKept() throws IOException {
+        ImgNormClaims worker = new ImgNormClaims(claimsDir, Duration.ZERO);
+        assertTrue(worker.claim("slide", output("slide")));
+        Files.writeString(output("slide").toPath(), "normalized");
+        assertFalse(new ImgNormClaims(claimsDir, Duration.ZERO).claim("slide", output("slide")));
+        assertNotNull(worker.getOwner("slide"));
+    }
+
+    @Test
+    void claimsOfStoppedProcessesOnThisHostAreTakenOver() throws IOException, InterruptedException {
+        Process stopped = new ProcessBuilder(ProcessHandle.current().info().command().orElse("java"), "-version").start();
+        stopped.waitFor();
+        Files.writeString(new File(claimsDir, "slide.claim").toPath(),
+                "owner=" + InetAddress.getLocalHost().getHostName() + ":" + stopped.pid() + "\n");
+        assertTrue(new ImgNormClaims(claimsDir).claim("slide", output("slide")));
+    }
+
+    @Test
+    void recentClaimsOfOtherHostsAreKept() throws IOException {
+        Files.writeString(new File(claimsDir, "slide.claim").toPath(), "owner=another-host:1\n");
+        ImgNormClaims worker = new ImgNormClaims(claimsDir);
+        assertFalse(worker.claim("slide", output("slide")));
+        assertEquals("another-host:1", worker.getOwner("slide"));
+    }
+
+    private File output(String baseName) {
+        return new File(outputDir, baseName + ".ome.tif");
+    }
+
+}
@@ -0,0 +1,42 @@
+package qupath.extension.imgnorm;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImgNormCliTest {
+
+    @Test
+    void optionsAreTakenFromTheArguments() {
+        List<String> args = new ArrayList<>(List.of("shard", "--tile-size", "3750", "project.qpproj", "/shared/out",
+                "--processes", "4", "--scratch", "/local/scratch", "--engine", "python3 /opt/imgNorm/main.py",
+                "--no-reuse-stain-vectors", "1", "3"));
+        ImgNormOptions options = ImgNormCli.parseOptions(args);
+
+        assertEquals(List.of("shard", "project.qpproj", "/shared/out", "1", "3"), args);
+        assertEquals(3750, options.getTileSizePixels());
+        assertEquals(4, options.getNormalizationProcesses());
+        assertEquals(new File("/local/scratch"), options.getScratchDir());
+        assertEquals(List.of("python3", "/opt/imgNorm/main.py"), options.getEngineCommand());
+        assertFalse(options.isReuseStainVectors());
+    }
+
+    @Test
+    void otherOptionsKeepTheirDefaults() {
+        ImgNormOptions defaults = new ImgNormOptions();
+        ImgNormOptions options = ImgNormCli.parseOptions(new ArrayList<>(List.of("normalize", "project.qpproj")));
+        assertEquals(defaults.toString(), options.toString());
+    }
+
+    @Test
+    void invalidOptionsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> ImgNormCli.parseOptions(new ArrayList<>(List.of("normalize", "--tiles", "5"))));
+        assertThrows(IllegalArgumentException.class, () -> ImgNormCli.parseOptions(new ArrayList<>(List.of("normalize", "--processes"))));
+        assertThrows(IllegalArgumentException.class, () -> ImgNormCli.parseOptions(new ArrayList<>(List.of("normalize", "--processes", "four"))));
+    }
+
+}
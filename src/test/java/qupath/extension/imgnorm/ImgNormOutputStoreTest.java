@@ -0,0 +1,107 @@
+package qupath.extension.imgnorm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImgNormOutputStoreTest {
+
+    private static final ROI NO_IGNORE = ROIs.createEmptyROI();
+    private static final ROI IGNORE = ROIs.createRectangleROI(100, 100, 50, 50, ImagePlane.getDefaultPlane());
+    private static final String VECTORS = "{\"HE\":[[0.6,0.2],[0.7,0.8],[0.3,0.5]],\"maxC\":[1.9,1.0]}";
+
+    @TempDir
+    File storeDir;
+
+    @TempDir
+    File workDir;
+
+    @Test
+    void keyIsStableForTheSameInputs() throws IOException {
+        File slide = writeSlide("slide.svs", 3 * 1024 * 1024);
+        ImgNormOutputStore store = new ImgNormOutputStore(storeDir, "bundled:abc");
+        String key = store.computeKey(slide, IGNORE, 5000, null);
+        assertEquals(key, store.computeKey(slide, IGNORE, 5000, null));
+        assertEquals(key, new ImgNormOutputStore(storeDir, "bundled:abc").computeKey(slide, IGNORE, 5000, null));
+    }
+
+    @Test
+    void keyChangesWithEveryInput() throws IOException {
+        File slide = writeSlide("slide.svs", 3 * 1024 * 1024);
+        ImgNormOutputStore store = new ImgNormOutputStore(storeDir, "bundled:abc");
+        String key = store.computeKey(slide, NO_IGNORE, 5000, null);
+
+        assertNotEquals(key, store.computeKey(slide, IGNORE, 5000, null), "Ignore* geometry");
+        assertNotEquals(key, store.computeKey(slide, NO_IGNORE, 2500, null), "tile size");
+        assertNotEquals(key, store.computeKey(slide, NO_IGNORE, 5000, VECTORS), "stain vectors");
+        assertNotEquals(key, new ImgNormOutputStore(storeDir, "bundled:def").computeKey(slide, NO_IGNORE, 5000, null), "engine");
+        assertNotEquals(key, new ImgNormOutputStore(storeDir, "command:python3 main.py").computeKey(slide, NO_IGNORE, 5000, null), "engine command");
+        assertNotEquals(key, store.computeKey(writeSlide("other.svs", 3 * 1024 * 1024 + 1), NO_IGNORE, 5000, null), "source file");
+    }
+
+    @Test
+    void keyChangesWithAnEditInTheMiddleOfTheSourceFile() throws IOException {
+        File slide = writeSlide("slide.svs", 3 * 1024 * 1024);
+        ImgNormOutputStore store = new ImgNormOutputStore(storeDir, "bundled:abc");
+        String key = store.computeKey(slide, NO_IGNORE, 5000, null);
+
+        byte[] bytes = Files.readAllBytes(slide.toPath());
+        bytes[bytes.length / 2] ^= 1;
+        FileTime modified = Files.getLastModifiedTime(slide.toPath());
+        Files.write(slide.toPath(), bytes);
+        Files.setLastModifiedTime(slide.toPath(), FileTime.fromMillis(modified.toMillis() + 2000));
+        assertNotEquals(key, store.computeKey(slide, NO_IGNORE, 5000, null));
+    }
+
+    @Test
+    void publishedImagesAreFoundAndLinked() throws IOException {
+        ImgNormOutputStore store = new ImgNormOutputStore(storeDir, "bundled:abc");
+        String key = store.computeKey(writeSlide("slide.svs", 4096), NO_IGNORE, 5000, null);
+        assertNull(store.find(key));
+
+        File output = new File(workDir, "slide-normalized.ome.tif");
+        Files.writeString(output.toPath(), "normalized pixels");
+        store.publish(key, output);
+        File stored = store.find(key);
+        assertNotNull(stored);
+        assertEquals("normalized pixels", Files.readString(stored.toPath()));
+
+        File target = new File(workDir, "linked.ome.tif");
+        store.linkInto(stored, target);
+        assertEquals("normalized pixels", Files.readString(target.toPath()));
+    }
+
+    @Test
+    void publishingKeepsTheFirstImageOfAKey() throws IOException {
+        ImgNormOutputStore store = new ImgNormOutputStore(storeDir, "bundled:abc");
+        String key = store.computeKey(writeSlide("slide.svs", 4096), NO_IGNORE, 5000, null);
+        File first = new File(workDir, "first.ome.tif");
+        File second = new File(workDir, "second.ome.tif");
+        Files.writeString(first.toPath(), "first");
+        Files.writeString(second.toPath(), "second");
+
+        store.publish(key, first);
+        store.publish(key, second);
+        assertEquals("first", Files.readString(store.find(key).toPath()));
+    }
+
+    private File writeSlide(String name, int size) throws IOException {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte)(i * 31 + name.hashCode());
+        }
+        File file = new File(workDir, name);
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+
+}
@@ -0,0 +1,149 @@
+package qupath.extension.imgnorm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import qupath.lib.regions.RegionRequest;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImgNormPatchGridServerTest {
+
+    private static final double[] PIXEL_METADATA = {0.5, 0.5, 1.0};
+
+    @TempDir
+    File patchDirectory;
+
+    @Test
+    void patchNamesAreParsed() {
+        var patch = ImgNormPatchGridServer.parsePatch(new File("slide [x-1024,y-2048,w-512,h-256].tif"));
+        assertNotNull(patch);
+        assertEquals(1024, patch.x);
+        assertEquals(2048, patch.y);
+        assertEquals(512, patch.width);
+        assertEquals(256, patch.height);
+        assertNotNull(ImgNormPatchGridServer.parsePatch(new File("[x-0,y-0,w-1,h-1].tiff")));
+    }
+
+    @Test
+    void filesThatAreNotPatchesAreIgnored() {
+        assertNull(ImgNormPatchGridServer.parsePatch(new File("reference.tif")));
+        assertNull(ImgNormPatchGridServer.parsePatch(new File("[x-0,y-0,w-1,h-1].png")));
+        assertNull(ImgNormPatchGridServer.parsePatch(new File("[x-0,y-0,w-1].tif")));
+        assertNull(ImgNormPatchGridServer.parsePatch(new File("stain_vectors.json")));
+    }
+
+    @Test
+    void regionsAreStitchedFromTheOverlappingPatches() throws Exception {
+        int[] colors = {0x102030, 0x405060, 0x708090, 0xA0B0C0};
+        writePatch(0, 0, colors[0]);
+        writePatch(8, 0, colors[1]);
+        writePatch(0, 8, colors[2]);
+        writePatch(8, 8, colors[3]);
+        writePatch("reference.tif", 0xFFFFFF);
+        Files.writeString(new File(patchDirectory, "stain_vectors.json").toPath(), "{}");
+
+        try (var server = new ImgNormPatchGridServer(patchDirectory, PIXEL_METADATA, new double[] {1}, 8, 1024 * 1024)) {
+            assertEquals(16, server.getWidth());
+            assertEquals(16, server.getHeight());
+
+            BufferedImage region = server.readRegion(RegionRequest.createInstance(server.getPath(), 1, 4, 4, 8, 8));
+            assertEquals(8, region.getWidth());
+            assertEquals(colors[0], region.getRGB(0, 0) & 0xFFFFFF);
+            assertEquals(colors[1], region.getRGB(4, 0) & 0xFFFFFF);
+            assertEquals(colors[2], region.getRGB(0, 4) & 0xFFFFFF);
+            assertEquals(colors[3], region.getRGB(7, 7) & 0xFFFFFF);
+
+            BufferedImage edge = server.readRegion(RegionRequest.createInstance(server.getPath(), 1, 12, 12, 4, 4));
+            assertEquals(colors[3], edge.getRGB(3, 3) & 0xFFFFFF);
+        }
+    }
+
+    @Test
+    void directoriesWithoutPatchesAreRejected() throws IOException {
+        writePatch("reference.tif", 0xFFFFFF);
+        assertThrows(IOException.class,
+                () -> new ImgNormPatchGridServer(patchDirectory, PIXEL_METADATA, new double[] {1}, 8, 1024 * 1024));
+    }
+
+    @Test
+    void leastRecentlyUsedPatchesAreEvicted() {
+        ImgNormBufferPool pool = new ImgNormBufferPool(Long.MAX_VALUE, false);
+        var cache = new ImgNormPatchGridServer.PatchCache(2 * 32 * 32 * 4, pool); // room for two patches
+        var a = patch("a", 0);
+        var b = patch("b", 32);
+        var c = patch("c", 64);
+        cache.unuse(cache.putAndUse(a, pool.borrowRgb(32, 32)));
+        cache.unuse(cache.putAndUse(b, pool.borrowRgb(32, 32)));
+        cache.unuse(cache.use(a));
+        cache.unuse(cache.putAndUse(c, pool.borrowRgb(32, 32)));
+
+        assertNull(cache.use(b));
+        assertNotNull(cache.use(a));
+        assertNotNull(cache.use(c));
+
+        // Only the evicted patch went back to the pool
+        pool.borrowRgb(32, 32);
+        pool.borrowRgb(32, 32);
+        assertEquals(1, pool.getHits());
+    }
+
+    @Test
+    void evictedPatchesAreReleasedOnceUnused() {
+        ImgNormBufferPool pool = new ImgNormBufferPool(Long.MAX_VALUE, false);
+        var cache = new ImgNormPatchGridServer.PatchCache(32 * 32 * 4, pool); // room for one patch
+        var a = patch("a", 0);
+        var b = patch("b", 32);
+        var drawing = cache.putAndUse(a, pool.borrowRgb(32, 32));
+        cache.unuse(cache.putAndUse(b, pool.borrowRgb(32, 32)));
+        assertNull(cache.use(a));
+        assertTrue(drawing.evicted);
+
+        pool.borrowRgb(32, 32);
+        assertEquals(0, pool.getHits(), "a patch being drawn must not be released");
+
+        cache.unuse(drawing);
+        pool.borrowRgb(32, 32);
+        assertEquals(1, pool.getHits());
+    }
+
+    @Test
+    void clearingReleasesThePatchesNotInUse() {
+        ImgNormBufferPool pool = new ImgNormBufferPool(Long.MAX_VALUE, false);
+        var cache = new ImgNormPatchGridServer.PatchCache(Long.MAX_VALUE, pool);
+        cache.unuse(cache.putAndUse(patch("a", 0), pool.borrowRgb(32, 32)));
+        var drawing = cache.putAndUse(patch("b", 32), pool.borrowRgb(32, 32));
+        cache.clear();
+
+        pool.borrowRgb(32, 32);
+        pool.borrowRgb(32, 32);
+        assertEquals(1, pool.getHits());
+        cache.unuse(drawing);
+        pool.borrowRgb(32, 32);
+        assertEquals(2, pool.getHits());
+    }
+
+    private static ImgNormPatchGridServer.Patch patch(String name, int x) {
+        return new ImgNormPatchGridServer.Patch(new File(name + ".tif"), x, 0, 32, 32);
+    }
+
+    private void writePatch(int x, int y, int rgb) throws IOException {
+        writePatch("[x-" + x + ",y-" + y + ",w-8,h-8].tif", rgb);
+    }
+
+    private void writePatch(String name, int rgb) throws IOException {
+        BufferedImage img = new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                img.setRGB(x, y, rgb);
+            }
+        }
+        assertTrue(ImageIO.write(img, "tiff", new File(patchDirectory, name)));
+    }
+
+}
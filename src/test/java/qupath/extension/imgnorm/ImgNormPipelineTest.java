@@ -0,0 +1,78 @@
+package qupath.extension.imgnorm;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImgNormPipelineTest {
+
+    private static final List<String> IMAGE_FILES = IntStream.range(0, 200)
+            .mapToObj(i -> "/slides/batch-" + (i % 7) + "/slide-" + i + ".svs")
+            .toList();
+
+    @Test
+    void everyImageIsInExactlyOneShard() {
+        for (int shardCount = 1; shardCount <= 5; shardCount++) {
+            List<String> all = new ArrayList<>();
+            for (int shardIndex = 0; shardIndex < shardCount; shardIndex++) {
+                all.addAll(ImgNormPipeline.selectShard(IMAGE_FILES, Function.identity(), shardIndex, shardCount));
+            }
+            assertEquals(IMAGE_FILES.size(), all.size(), "images in " + shardCount + " shards");
+            assertEquals(new HashSet<>(IMAGE_FILES), new HashSet<>(all), "images in " + shardCount + " shards");
+        }
+    }
+
+    @Test
+    void shardsAreDeterministicAndKeepTheOrder() {
+        List<String> shard = ImgNormPipeline.selectShard(IMAGE_FILES, Function.identity(), 1, 3);
+        assertEquals(shard, ImgNormPipeline.selectShard(new ArrayList<>(IMAGE_FILES), Function.identity(), 1, 3));
+        assertEquals(IMAGE_FILES.stream().filter(shard::contains).toList(), shard);
+
+        // Dropping other images does not move an image to another shard
+        List<String> subset = IMAGE_FILES.subList(50, 120);
+        assertEquals(shard.stream().filter(subset::contains).toList(),
+                ImgNormPipeline.selectShard(subset, Function.identity(), 1, 3));
+    }
+
+    @Test
+    void itemsWithTheSameKeyShareAShard() {
+        // e.g., entries with different Ignore* annotations on the same image file
+        List<String> entries = IntStream.range(0, 60).mapToObj(i -> "/slides/slide-" + (i % 10) + ".svs#" + i).toList();
+        Function<String, String> imageFile = entry -> entry.substring(0, entry.indexOf('#'));
+        for (int shardIndex = 0; shardIndex < 4; shardIndex++) {
+            List<String> shard = ImgNormPipeline.selectShard(entries, imageFile, shardIndex, 4);
+            for (String entry : entries) {
+                boolean sameFileInShard = shard.stream().anyMatch(other -> imageFile.apply(other).equals(imageFile.apply(entry)));
+                assertEquals(sameFileInShard, shard.contains(entry), entry);
+            }
+        }
+    }
+
+    @Test
+    void workersMountingTheImagesElsewhereAgreeOnTheShards() {
+        List<File> mountedHere = IMAGE_FILES.stream().map(path -> new File("/mnt/share" + path)).toList();
+        List<File> mountedThere = IMAGE_FILES.stream().map(path -> new File("/Volumes/lab-share/data" + path)).toList();
+        for (int shardIndex = 0; shardIndex < 3; shardIndex++) {
+            List<String> here = ImgNormPipeline.selectShard(mountedHere, ImgNormPipeline::getShardKey, shardIndex, 3)
+                    .stream().map(File::getName).toList();
+            List<String> there = ImgNormPipeline.selectShard(mountedThere, ImgNormPipeline::getShardKey, shardIndex, 3)
+                    .stream().map(File::getName).toList();
+            assertEquals(here, there, "shard " + shardIndex);
+        }
+    }
+
+    @Test
+    void invalidShardsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> ImgNormPipeline.selectShard(IMAGE_FILES, Function.identity(), 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> ImgNormPipeline.selectShard(IMAGE_FILES, Function.identity(), 3, 3));
+        assertThrows(IllegalArgumentException.class, () -> ImgNormPipeline.selectShard(IMAGE_FILES, Function.identity(), -1, 3));
+    }
+
+}
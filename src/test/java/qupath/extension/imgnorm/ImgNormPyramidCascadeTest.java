@@ -0,0 +1,123 @@
+package qupath.extension.imgnorm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImgNormPyramidCascadeTest {
+
+    private static final double[] DOWNSAMPLES = {1, 2, 4};
+
+    @TempDir
+    File scratchDir;
+
+    @Test
+    void levelsAreOnlyReadOnceComplete() throws IOException {
+        try (ImgNormPyramidCascade cascade = new ImgNormPyramidCascade(8, 8, DOWNSAMPLES, 4, scratchDir)) {
+            cascade.accept(tile(1, 0, 0), filled(0x204060));
+            cascade.accept(tile(1, 4, 0), filled(0x204060));
+            assertNull(cascade.read(tile(2, 0, 0, 8, 8)));
+            assertNull(cascade.read(tile(4, 0, 0, 8, 8)));
+
+            cascade.accept(tile(1, 0, 4), filled(0x204060));
+            cascade.accept(tile(1, 4, 4), filled(0x204060));
+            assertNotNull(cascade.read(tile(2, 0, 0, 8, 8)));
+            assertNotNull(cascade.read(tile(4, 0, 0, 8, 8)));
+            assertNull(cascade.read(tile(1, 0, 0, 8, 8)), "the first level is never served by the cascade");
+        }
+    }
+
+    @Test
+    void pixelsAreAreaAveraged() throws IOException {
+        try (ImgNormPyramidCascade cascade = new ImgNormPyramidCascade(8, 8, DOWNSAMPLES, 4, scratchDir)) {
+            BufferedImage stripes = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < 4; y++) {
+                for (int x = 0; x < 4; x++) {
+                    stripes.setRGB(x, y, x % 2 == 0 ? 0x000000 : 0xFF0A01);
+                }
+            }
+            for (int y = 0; y < 8; y += 4) {
+                for (int x = 0; x < 8; x += 4) {
+                    cascade.accept(tile(1, x, y), stripes);
+                }
+            }
+
+            // (0 + 255) / 2, (0 + 10) / 2 and (0 + 1) / 2, rounded half up
+            BufferedImage level1 = cascade.read(tile(2, 0, 0, 8, 8));
+            assertEquals(4, level1.getWidth());
+            assertEquals(4, level1.getHeight());
+            for (int y = 0; y < 4; y++) {
+                for (int x = 0; x < 4; x++) {
+                    assertEquals(0x800501, level1.getRGB(x, y) & 0xFFFFFF);
+                }
+            }
+            BufferedImage level2 = cascade.read(tile(4, 0, 0, 8, 8));
+            assertEquals(2, level2.getWidth());
+            assertEquals(0x800501, level2.getRGB(1, 1) & 0xFFFFFF);
+        }
+    }
+
+    @Test
+    void tilesAreKeptInPlace() throws IOException {
+        int[] colors = {0x100000, 0x002000, 0x000030, 0x404040};
+        try (ImgNormPyramidCascade cascade = new ImgNormPyramidCascade(8, 8, DOWNSAMPLES, 4, scratchDir)) {
+            cascade.accept(tile(1, 4, 4), filled(colors[3]));
+            cascade.accept(tile(1, 0, 4), filled(colors[2]));
+            cascade.accept(tile(1, 4, 0), filled(colors[1]));
+            cascade.accept(tile(1, 0, 0), filled(colors[0]));
+
+            BufferedImage level2 = cascade.read(tile(4, 0, 0, 8, 8));
+            assertEquals(colors[0], level2.getRGB(0, 0) & 0xFFFFFF);
+            assertEquals(colors[1], level2.getRGB(1, 0) & 0xFFFFFF);
+            assertEquals(colors[2], level2.getRGB(0, 1) & 0xFFFFFF);
+            assertEquals(colors[3], level2.getRGB(1, 1) & 0xFFFFFF);
+
+            BufferedImage region = cascade.read(tile(2, 4, 0, 4, 8));
+            assertEquals(2, region.getWidth());
+            assertEquals(4, region.getHeight());
+            assertEquals(colors[1], region.getRGB(0, 0) & 0xFFFFFF);
+            assertEquals(colors[3], region.getRGB(1, 3) & 0xFFFFFF);
+        }
+    }
+
+    @Test
+    void tilesFedTwiceAreOnlyCountedOnce() throws IOException {
+        try (ImgNormPyramidCascade cascade = new ImgNormPyramidCascade(8, 8, DOWNSAMPLES, 4, scratchDir)) {
+            cascade.accept(tile(1, 0, 0), filled(0xFFFFFF));
+            cascade.accept(tile(1, 0, 0), filled(0x000000));
+            cascade.accept(tile(1, 4, 0), filled(0x000000));
+            cascade.accept(tile(1, 0, 4), filled(0x000000));
+            assertNull(cascade.read(tile(2, 0, 0, 8, 8)));
+
+            cascade.accept(tile(1, 4, 4), filled(0x000000));
+            BufferedImage level1 = cascade.read(tile(2, 0, 0, 8, 8));
+            assertEquals(0xFFFFFF, level1.getRGB(0, 0) & 0xFFFFFF);
+            assertEquals(0x000000, level1.getRGB(3, 3) & 0xFFFFFF);
+        }
+    }
+
+    private static RegionRequest tile(double downsample, int x, int y) {
+        return tile(downsample, x, y, 4, 4);
+    }
+
+    private static RegionRequest tile(double downsample, int x, int y, int width, int height) {
+        return RegionRequest.createInstance("test", downsample, x, y, width, height);
+    }
+
+    private static BufferedImage filled(int rgb) {
+        BufferedImage img = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                img.setRGB(x, y, rgb);
+            }
+        }
+        return img;
+    }
+
+}
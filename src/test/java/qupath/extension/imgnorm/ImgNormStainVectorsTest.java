@@ -0,0 +1,97 @@
+package qupath.extension.imgnorm;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImgNormStainVectorsTest {
+
+    private static final String ESTIMATED = "{\"HE\":[[0.6,0.2],[0.7,0.8],[0.3,0.5]],\"maxC\":[1.9,1.0]}";
+    private static final ROI IGNORE = ROIs.createRectangleROI(100, 100, 50, 50, ImagePlane.getDefaultPlane());
+
+    @TempDir
+    File projectDir;
+
+    @TempDir
+    File patchDirectory;
+
+    @Test
+    void vectorsAreFoundForTheSameIgnoreAnnotations() throws IOException {
+        writeEstimated();
+        ImgNormStainVectors stainVectors = new ImgNormStainVectors(projectDir);
+        assertTrue(stainVectors.save("slide", IGNORE, patchDirectory));
+
+        String vectors = new ImgNormStainVectors(projectDir).find("slide",
+                ROIs.createRectangleROI(100, 100, 50, 50, ImagePlane.getDefaultPlane()));
+        assertNotNull(vectors);
+        JsonObject json = JsonParser.parseString(vectors).getAsJsonObject();
+        assertEquals(JsonParser.parseString(ESTIMATED), json);
+        assertFalse(json.has("ignoreRoi"));
+    }
+
+    @Test
+    void vectorsAreNotFoundOnceTheIgnoreAnnotationsChange() throws IOException {
+        writeEstimated();
+        ImgNormStainVectors stainVectors = new ImgNormStainVectors(projectDir);
+        stainVectors.save("slide", IGNORE, patchDirectory);
+
+        assertNull(stainVectors.find("slide", ROIs.createRectangleROI(100, 100, 60, 50, ImagePlane.getDefaultPlane())));
+        assertNull(stainVectors.find("slide", ROIs.createEmptyROI()));
+        assertNull(stainVectors.find("other", IGNORE));
+    }
+
+    @Test
+    void vectorsAreFoundWithoutIgnoreAnnotations() throws IOException {
+        writeEstimated();
+        ImgNormStainVectors stainVectors = new ImgNormStainVectors(projectDir);
+        stainVectors.save("slide", ROIs.createEmptyROI(), patchDirectory);
+
+        assertNotNull(stainVectors.find("slide", ROIs.createEmptyROI()));
+        assertNull(stainVectors.find("slide", IGNORE));
+    }
+
+    @Test
+    void nothingIsSavedIfTheEngineWroteNoVectors() throws IOException {
+        ImgNormStainVectors stainVectors = new ImgNormStainVectors(projectDir);
+        assertFalse(stainVectors.save("slide", IGNORE, patchDirectory));
+        assertNull(stainVectors.find("slide", IGNORE));
+    }
+
+    @Test
+    void malformedVectorsAreNotFound() throws IOException {
+        File dir = new File(projectDir, "imgnorm_stain_vectors");
+        assertTrue(dir.mkdirs());
+        Files.writeString(new File(dir, "slide.json").toPath(), "{\"HE\":");
+        assertNull(new ImgNormStainVectors(projectDir).find("slide", IGNORE));
+    }
+
+    @Test
+    void foundVectorsAreGivenToTheEngine() throws IOException {
+        writeEstimated();
+        ImgNormStainVectors stainVectors = new ImgNormStainVectors(projectDir);
+        stainVectors.save("slide", IGNORE, patchDirectory);
+
+        File fullPatches = new File(patchDirectory, "full");
+        assertTrue(fullPatches.mkdirs());
+        ImgNormStainVectors.writeInto(stainVectors.find("slide", IGNORE), fullPatches);
+        String written = Files.readString(new File(fullPatches, ImgNormStainVectors.FILE_NAME).toPath());
+        assertEquals(JsonParser.parseString(ESTIMATED), JsonParser.parseString(written));
+    }
+
+    private void writeEstimated() throws IOException {
+        File normalized = new File(patchDirectory, ImgNormImageTools.NORMALIZED_PATCH_DIR);
+        assertTrue(normalized.mkdirs());
+        Files.writeString(new File(normalized, ImgNormStainVectors.FILE_NAME).toPath(), ESTIMATED);
+    }
+
+}